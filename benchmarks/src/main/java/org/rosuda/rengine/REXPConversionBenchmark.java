@@ -0,0 +1,154 @@
+package org.rosuda.rengine;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Conversions between Java objects and R-expressions in the REngine API. It lives in the API package because
+ {@link REXPWrapper} is package-private. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class REXPConversionBenchmark {
+    private static final int ROWS = 1000;
+    private static final int COLS = 100;
+    private static final int ELEMENTS = 1000;
+    private static final int SIZE = 1000000;
+
+    private double[][] matrix;
+    private REXP rmatrix;
+    private double[] doubles;
+    private String[] strings;
+    private RList list;
+    private REXPInteger integers;
+    private double[] target;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        matrix = new double[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            matrix[i] = doubles(COLS);
+        }
+        rmatrix = REXP.createDoubleMatrix(matrix);
+        doubles = doubles(SIZE);
+        strings = new String[ELEMENTS];
+        REXP[] c = new REXP[ELEMENTS];
+        keys = new String[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            c[i] = new REXPDouble(i);
+            keys[i] = "name" + i;
+            strings[i] = "value" + i;
+        }
+        list = new RList(c, keys);
+        int[] ints = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            ints[i] = i;
+        }
+        integers = new REXPInteger(ints);
+        target = new double[SIZE];
+    }
+
+    private static double[] doubles(int n) {
+        Random r = new Random(42);
+        double[] d = new double[n];
+        for (int i = 0; i < n; i++) {
+            d[i] = r.nextGaussian();
+        }
+        return d;
+    }
+
+    @Benchmark
+    public REXP createDoubleMatrix() {
+        return REXP.createDoubleMatrix(matrix);
+    }
+
+    @Benchmark
+    public double[][] asDoubleMatrix() throws Exception {
+        return rmatrix.asDoubleMatrix();
+    }
+
+    /** builds the same matrix as {@link #createDoubleMatrix()} column by column, without transposing */
+    @Benchmark
+    public REXP buildMatrix() {
+        RMatrix.Builder b = new RMatrix.Builder(ROWS, COLS);
+        for (int j = 0; j < COLS; j++) {
+            for (int i = 0; i < ROWS; i++) {
+                b.add(matrix[i][j]);
+            }
+        }
+        return b.build().toREXP();
+    }
+
+    /** sums the matrix through a view of its payload instead of a double[][] copy */
+    @Benchmark
+    public double sumMatrixView() throws Exception {
+        RMatrix m = rmatrix.asMatrix();
+        double s = 0;
+        for (int j = 0; j < m.cols(); j++) {
+            for (int i = 0; i < m.rows(); i++) {
+                s += m.get(i, j);
+            }
+        }
+        return s;
+    }
+
+    @Benchmark
+    public REXP wrapDoubles() {
+        return REXPWrapper.wrap(doubles);
+    }
+
+    @Benchmark
+    public REXP wrapStrings() {
+        return REXPWrapper.wrap(strings);
+    }
+
+    /** looks up every element of a list with 1000 named elements by name */
+    @Benchmark
+    public void listAtName(Blackhole bh) {
+        for (int i = 0; i < keys.length; i++) {
+            bh.consume(list.at(keys[i]));
+        }
+    }
+
+    /** sums an integer vector as doubles via a converted copy */
+    @Benchmark
+    public double sumAsDoubles() {
+        double[] d = integers.asDoubles();
+        double s = 0;
+        for (int i = 0; i < d.length; i++) {
+            s += d[i];
+        }
+        return s;
+    }
+
+    /** sums an integer vector as doubles element by element, without a copy */
+    @Benchmark
+    public double sumGetDouble() {
+        double s = 0;
+        for (int i = 0, n = integers.length(); i < n; i++) {
+            s += integers.getDouble(i);
+        }
+        return s;
+    }
+
+    @Benchmark
+    public double[] copyInto() throws Exception {
+        integers.copyInto(target, 0);
+        return target;
+    }
+}
@@ -0,0 +1,126 @@
+package org.rosuda.rengine.benchmarks;
+
+import java.util.Random;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.RList;
+import org.rosuda.rengine.rserve.protocol.REXPFactory;
+
+/** Builds the R-expressions used by the benchmarks. All data is generated from a fixed seed, so runs are comparable. */
+final class BenchmarkData {
+    /** number of elements of the large vectors */
+    static final int SIZE = 1000000;
+    /** number of rows of the data frame */
+    static final int ROWS = 100000;
+    /** nesting depth of the nested list */
+    static final int DEPTH = 200;
+
+    private BenchmarkData() {
+    }
+
+    /** creates an expression of the given shape
+     @param shape one of <code>doubles</code>, <code>integers</code>, <code>strings</code>, <code>categorical</code>, <code>nested</code> or <code>dataframe</code>
+     @return expression */
+    static REXP create(String shape) throws REXPMismatchException {
+        if ("doubles".equals(shape)) {
+            return new REXPDouble(doubles(SIZE));
+        }
+        if ("integers".equals(shape)) {
+            return new REXPInteger(integers(SIZE));
+        }
+        if ("strings".equals(shape)) {
+            return new REXPString(strings(SIZE / 10));
+        }
+        if ("categorical".equals(shape)) {
+            return new REXPString(categories(SIZE / 10, 100));
+        }
+        if ("nested".equals(shape)) {
+            return nested(DEPTH);
+        }
+        if ("dataframe".equals(shape)) {
+            return dataFrame(ROWS);
+        }
+        throw new IllegalArgumentException("unknown shape " + shape);
+    }
+
+    /** returns the binary representation of an expression as sent by Rserve (without the parameter header) */
+    static byte[] encode(REXP x) throws REXPMismatchException {
+        REXPFactory f = new REXPFactory(x);
+        byte[] b = new byte[f.getBinaryLength()];
+        f.getBinaryRepresentation(b, 0);
+        return b;
+    }
+
+    static double[] doubles(int n) {
+        Random r = new Random(42);
+        double[] d = new double[n];
+        for (int i = 0; i < n; i++) {
+            d[i] = r.nextGaussian();
+        }
+        return d;
+    }
+
+    static int[] integers(int n) {
+        Random r = new Random(42);
+        int[] d = new int[n];
+        for (int i = 0; i < n; i++) {
+            d[i] = r.nextInt();
+        }
+        return d;
+    }
+
+    static String[] strings(int n) {
+        Random r = new Random(42);
+        String[] s = new String[n];
+        for (int i = 0; i < n; i++) {
+            s[i] = "level" + r.nextInt(100) + "_" + i;
+        }
+        return s;
+    }
+
+    /** strings with only <code>k</code> distinct values, like the values of a categorical column */
+    static String[] categories(int n, int k) {
+        Random r = new Random(42);
+        String[] s = new String[n];
+        for (int i = 0; i < n; i++) {
+            s[i] = "category" + r.nextInt(k);
+        }
+        return s;
+    }
+
+    /** a list of <code>depth</code> levels, each holding a named numeric vector, a string and the next level */
+    static REXP nested(int depth) {
+        REXP x = new REXPString("leaf");
+        for (int i = 0; i < depth; i++) {
+            x = new REXPGenericVector(new RList(
+                    new REXP[] {new REXPDouble(doubles(16)), new REXPString("level" + i), x},
+                    new String[] {"values", "name", "child"}));
+        }
+        return x;
+    }
+
+    /** a data frame with numeric, integer, string and logical columns */
+    static REXP dataFrame(int rows) throws REXPMismatchException {
+        Random r = new Random(42);
+        int[] id = new int[rows];
+        byte[] flag = new byte[rows];
+        for (int i = 0; i < rows; i++) {
+            id[i] = i + 1;
+            flag[i] = (byte) (r.nextBoolean() ? 1 : 0);
+        }
+        String[] group = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            group[i] = "g" + r.nextInt(50);
+        }
+        return REXP.createDataFrame(new RList(
+                new REXP[] {new REXPInteger(id), new REXPDouble(doubles(rows)), new REXPString(group),
+                        new REXPLogical(flag)},
+                new String[] {"id", "value", "group", "flag"}));
+    }
+}
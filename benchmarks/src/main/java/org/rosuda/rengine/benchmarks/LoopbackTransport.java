@@ -0,0 +1,61 @@
+package org.rosuda.rengine.benchmarks;
+
+import java.nio.ByteBuffer;
+
+import org.rosuda.rengine.rserve.protocol.RTransport;
+
+/**
+ * In-memory transport which answers every request with the same canned response. Written bytes are discarded, reads
+ * replay the response over and over, so each request of {@link org.rosuda.rengine.rserve.protocol.RTalk} receives
+ * exactly one copy of it.
+ */
+final class LoopbackTransport implements RTransport {
+    private final byte[] response;
+    private int pos;
+    private long written;
+
+    /** @param response complete response message including the 16-byte header */
+    LoopbackTransport(byte[] response) {
+        this.response = response;
+    }
+
+    public int read(byte[] b, int off, int len) {
+        int n = Math.min(len, response.length - pos);
+        System.arraycopy(response, pos, b, off, n);
+        advance(n);
+        return n;
+    }
+
+    public int read(ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), response.length - pos);
+        dst.put(response, pos, n);
+        advance(n);
+        return n;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        written += len;
+    }
+
+    public void write(ByteBuffer[] srcs) {
+        for (int i = 0; i < srcs.length; i++) {
+            written += srcs[i].remaining();
+            srcs[i].position(srcs[i].limit());
+        }
+    }
+
+    public void close() {
+    }
+
+    /** returns the number of bytes written so far */
+    long getWritten() {
+        return written;
+    }
+
+    private void advance(int n) {
+        pos += n;
+        if (pos == response.length) {
+            pos = 0;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.rosuda.rengine.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.rserve.protocol.REXPFactory;
+import org.rosuda.rengine.rserve.protocol.REXPStreamDecoder;
+
+/**
+ * Decoding and encoding of the QAP1 binary representation of R-expressions by {@link REXPFactory} and
+ * {@link REXPStreamDecoder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class REXPFactoryBenchmark {
+
+    @Param({"doubles", "integers", "strings", "categorical", "nested", "dataframe"})
+    public String shape;
+
+    private REXP rexp;
+    private byte[] bin;
+    private byte[] out;
+
+    @Setup
+    public void setup() throws Exception {
+        rexp = BenchmarkData.create(shape);
+        bin = BenchmarkData.encode(rexp);
+        out = new byte[bin.length];
+    }
+
+    @Benchmark
+    public REXP parseREXP() throws Exception {
+        REXPFactory f = new REXPFactory();
+        f.parseREXP(bin, 0);
+        return f.getREXP();
+    }
+
+    /** like {@link #parseREXP()} with deduplication of repeated strings */
+    @Benchmark
+    public REXP parseREXPInterned() throws Exception {
+        REXPFactory f = new REXPFactory();
+        f.setInternStrings(true);
+        f.parseREXP(bin, 0);
+        return f.getREXP();
+    }
+
+    /** like {@link #parseREXP()} with the elements of generic vectors decoded in parallel */
+    @Benchmark
+    public REXP parseREXPParallel() throws Exception {
+        REXPFactory f = new REXPFactory();
+        f.setParallelThreshold(64 * 1024);
+        f.parseREXP(bin, 0);
+        return f.getREXP();
+    }
+
+    @Benchmark
+    public REXP streamDecode() throws Exception {
+        return new REXPStreamDecoder(new ByteArrayInputStream(bin), bin.length).decode();
+    }
+
+    @Benchmark
+    public byte[] getBinaryRepresentation() throws Exception {
+        REXPFactory f = new REXPFactory(rexp);
+        f.getBinaryRepresentation(out, 0);
+        return out;
+    }
+}
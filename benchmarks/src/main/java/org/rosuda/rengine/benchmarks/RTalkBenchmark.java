@@ -0,0 +1,95 @@
+package org.rosuda.rengine.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.rserve.protocol.REXPFactory;
+import org.rosuda.rengine.rserve.protocol.RPacket;
+import org.rosuda.rengine.rserve.protocol.RTalk;
+
+/**
+ * QAP1 message framing of {@link RTalk} over an in-memory {@link LoopbackTransport}, i.e. without any network cost.
+ * The eval benchmarks receive an expression of the given shape, the assign benchmark sends it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTalkBenchmark {
+    private static final int RESP_OK = 0x10001;
+
+    @Param({"doubles", "strings", "nested", "dataframe"})
+    public String shape;
+
+    private REXP rexp;
+    private RTalk evalTalk;
+    private RTalk assignTalk;
+    private byte[] symbol;
+
+    @Setup
+    public void setup() throws Exception {
+        rexp = BenchmarkData.create(shape);
+        byte[] bin = BenchmarkData.encode(rexp);
+        byte[] ph = new byte[8];
+        int hl = RTalk.setHdr(RTalk.DT_SEXP, bin.length, ph, 0);
+        evalTalk = new RTalk(new LoopbackTransport(response(ph, hl, bin)));
+        assignTalk = new RTalk(new LoopbackTransport(response(ph, 0, bin)));
+        symbol = new byte[8];
+        RTalk.setHdr(RTalk.DT_STRING, 4, symbol, 0);
+        symbol[4] = 'x';
+    }
+
+    private static byte[] response(byte[] ph, int hl, byte[] bin) {
+        int len = (hl == 0) ? 0 : hl + bin.length;
+        byte[] r = new byte[16 + len];
+        RTalk.setInt(RESP_OK, r, 0);
+        RTalk.setInt(len, r, 4);
+        if (len > 0) {
+            System.arraycopy(ph, 0, r, 16, hl);
+            System.arraycopy(bin, 0, r, 16 + hl, bin.length);
+        }
+        return r;
+    }
+
+    /** receives the whole response into the receive buffer and parses it in place */
+    @Benchmark
+    public REXP evalBuffered() throws Exception {
+        return parse(evalTalk.request(RTalk.CMD_eval, "x"));
+    }
+
+    /** decodes large responses while they are received (see {@link RTalk#requestREXP}), small ones like
+     {@link #evalBuffered()} */
+    @Benchmark
+    public REXP evalStreamed() throws Exception {
+        RPacket rp = evalTalk.requestREXP(RTalk.CMD_eval, "x");
+        return (rp.getREXP() != null) ? rp.getREXP() : parse(rp);
+    }
+
+    private static REXP parse(RPacket rp) throws Exception {
+        ByteBuffer cb = rp.getContBuffer();
+        byte[] c = cb.array();
+        int o = cb.arrayOffset();
+        REXPFactory f = new REXPFactory();
+        f.parseREXP(c, o + (((c[o] & RTalk.DT_LARGE) != 0) ? 8 : 4));
+        return f.getREXP();
+    }
+
+    @Benchmark
+    public RPacket assign() throws Exception {
+        return assignTalk.requestSEXP(RTalk.CMD_setSEXP, symbol, new REXPFactory(rexp));
+    }
+}
@@ -0,0 +1,262 @@
+package org.rosuda.rengine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+
+/** unsynchronized implementation of R-lists backed by plain arrays. It offers the same element and name access as
+ {@link RList} (<code>at</code>, <code>keyAt</code>, <code>keys</code>, <code>isNamed</code> and the Map-like methods)
+ but none of its methods acquire a lock, so it is meant for lists which are built and read by a single thread
+ such as the contents of decoded generic vectors. Use {@link #toRList()} to obtain an {@link RList} for code which
+ requires one.
+
+ Lookups by name use a hash index which is built on first use and kept up to date when elements are appended or
+ renamed. As in R the first element with a given name is found if names are duplicated. */
+public final class RArrayList {
+    /** lists with fewer names are searched linearly, which is faster than building an index */
+    private static final int INDEX_THRESHOLD = 8;
+
+    private REXP[] values;
+    /** names or <code>null</code> if the list is unnamed; always has the same capacity as <code>values</code> */
+    private String[] names;
+    private int size;
+    /** index of the names, <code>null</code> if it has not been built yet or elements were removed since */
+    private HashMap<String, Integer> index;
+
+    /** constructs an empty, unnamed list */
+    public RArrayList() {
+        this(10, false);
+    }
+
+    /** constructs an empty list
+     * @param initSize number of elements the list can hold before it needs to grow
+     * @param hasNames whether the list is named */
+    public RArrayList(int initSize, boolean hasNames) {
+        values = new REXP[initSize];
+        names = hasNames ? new String[initSize] : null;
+    }
+
+    /** constructs a list with the given contents. The arrays are used directly, not copied.
+     * @param contents elements of the list
+     * @param names names of the elements or <code>null</code> for an unnamed list. Missing names are <code>null</code>, surplus ones are ignored */
+    public RArrayList(REXP[] contents, String[] names) {
+        values = contents;
+        size = contents.length;
+        if (names != null) {
+            this.names = (names.length == size) ? names : Arrays.copyOf(names, size);
+        }
+    }
+
+    /** constructs a list with the contents and names of an {@link RList}
+     * @param list list to copy */
+    public RArrayList(RList list) {
+        size = list.size();
+        values = new REXP[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = list.at(i);
+        }
+        if (list.isNamed()) {
+            names = new String[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = list.keyAt(i);
+            }
+        }
+    }
+
+    /** returns the number of elements
+     * @return number of elements */
+    public int size() {
+        return size;
+    }
+
+    /** checks whether this list is named or unnamed
+     * @return <code>true</code> if this list is named, <code>false</code> otherwise */
+    public boolean isNamed() {
+        return names != null;
+    }
+
+    /** get element at the specified position
+     @param i index
+     @return value at the index or <code>null</code> if the index is out of bounds */
+    public REXP at(int i) {
+        return (i >= 0 && i < size) ? values[i] : null;
+    }
+
+    /** get xpression given a key
+     @param key key
+     @return value which corresponds to the given key or
+     <code>null</code> if the list is unnamed or key not found */
+    public REXP at(String key) {
+        int i = indexOfKey(key);
+        return (i < 0) ? null : values[i];
+    }
+
+    /** returns the index of the first element with the given name
+     @param key name
+     @return index or -1 if the list is unnamed or the name was not found */
+    public int indexOfKey(Object key) {
+        if (names == null) {
+            return -1;
+        }
+        if (size < INDEX_THRESHOLD) {
+            for (int i = 0; i < size; i++) {
+                if (key == null ? names[i] == null : key.equals(names[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        if (index == null) {
+            HashMap<String, Integer> ix = new HashMap<String, Integer>(size * 4 / 3 + 1);
+            for (int i = size - 1; i >= 0; i--) { // backwards, so that the first occurrence wins
+                ix.put(names[i], Integer.valueOf(i));
+            }
+            index = ix;
+        }
+        Integer i = index.get(key);
+        return (i == null) ? -1 : i.intValue();
+    }
+
+    /** return the key (name) at a given index
+     @param i index
+     @return key at the index - can be <code>null</code> is the list is unnamed or the index is out of range */
+    public String keyAt(int i) {
+        return (names == null || i < 0 || i >= size) ? null : names[i];
+    }
+
+    /** set key at the given index. Using this method automatically makes the list a named one even if the key is <code>null</code>. Out of range operations are no-ops
+     @param i index
+     @param value key name */
+    public void setKeyAt(int i, String value) {
+        if (i < 0 || i >= size) {
+            return;
+        }
+        if (names == null) {
+            names = new String[values.length];
+        }
+        String old = names[i];
+        names[i] = value;
+        if (index != null && !Objects.equals(old, value)) {
+            Integer p = index.get(old);
+            if (p != null && p.intValue() == i) { // the next element of the old name becomes the first one
+                index.remove(old);
+                for (int j = i + 1; j < size; j++) {
+                    if (Objects.equals(old, names[j])) {
+                        index.put(old, Integer.valueOf(j));
+                        break;
+                    }
+                }
+            }
+            p = index.get(value);
+            if (p == null || p.intValue() > i) {
+                index.put(value, Integer.valueOf(i));
+            }
+        }
+    }
+
+    /** returns all keys of the list
+     * @return array containing all keys or <code>null</code> if list unnamed */
+    public String[] keys() {
+        return (names == null) ? null : Arrays.copyOf(names, size);
+    }
+
+    /** returns all elements of the list
+     * @return array containing all elements */
+    public REXP[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /** appends an unnamed element
+     * @param value element to append */
+    public void add(REXP value) {
+        add(null, value);
+    }
+
+    /** appends an element with the given name. Unlike {@link #put} this does not replace an existing element of the same name.
+     * @param key name of the element, may be <code>null</code>
+     * @param value element to append */
+    public void add(String key, REXP value) {
+        if (size == values.length) {
+            int cap = Math.max(10, size + (size >> 1));
+            values = Arrays.copyOf(values, cap);
+            if (names != null) {
+                names = Arrays.copyOf(names, cap);
+            }
+        }
+        if (key != null && names == null) {
+            names = new String[values.length];
+        }
+        values[size] = value;
+        if (names != null) {
+            names[size] = key;
+            if (index != null) {
+                index.putIfAbsent(key, Integer.valueOf(size));
+            }
+        }
+        size++;
+    }
+
+    // --- Map-like interface, compatible with RList
+
+    public boolean containsKey(Object key) {
+        return indexOfKey(key) >= 0;
+    }
+
+    public REXP get(Object key) {
+        int i = indexOfKey(key);
+        return (i < 0) ? null : values[i];
+    }
+
+    /** sets the value of the first element with the given name or appends a new element if there is none
+     * @param key name of the element; <code>null</code> appends an unnamed element
+     * @param value value of the element
+     * @return previous value or <code>null</code> if the element was appended */
+    public REXP put(String key, REXP value) {
+        if (key != null) {
+            int i = indexOfKey(key);
+            if (i >= 0) {
+                REXP o = values[i];
+                values[i] = value;
+                return o;
+            }
+        }
+        add(key, value);
+        return null;
+    }
+
+    public REXP removeByKey(Object key) {
+        int i = indexOfKey(key);
+        if (i < 0) {
+            return null;
+        }
+        REXP o = values[i];
+        size--;
+        System.arraycopy(values, i + 1, values, i, size - i);
+        values[size] = null;
+        if (names != null) {
+            System.arraycopy(names, i + 1, names, i, size - i);
+            names[size] = null;
+            index = null;
+        }
+        return o;
+    }
+
+    /** creates an {@link RList} with the same contents and names
+     * @return new list */
+    public RList toRList() {
+        RList l = new RList(size, names != null);
+        for (int i = 0; i < size; i++) {
+            l.add(values[i]);
+        }
+        if (names != null) {
+            for (int i = 0; i < size; i++) {
+                l.setKeyAt(i, names[i]);
+            }
+        }
+        return l;
+    }
+
+    public String toString() {
+        return "RArrayList" + Arrays.toString(toArray()) + "{" + (isNamed() ? "named," : "") + size + "}";
+    }
+}
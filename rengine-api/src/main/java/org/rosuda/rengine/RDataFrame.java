@@ -0,0 +1,245 @@
+package org.rosuda.rengine;
+
+import java.util.HashMap;
+
+/** read-only, columnar view of a data frame. Columns are accessed by name or index and cells through the primitive
+ accessors of {@link REXPVector}, so no object is created per cell. Factor columns stay integer codes and are
+ only mapped to their levels when a cell is read as string.
+ <p>
+ Row names in the compact form <code>c(NA, -n)</code> (or <code>c(NA, n)</code>) used by R for automatic row names
+ are not expanded; {@link #rowName} returns the row number for them.
+ <p>
+ Rows can be iterated with a {@link Cursor}:
+ <pre>
+ RDataFrame df = new RDataFrame(c.eval("iris"));
+ int sl = df.columnIndex("Sepal.Length");
+ RDataFrame.Cursor r = df.cursor();
+ while (r.next()) {
+     sum += r.getDouble(sl);
+ }
+ </pre> */
+public class RDataFrame {
+    private final REXPGenericVector frame;
+    private final REXPVector[] columns;
+    private final String[] names;
+    private final int rows;
+    /** row names, <code>null</code> for automatic (compact) row names */
+    private final REXPVector rowNames;
+    /** index of the column names, <code>null</code> until the first lookup */
+    private volatile HashMap<String, Integer> index;
+
+    /** creates a view of a data frame
+     *  @param x data frame, i.e. a generic vector which inherits from class <code>"data.frame"</code>
+     *  @throws REXPMismatchException if <code>x</code> is not a data frame or any of its columns is not a vector */
+    public RDataFrame(REXP x) throws REXPMismatchException {
+        if (!(x instanceof REXPGenericVector) || !x.inherits("data.frame")) {
+            throw new REXPMismatchException(x, "data frame");
+        }
+        frame = (REXPGenericVector) x;
+        int n = frame.length();
+        columns = new REXPVector[n];
+        names = new String[n];
+        String[] nam = null;
+        REXP na = frame.getAttribute("names");
+        if (na != null && na.isString()) {
+            nam = na.asStrings();
+        }
+        for (int i = 0; i < n; i++) {
+            REXP c = frame.elementAt(i);
+            if (!(c instanceof REXPVector)) {
+                throw new REXPMismatchException(x, "data frame (contents must be vectors)");
+            }
+            columns[i] = (REXPVector) c;
+            names[i] = (nam != null && i < nam.length) ? nam[i] : null;
+        }
+
+        REXP rn = frame.getAttribute("row.names");
+        if (rn instanceof REXPInteger && rn.length() == 2 && ((REXPInteger) rn).isNAAt(0)) {
+            rowNames = null; // compact form c(NA, -n)
+            rows = Math.abs(((REXPInteger) rn).getInt(1));
+        } else if (rn instanceof REXPVector) {
+            rowNames = (REXPVector) rn;
+            rows = rowNames.length();
+        } else {
+            rowNames = null;
+            rows = (n > 0) ? columns[0].length() : 0;
+        }
+    }
+
+    /** returns the underlying data frame
+     *  @return data frame */
+    public REXPGenericVector getFrame() {
+        return frame;
+    }
+
+    /** returns the number of rows
+     *  @return number of rows */
+    public int rowCount() {
+        return rows;
+    }
+
+    /** returns the number of columns
+     *  @return number of columns */
+    public int columnCount() {
+        return columns.length;
+    }
+
+    /** returns the column names
+     *  @return copy of the column names */
+    public String[] columnNames() {
+        return names.clone();
+    }
+
+    /** returns the name of a column
+     *  @param col column index (zero-based)
+     *  @return name of the column */
+    public String columnName(int col) {
+        return names[col];
+    }
+
+    /** returns the index of the first column with the given name
+     *  @param name column name
+     *  @return column index or -1 if there is no such column */
+    public int columnIndex(String name) {
+        HashMap<String, Integer> ix = index;
+        if (ix == null) {
+            ix = new HashMap<String, Integer>(names.length * 4 / 3 + 1);
+            for (int i = names.length - 1; i >= 0; i--) { // backwards, so that the first occurrence wins
+                ix.put(names[i], Integer.valueOf(i));
+            }
+            index = ix;
+        }
+        Integer i = ix.get(name);
+        return (i == null) ? -1 : i.intValue();
+    }
+
+    /** returns a column
+     *  @param col column index (zero-based)
+     *  @return column vector */
+    public REXPVector column(int col) {
+        return columns[col];
+    }
+
+    /** returns a column by name
+     *  @param name column name
+     *  @return column vector or <code>null</code> if there is no such column */
+    public REXPVector column(String name) {
+        int i = columnIndex(name);
+        return (i < 0) ? null : columns[i];
+    }
+
+    /** checks whether a column is a factor
+     *  @param col column index (zero-based)
+     *  @return <code>true</code> if the column is a factor */
+    public boolean isFactor(int col) {
+        return columns[col].isFactor();
+    }
+
+    /** returns the levels of a factor column
+     *  @param col column index (zero-based)
+     *  @return levels of the factor
+     *  @throws REXPMismatchException if the column is not a factor */
+    public String[] levels(int col) throws REXPMismatchException {
+        return columns[col].asFactor().levels();
+    }
+
+    /** checks whether the data frame has automatic row names, i.e. the row names are just the row numbers
+     *  @return <code>true</code> for automatic row names */
+    public boolean hasAutomaticRowNames() {
+        return rowNames == null;
+    }
+
+    /** returns the name of a row
+     *  @param row row index (zero-based)
+     *  @return row name; automatic row names are the one-based row number
+     *  @throws REXPMismatchException if the row names cannot be converted to strings */
+    public String rowName(int row) throws REXPMismatchException {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + rows);
+        }
+        return (rowNames == null) ? Integer.toString(row + 1) : rowNames.getString(row);
+    }
+
+    /** returns a cell as double
+     *  @param row row index (zero-based)
+     *  @param col column index (zero-based)
+     *  @return value of the cell
+     *  @throws REXPMismatchException if the column cannot be converted to doubles */
+    public double getDouble(int row, int col) throws REXPMismatchException {
+        return columns[col].getDouble(row);
+    }
+
+    /** returns a cell as integer. For factor columns this is the one-based level index.
+     *  @param row row index (zero-based)
+     *  @param col column index (zero-based)
+     *  @return value of the cell
+     *  @throws REXPMismatchException if the column cannot be converted to integers */
+    public int getInt(int row, int col) throws REXPMismatchException {
+        return columns[col].getInt(row);
+    }
+
+    /** returns a cell as string. For factor columns this is the level.
+     *  @param row row index (zero-based)
+     *  @param col column index (zero-based)
+     *  @return value of the cell
+     *  @throws REXPMismatchException if the column cannot be converted to strings */
+    public String getString(int row, int col) throws REXPMismatchException {
+        return columns[col].getString(row);
+    }
+
+    /** checks whether a cell is NA
+     *  @param row row index (zero-based)
+     *  @param col column index (zero-based)
+     *  @return <code>true</code> if the cell is NA */
+    public boolean isNA(int row, int col) {
+        return columns[col].isNAAt(row);
+    }
+
+    /** creates a cursor positioned before the first row
+     *  @return new cursor */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public String toString() {
+        return "RDataFrame[" + rows + "x" + columns.length + "]";
+    }
+
+    /** cursor over the rows of a data frame. It reads the cells of the current row without creating any objects. */
+    public final class Cursor {
+        private int row = -1;
+
+        private Cursor() { }
+
+        /** advances to the next row
+         *  @return <code>false</code> if there are no more rows */
+        public boolean next() {
+            if (row < rows) {
+                row++;
+            }
+            return row < rows;
+        }
+
+        /** returns the index of the current row
+         *  @return row index (zero-based) */
+        public int getRow() {
+            return row;
+        }
+
+        public double getDouble(int col) throws REXPMismatchException {
+            return columns[col].getDouble(row);
+        }
+
+        public int getInt(int col) throws REXPMismatchException {
+            return columns[col].getInt(row);
+        }
+
+        public String getString(int col) throws REXPMismatchException {
+            return columns[col].getString(row);
+        }
+
+        public boolean isNA(int col) {
+            return columns[col].isNAAt(row);
+        }
+    }
+}
@@ -313,6 +313,16 @@ public class REXP {
      <code>Matrix m=new Matrix(c.eval("matrix(c(1,2,3,4,5,6),2,3)").asDoubleMatrix());</code><br>
      @return 2D array of doubles in the form double[rows][cols] or <code>null</code> if the contents is no 2-dimensional matrix of doubles */
     public double[][] asDoubleMatrix() throws REXPMismatchException {
+        return asMatrix().toArray();
+    }
+
+    /** returns the content of the REXP as a view of a matrix of doubles. Unlike {@link #asDoubleMatrix()} the data is not copied
+     *  for double vectors, the view shares their column-major payload. Double vectors backed by a buffer (e.g. received
+     *  outside of the Java heap) are the exception: their values are copied, so changes to the view are not visible in
+     *  the vector.
+     @return matrix view
+     @throws REXPMismatchException if the contents is no 2-dimensional matrix of doubles */
+    public RMatrix asMatrix() throws REXPMismatchException {
         double[] ct = asDoubles();
         REXP dim = getAttribute("dim");
         if (dim == null) {
@@ -322,17 +332,10 @@ public class REXP {
         if (ds.length != 2) {
             throw new REXPMismatchException(this, "matrix (wrong dimensionality)");
         }
-        int m = ds[0], n = ds[1];
-
-        double[][] r = new double[m][n];
         // R stores matrices as matrix(c(1,2,3,4),2,2) = col1:(1,2), col2:(3,4)
-        // we need to copy everything, since we create 2d array from 1d array
-        int k = 0;
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < m; j++) {
-                r[j][i] = ct[k++];
-            }
+        if ((long) ds[0] * ds[1] > ct.length) {
+            throw new REXPMismatchException(this, "matrix (dim does not match the length)");
         }
-        return r;
+        return new RMatrix(ct, ds[0], ds[1]);
     }
 }
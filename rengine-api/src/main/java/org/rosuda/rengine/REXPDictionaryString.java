@@ -0,0 +1,155 @@
+package org.rosuda.rengine;
+
+import java.util.HashMap;
+
+/** REXPDictionaryString is a character vector which stores its values as codes into a dictionary of distinct values.
+ For vectors with many repeated values, such as categorical data, it needs one <code>int</code> per element instead of
+ one reference (and often one {@link String} object) per element. In R it is an ordinary character vector.
+ <p>
+ {@link #asStrings()} creates the plain array on its first call and keeps it, so code which only needs single elements
+ should use {@link #getString(int)} or the codes. */
+public class REXPDictionaryString extends REXPString {
+    /** code of NA values */
+    public static final int NA = -1;
+
+    private final int[] codes;
+    private final String[] dictionary;
+    /** values as plain array, created on demand */
+    private volatile String[] values;
+
+    /** create a new character vector from codes and a dictionary. The arrays are used directly, not copied.
+     *  @param codes index into the dictionary for each element (zero-based) or {@link #NA}
+     *  @param dictionary distinct values (must not contain <code>null</code>)
+     *  @param attr attributes */
+    public REXPDictionaryString(int[] codes, String[] dictionary, REXPList attr) {
+        super((String[]) null, attr);
+        this.codes = (codes == null) ? new int[0] : codes;
+        this.dictionary = (dictionary == null) ? new String[0] : dictionary;
+    }
+
+    /** dictionary-encodes the given values if they have few distinct values
+     *  @param load values
+     *  @param maxLevels largest acceptable number of distinct values
+     *  @param attr attributes
+     *  @return encoded vector or <code>null</code> if there are more than <code>maxLevels</code> distinct values */
+    public static REXPDictionaryString encode(String[] load, int maxLevels, REXPList attr) {
+        HashMap<String, Integer> ix = new HashMap<String, Integer>();
+        int[] c = new int[load.length];
+        String[] d = new String[Math.min(16, maxLevels)];
+        for (int i = 0; i < load.length; i++) {
+            String s = load[i];
+            if (s == null) {
+                c[i] = NA;
+                continue;
+            }
+            Integer k = ix.get(s);
+            if (k == null) {
+                int n = ix.size();
+                if (n >= maxLevels) {
+                    return null;
+                }
+                if (n == d.length) {
+                    String[] nd = new String[Math.min(n * 2, maxLevels)];
+                    System.arraycopy(d, 0, nd, 0, n);
+                    d = nd;
+                }
+                d[n] = s;
+                k = Integer.valueOf(n);
+                ix.put(s, k);
+            }
+            c[i] = k.intValue();
+        }
+        int n = ix.size();
+        if (n < d.length) {
+            String[] nd = new String[n];
+            System.arraycopy(d, 0, nd, 0, n);
+            d = nd;
+        }
+        return new REXPDictionaryString(c, d, attr);
+    }
+
+    /** create a character vector with the values of a factor; the levels become the dictionary without copying them
+     *  @param f factor
+     *  @return character vector */
+    public static REXPDictionaryString fromFactor(RFactor f) {
+        int[] src = f.asIntegers(0); // may be the array of the factor
+        String[] lv = f.levels();
+        int[] ids = new int[src.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (src[i] < 0 || src[i] >= lv.length) ? NA : src[i];
+        }
+        return new REXPDictionaryString(ids, lv, null);
+    }
+
+    public int length() { return codes.length; }
+
+    /** returns the codes of the elements
+     *  @return index into the dictionary for each element or {@link #NA} */
+    public int[] getCodes() { return codes; }
+
+    /** returns the distinct values
+     *  @return dictionary */
+    public String[] getDictionary() { return dictionary; }
+
+    /** returns the code of an element
+     *  @param index index of the element (zero-based)
+     *  @return index into the dictionary or {@link #NA} */
+    public int getCode(int index) { return codes[index]; }
+
+    public Object asNativeJavaObject() {
+        return asStrings();
+    }
+
+    public String[] asStrings() {
+        String[] v = values;
+        if (v == null) {
+            v = new String[codes.length];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = (codes[i] == NA) ? null : dictionary[codes[i]];
+            }
+            values = v;
+        }
+        return v;
+    }
+
+    public String getString(int index) {
+        int c = codes[index];
+        return (c == NA) ? null : dictionary[c];
+    }
+
+    public boolean isNAAt(int index) { return codes[index] == NA; }
+
+    public boolean[] isNA() {
+        boolean a[] = new boolean[codes.length];
+        int i = 0;
+        while (i < a.length) {
+            a[i] = (codes[i] == NA);
+            i++;
+        }
+        return a;
+    }
+
+    /** return the contents as a factor with the dictionary as levels
+     *  @return the contents as a factor with index base 1 */
+    public RFactor asFactor() {
+        return new RFactor(factorIds(), dictionary, false, 1);
+    }
+
+    /** converts this vector into an R factor with the dictionary as levels; no strings are copied
+     *  @return factor */
+    public REXPFactor toFactor() {
+        return new REXPFactor(factorIds(), dictionary);
+    }
+
+    private int[] factorIds() {
+        int[] ids = new int[codes.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (codes[i] == NA) ? REXPInteger.NA : codes[i] + 1;
+        }
+        return ids;
+    }
+
+    public String toString() {
+        return super.toString() + "[" + dictionary.length + " distinct]";
+    }
+}
@@ -1,27 +1,47 @@
 package org.rosuda.rengine;
 
-/** REXPDouble represents a vector of double precision floating point values. */
+import java.nio.DoubleBuffer;
+
+/** REXPDouble represents a vector of double precision floating point values. The values are either stored in an array
+ or in a (typically direct) {@link DoubleBuffer}; in the latter case {@link #asDoubles()} copies them into a new array
+ on each call, so large vectors should be read through {@link #asDoubleBuffer()} or the element accessors instead. */
 public class REXPDouble extends REXPVector {
     /** NA real value as defined in R. Note: it can NOT be used in comparisons, you must use {@link #isNA(double)} instead. */
     public static final double NA = Double.longBitsToDouble(0x7ff00000000007a2L);
     /** Java screws up the bits in NA real values, so we cannot compare to the real bits used by R (0x7ff00000000007a2L) but use this value which is obtained by passing the bits through Java's double type */
     private static final long NA_bits = Double.doubleToRawLongBits(Double.longBitsToDouble(0x7ff00000000007a2L));
+    /** values, <code>null</code> if the vector is backed by <code>buffer</code> */
     private final double[] payload;
+    /** values if the vector is not backed by an array */
+    private final DoubleBuffer buffer;
 
     /** create real vector of the length 1 with the given value as its first (and only) element */
     public REXPDouble(double load) {
         super();
         payload = new double[] {load};
+        buffer = null;
     }
 
     public REXPDouble(double[] load) {
         super();
         payload = (load == null) ? new double[0] : load;
+        buffer = null;
     }
 
     public REXPDouble(double[] load, REXPList attr) {
         super(attr);
         payload = (load == null) ? new double[0] : load;
+        buffer = null;
+    }
+
+    /** create a real vector backed by a buffer, e.g. a view of received data outside of the Java heap.
+     *  The values from the position to the limit of the buffer are used, they are not copied.
+     *  @param load values
+     *  @param attr attributes */
+    public REXPDouble(DoubleBuffer load, REXPList attr) {
+        super(attr);
+        payload = null;
+        buffer = load.slice();
     }
 
     /** checks whether a given double value is a NA representation in R. Note that NA is NaN but not all NaNs are NA. */
@@ -31,24 +51,37 @@ public class REXPDouble extends REXPVector {
         return (Double.doubleToRawLongBits(value) & 0xfff7ffffffffffffL) == (NA_bits & 0xfff7ffffffffffffL);
     }
 
-    public int length() { return payload.length; }
+    public int length() { return (payload != null) ? payload.length : buffer.limit(); }
 
     public Object asNativeJavaObject() {
-        return payload;
+        return asDoubles();
     }
 
     /** return <code>true</code> */
     public boolean isNumeric() { return true; }
 
-    /** returns the values represented by this vector */
-    public double[] asDoubles() { return payload; }
+    /** returns the values represented by this vector. For vectors backed by a buffer this creates a copy. */
+    public double[] asDoubles() {
+        if (payload != null) {
+            return payload;
+        }
+        double[] d = new double[buffer.limit()];
+        copyInto(d, 0);
+        return d;
+    }
+
+    /** returns the values represented by this vector as buffer which shares the values with this vector
+     *  @return buffer positioned at the first value */
+    public DoubleBuffer asDoubleBuffer() {
+        return (payload != null) ? DoubleBuffer.wrap(payload) : buffer.duplicate();
+    }
 
     /** converts the values of this vector into integers by cast */
     public int[] asIntegers() {
-        int[] a = new int[payload.length];
+        int[] a = new int[length()];
         int i = 0;
-        while (i < payload.length) {
-            a[i] = (int) payload[i];
+        while (i < a.length) {
+            a[i] = (int) getDouble(i);
             i++;
         }
         return a;
@@ -56,21 +89,38 @@ public class REXPDouble extends REXPVector {
 
     /** converts the values of this vector into strings */
     public String[] asStrings() {
-        String[] s = new String[payload.length];
+        String[] s = new String[length()];
         int i = 0;
-        while (i < payload.length) {
-            s[i] = "" + payload[i];
+        while (i < s.length) {
+            s[i] = "" + getDouble(i);
             i++;
         }
         return s;
     }
 
+    public double getDouble(int index) { return (payload != null) ? payload[index] : buffer.get(index); }
+
+    public int getInt(int index) { return (int) getDouble(index); }
+
+    public String getString(int index) { return "" + getDouble(index); }
+
+    public boolean isNAAt(int index) { return isNA(getDouble(index)); }
+
+    public void copyInto(double[] dst, int off) {
+        if (payload != null) {
+            System.arraycopy(payload, 0, dst, off, payload.length);
+        } else {
+            DoubleBuffer b = buffer.duplicate();
+            b.get(dst, off, b.remaining());
+        }
+    }
+
     /** returns a boolean vector of the same length as this vector with <code>true</code> for NA values and <code>false</code> for any other values (including NaNs) */
     public boolean[] isNA() {
-        boolean a[] = new boolean[payload.length];
+        boolean a[] = new boolean[length()];
         int i = 0;
         while (i < a.length) {
-            a[i] = isNA(payload[i]);
+            a[i] = isNA(getDouble(i));
             i++;
         }
         return a;
@@ -79,14 +129,15 @@ public class REXPDouble extends REXPVector {
     public String toDebugString() {
         StringBuffer sb = new StringBuffer(super.toDebugString() + "{");
         int i = 0;
-        while (i < payload.length && i < maxDebugItems) {
+        int n = length();
+        while (i < n && i < maxDebugItems) {
             if (i > 0) {
                 sb.append(",");
             }
-            sb.append(payload[i]);
+            sb.append(getDouble(i));
             i++;
         }
-        if (i < payload.length) {
+        if (i < n) {
             sb.append(",..");
         }
         return sb.toString() + "}";
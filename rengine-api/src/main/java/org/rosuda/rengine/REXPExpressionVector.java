@@ -11,5 +11,10 @@ public class REXPExpressionVector extends REXPGenericVector {
      *  @param attr attributes for the R object */
     public REXPExpressionVector(RList list, REXPList attr) { super(list, attr); }
 
+    /** create a new vector of expressions from an array-backed list of expressions.
+     *  @param list list of expressions to store in this vector
+     *  @param attr attributes for the R object */
+    public REXPExpressionVector(RArrayList list, REXPList attr) { super(list, attr); }
+
     public boolean isExpression() { return true; }
 }
@@ -64,6 +64,10 @@ public class REXPFactor extends REXPInteger {
         return factor.asStrings();
     }
 
+    public String getString(int index) {
+        return factor.at(index);
+    }
+
     public Object asNativeJavaObject() {
         return asStrings();
     }
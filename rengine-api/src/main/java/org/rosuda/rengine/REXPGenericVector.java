@@ -5,8 +5,10 @@ import java.util.Vector;
 
 /** REXPGenericVector represents a generic vector in R. Its elements can be typically of any {@link REXP} type. */
 public class REXPGenericVector extends REXPVector {
-    /** payload */
-    private final RList payload;
+    /** payload, <code>null</code> if the vector was created from an {@link RArrayList} and {@link #asList()} has not been called yet */
+    private volatile RList payload;
+    /** array-backed payload, <code>null</code> once the payload was converted to an {@link RList} */
+    private volatile RArrayList array;
 
     /** creates a new generic vector from a list. If the list is named, the <code>"names"</code> attribute is created automatically from it.
      *  @param list list to create the vector from */
@@ -29,16 +31,25 @@ public class REXPGenericVector extends REXPVector {
         payload = (list == null) ? new RList() : list;
     }
 
+    /** creates a new generic vector from an array-backed list. Note that the names in the list are ignored as they are expected to be defined by the attributes parameter.
+     *  The list is converted to an {@link RList} only if {@link #asList()} is called.
+     *  @param list list to create the vector from
+     *  @param attr attributes */
+    public REXPGenericVector(RArrayList list, REXPList attr) {
+        super(attr);
+        array = (list == null) ? new RArrayList(0, false) : list;
+    }
+
     /* generic vectors are converted either to a <code>Map</code> (if it is a named vector and there are no duplicate names) or a <code>Vector</code>. The contained elements are converted using <code>asNativeJavaObject</code> recursively. */
     public Object asNativeJavaObject() throws REXPMismatchException {
         // we need to convert the inside as well
-        int n = payload.size();
+        int n = length();
 
         // named list -> map but only if
         //  a) all names are present
         //  b) there are no duplicates in the names
-        if (payload.isNamed()) {
-            String[] names = payload.keys();
+        if (isNamedList()) {
+            String[] names = keys();
             if (names.length == n) {
                 HashMap map = new HashMap();
                 boolean valid = true;
@@ -47,7 +58,7 @@ public class REXPGenericVector extends REXPVector {
                         valid = false;
                         break;
                     }
-                    Object value = payload.elementAt(i);
+                    Object value = elementAt(i);
                     if (value != null) {
                         value = ((REXP) value).asNativeJavaObject();
                     }
@@ -62,7 +73,7 @@ public class REXPGenericVector extends REXPVector {
         // otherwise drop names and use just a vector
         Vector v = new Vector();
         for (int i = 0; i < n; i++) {
-            Object value = payload.elementAt(i);
+            Object value = elementAt(i);
             if (value != null) {
                 value = ((REXP) value).asNativeJavaObject();
             }
@@ -72,29 +83,74 @@ public class REXPGenericVector extends REXPVector {
         return v;
     }
 
-    public int length() { return payload.size(); }
+    public int length() {
+        RArrayList a = array;
+        return (a != null) ? a.size() : payload.size();
+    }
+
+    /** returns an element of the vector without converting the payload to an {@link RList}
+     *  @param i index of the element (zero-based)
+     *  @return element or <code>null</code> if the index is out of bounds */
+    public REXP elementAt(int i) {
+        RArrayList a = array;
+        return (a != null) ? a.at(i) : asList().at(i);
+    }
+
+    /** returns the element with the given name without converting the payload to an {@link RList}. As in R the first matching element is returned.
+     *  @param name name of the element
+     *  @return element or <code>null</code> if the vector is unnamed or the name was not found */
+    public REXP elementAt(String name) {
+        RArrayList a = array;
+        return (a != null) ? a.at(name) : asList().at(name);
+    }
+
+    private boolean isNamedList() {
+        RArrayList a = array;
+        return (a != null) ? a.isNamed() : payload.isNamed();
+    }
+
+    private String[] keys() {
+        RArrayList a = array;
+        return (a != null) ? a.keys() : payload.keys();
+    }
 
     public boolean isList() { return true; }
 
     public boolean isRecursive() { return true; }
 
-    public RList asList() { return payload; }
+    /** returns the contents as {@link RList}. A vector created from an {@link RArrayList} converts it on the first call;
+     *  from then on the returned list holds the contents, so changes to it are reflected by the vector.
+     *  @return contents of the vector */
+    public RList asList() {
+        RList l = payload;
+        if (l == null) {
+            synchronized (this) {
+                l = payload;
+                if (l == null) {
+                    payload = l = array.toRList();
+                    array = null;
+                }
+            }
+        }
+        return l;
+    }
 
     public String toString() {
-        return super.toString() + (asList().isNamed() ? "named" : "");
+        return super.toString() + (isNamedList() ? "named" : "");
     }
 
     public String toDebugString() {
         StringBuffer sb = new StringBuffer(super.toDebugString() + "{");
         int i = 0;
-        while (i < payload.size() && i < maxDebugItems) {
+        int n = length();
+        while (i < n && i < maxDebugItems) {
             if (i > 0) {
                 sb.append(",\n");
             }
-            sb.append(payload.at(i).toDebugString());
+            sb.append(elementAt(i).toDebugString());
             i++;
         }
-        if (i < payload.size()) {
+        if (i < n) {
             sb.append(",..");
         }
         return sb.toString() + "}";
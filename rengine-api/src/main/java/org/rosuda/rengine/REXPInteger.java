@@ -1,27 +1,44 @@
 package org.rosuda.rengine;
 
-/** REXPDouble represents a vector of integer values. */
+import java.nio.IntBuffer;
+
+/** REXPDouble represents a vector of integer values. The values are either stored in an array or in a (typically
+ direct) {@link IntBuffer}; in the latter case {@link #asIntegers()} copies them into a new array on each call. */
 public class REXPInteger extends REXPVector {
     /** NA integer value as defined in R. Unlike its real equivalent this one can be used in comparisons, although {@link #isNA(int) } is provided for consistency. */
     public static final int NA = -2147483648;
+    /** values, <code>null</code> if the vector is backed by <code>buffer</code> */
     final int[] payload;
+    /** values if the vector is not backed by an array */
+    private final IntBuffer buffer;
 
     /** create integer vector of the length 1 with the given value as its first (and only) element */
     public REXPInteger(int load) {
         super();
         payload = new int[] {load};
+        buffer = null;
     }
 
     /** create integer vector with the payload specified by <code>load</code> */
     public REXPInteger(int[] load) {
         super();
         payload = (load == null) ? new int[0] : load;
+        buffer = null;
     }
 
     /** create integer vector with the payload specified by <code>load</code> and attributes <code>attr</code> */
     public REXPInteger(int[] load, REXPList attr) {
         super(attr);
         payload = (load == null) ? new int[0] : load;
+        buffer = null;
+    }
+
+    /** create integer vector backed by a buffer, e.g. a view of received data outside of the Java heap.
+     *  The values from the position to the limit of the buffer are used, they are not copied. */
+    public REXPInteger(IntBuffer load, REXPList attr) {
+        super(attr);
+        payload = null;
+        buffer = load.slice();
     }
 
     public static boolean isNA(int value) {
@@ -29,23 +46,37 @@ public class REXPInteger extends REXPVector {
     }
 
     public Object asNativeJavaObject() {
-        return payload;
+        return asIntegers();
     }
 
-    public int length() { return payload.length; }
+    public int length() { return (payload != null) ? payload.length : buffer.limit(); }
 
     public boolean isInteger() { return true; }
 
     public boolean isNumeric() { return true; }
 
-    public int[] asIntegers() { return payload; }
+    /** returns the values represented by this vector. For vectors backed by a buffer this creates a copy. */
+    public int[] asIntegers() {
+        if (payload != null) {
+            return payload;
+        }
+        int[] d = new int[buffer.limit()];
+        copyInto(d, 0);
+        return d;
+    }
+
+    /** returns the values represented by this vector as buffer which shares the values with this vector
+     *  @return buffer positioned at the first value */
+    public IntBuffer asIntBuffer() {
+        return (payload != null) ? IntBuffer.wrap(payload) : buffer.duplicate();
+    }
 
     /** returns the contents of this vector as doubles */
     public double[] asDoubles() {
-        double[] d = new double[payload.length];
+        double[] d = new double[length()];
         int i = 0;
-        while (i < payload.length) {
-            d[i] = (double) payload[i];
+        while (i < d.length) {
+            d[i] = (double) getInt(i);
             i++;
         }
         return d;
@@ -53,20 +84,37 @@ public class REXPInteger extends REXPVector {
 
     /** returns the contents of this vector as strings */
     public String[] asStrings() {
-        String[] s = new String[payload.length];
+        String[] s = new String[length()];
         int i = 0;
-        while (i < payload.length) {
-            s[i] = "" + payload[i];
+        while (i < s.length) {
+            s[i] = "" + getInt(i);
             i++;
         }
         return s;
     }
 
+    public double getDouble(int index) { return (double) getInt(index); }
+
+    public int getInt(int index) { return (payload != null) ? payload[index] : buffer.get(index); }
+
+    public String getString(int index) { return "" + getInt(index); }
+
+    public boolean isNAAt(int index) { return getInt(index) == NA; }
+
+    public void copyInto(int[] dst, int off) {
+        if (payload != null) {
+            System.arraycopy(payload, 0, dst, off, payload.length);
+        } else {
+            IntBuffer b = buffer.duplicate();
+            b.get(dst, off, b.remaining());
+        }
+    }
+
     public boolean[] isNA() {
-        boolean a[] = new boolean[payload.length];
+        boolean a[] = new boolean[length()];
         int i = 0;
         while (i < a.length) {
-            a[i] = (payload[i] == NA);
+            a[i] = (getInt(i) == NA);
             i++;
         }
         return a;
@@ -75,14 +123,15 @@ public class REXPInteger extends REXPVector {
     public String toDebugString() {
         StringBuffer sb = new StringBuffer(super.toDebugString() + "{");
         int i = 0;
-        while (i < payload.length && i < maxDebugItems) {
+        int n = length();
+        while (i < n && i < maxDebugItems) {
             if (i > 0) {
                 sb.append(",");
             }
-            sb.append(payload[i]);
+            sb.append(getInt(i));
             i++;
         }
-        if (i < payload.length) {
+        if (i < n) {
             sb.append(",..");
         }
         return sb.toString() + "}";
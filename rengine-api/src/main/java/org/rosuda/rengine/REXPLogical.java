@@ -97,6 +97,20 @@ public class REXPLogical extends REXPVector {
         return s;
     }
 
+    public double getDouble(int index) {
+        return (payload[index] == NA) ? REXPDouble.NA : ((payload[index] == FALSE) ? 0.0 : 1.0);
+    }
+
+    public int getInt(int index) {
+        return (payload[index] == NA) ? REXPInteger.NA : ((payload[index] == FALSE) ? 0 : 1);
+    }
+
+    public String getString(int index) {
+        return (payload[index] == NA) ? "NA" : ((payload[index] == FALSE) ? "FALSE" : "TRUE");
+    }
+
+    public boolean isNAAt(int index) { return payload[index] == NA; }
+
     public boolean[] isNA() {
         boolean a[] = new boolean[payload.length];
         int i = 0;
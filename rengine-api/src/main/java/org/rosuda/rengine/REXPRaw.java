@@ -1,14 +1,21 @@
 package org.rosuda.rengine;
 
-/** REXPRaw represents a raw vector in R - essentially a sequence of bytes. */
+import java.nio.ByteBuffer;
+
+/** REXPRaw represents a raw vector in R - essentially a sequence of bytes. The bytes are either stored in an array or
+ in a (typically direct) {@link ByteBuffer}; in the latter case {@link #asBytes()} copies them into a new array on each call. */
 public class REXPRaw extends REXPVector {
+    /** bytes, <code>null</code> if the vector is backed by <code>buffer</code> */
     private final byte[] payload;
+    /** bytes if the vector is not backed by an array */
+    private final ByteBuffer buffer;
 
     /** create a new raw vector with the specified payload
      *  @param load payload of the raw vector */
     public REXPRaw(byte[] load) {
         super();
         payload = (load == null) ? new byte[0] : load;
+        buffer = null;
     }
 
     /** create a new raw vector with the specified payload and attributes
@@ -17,15 +24,40 @@ public class REXPRaw extends REXPVector {
     public REXPRaw(byte[] load, REXPList attr) {
         super(attr);
         payload = (load == null) ? new byte[0] : load;
+        buffer = null;
     }
 
-    public int length() { return payload.length; }
+    /** create a new raw vector backed by a buffer, e.g. a view of received data outside of the Java heap.
+     *  The bytes from the position to the limit of the buffer are used, they are not copied.
+     *  @param load payload of the raw vector
+     *  @param attr attributes for the resulting R object */
+    public REXPRaw(ByteBuffer load, REXPList attr) {
+        super(attr);
+        payload = null;
+        buffer = load.slice();
+    }
+
+    public int length() { return (payload != null) ? payload.length : buffer.limit(); }
 
     public boolean isRaw() { return true; }
 
-    public byte[] asBytes() { return payload; }
+    /** returns the bytes of this vector. For vectors backed by a buffer this creates a copy. */
+    public byte[] asBytes() {
+        if (payload != null) {
+            return payload;
+        }
+        byte[] b = new byte[buffer.limit()];
+        buffer.duplicate().get(b);
+        return b;
+    }
+
+    /** returns the bytes of this vector as buffer which shares them with this vector
+     *  @return buffer positioned at the first byte */
+    public ByteBuffer asByteBuffer() {
+        return (payload != null) ? ByteBuffer.wrap(payload) : buffer.duplicate();
+    }
 
     public Object asNativeJavaObject() {
-        return payload;
+        return asBytes();
     }
 }
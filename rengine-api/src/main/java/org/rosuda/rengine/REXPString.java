@@ -39,6 +39,10 @@ public class REXPString extends REXPVector {
         return payload;
     }
 
+    public String getString(int index) { return payload[index]; }
+
+    public boolean isNAAt(int index) { return payload[index] == null; }
+
     public boolean[] isNA() {
         boolean a[] = new boolean[payload.length];
         int i = 0;
@@ -52,14 +56,15 @@ public class REXPString extends REXPVector {
     public String toDebugString() {
         StringBuffer sb = new StringBuffer(super.toDebugString() + "{");
         int i = 0;
-        while (i < payload.length && i < maxDebugItems) {
+        int n = length();
+        while (i < n && i < maxDebugItems) {
             if (i > 0) {
                 sb.append(",");
             }
-            sb.append("\"" + payload[i] + "\"");
+            sb.append("\"" + getString(i) + "\"");
             i++;
         }
-        if (i < payload.length) {
+        if (i < n) {
             sb.append(",..");
         }
         return sb.toString() + "}";
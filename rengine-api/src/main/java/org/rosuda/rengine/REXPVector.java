@@ -21,6 +21,60 @@ public abstract class REXPVector extends REXP {
         return a;
     }
 
+    /** checks whether a single element is NA. Unlike {@link #isNA()} no array is allocated.
+     *  @param index index of the element (zero-based)
+     *  @return <code>true</code> if the element is NA */
+    public boolean isNAAt(int index) {
+        return false;
+    }
+
+    /** returns a single element as double, converted in the same way as by {@link #asDoubles()} but without
+     *  allocating the whole array
+     *  @param index index of the element (zero-based)
+     *  @return element as double
+     *  @throws REXPMismatchException if the vector cannot be converted to doubles */
+    public double getDouble(int index) throws REXPMismatchException {
+        throw new REXPMismatchException(this, "double");
+    }
+
+    /** returns a single element as integer, converted in the same way as by {@link #asIntegers()}
+     *  @param index index of the element (zero-based)
+     *  @return element as integer
+     *  @throws REXPMismatchException if the vector cannot be converted to integers */
+    public int getInt(int index) throws REXPMismatchException {
+        throw new REXPMismatchException(this, "int");
+    }
+
+    /** returns a single element as string, converted in the same way as by {@link #asStrings()}
+     *  @param index index of the element (zero-based)
+     *  @return element as string
+     *  @throws REXPMismatchException if the vector cannot be converted to strings */
+    public String getString(int index) throws REXPMismatchException {
+        throw new REXPMismatchException(this, "String");
+    }
+
+    /** copies all elements converted to doubles into an existing array
+     *  @param dst destination array, must have room for {@link #length()} elements starting at <code>off</code>
+     *  @param off offset in the destination array
+     *  @throws REXPMismatchException if the vector cannot be converted to doubles */
+    public void copyInto(double[] dst, int off) throws REXPMismatchException {
+        int n = length();
+        for (int i = 0; i < n; i++) {
+            dst[off + i] = getDouble(i);
+        }
+    }
+
+    /** copies all elements converted to integers into an existing array
+     *  @param dst destination array, must have room for {@link #length()} elements starting at <code>off</code>
+     *  @param off offset in the destination array
+     *  @throws REXPMismatchException if the vector cannot be converted to integers */
+    public void copyInto(int[] dst, int off) throws REXPMismatchException {
+        int n = length();
+        for (int i = 0; i < n; i++) {
+            dst[off + i] = getInt(i);
+        }
+    }
+
     public String toString() {
         return super.toString() + "[" + length() + "]";
     }
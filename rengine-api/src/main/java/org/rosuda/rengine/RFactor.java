@@ -4,7 +4,8 @@ package org.rosuda.rengine;
 // Copyright (C) 2007 Simon Urbanek
 // --- for licensing information see LICENSE file in the original distribution ---
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /** representation of a factor variable. In R there is no actual object
  type called "factor", instead it is coded as an int vector with a list
@@ -17,6 +18,8 @@ public class RFactor {
     private final int[] ids;
     private final String[] levels;
     private int index_base;
+    /** zero-based position of each level name, <code>null</code> until the first lookup by name */
+    private volatile HashMap<String, Integer> levelMap;
 
     /** create a new, empty factor var */
     public RFactor() {
@@ -57,24 +60,26 @@ public class RFactor {
         if (c == null) {
             c = new String[0];
         }
-        Vector lv = new Vector();
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        ArrayList<String> lv = new ArrayList<String>();
         ids = new int[c.length];
         int i = 0;
         while (i < c.length) {
-            int ix = (c[i] == null) ? -1 : lv.indexOf(c[i]);
-            if (ix < 0 && c[i] != null) {
-                ix = lv.size();
-                lv.add(c[i]);
+            if (c[i] == null) {
+                ids[i] = REXPInteger.NA;
+            } else {
+                Integer ix = map.get(c[i]);
+                if (ix == null) {
+                    ix = Integer.valueOf(lv.size());
+                    map.put(c[i], ix);
+                    lv.add(c[i]);
+                }
+                ids[i] = ix.intValue() + index_base;
             }
-            ids[i] = (ix < 0) ? REXPInteger.NA : (ix + index_base);
-            i++;
-        }
-        levels = new String[lv.size()];
-        i = 0;
-        while (i < levels.length) {
-            levels[i] = (String) lv.elementAt(i);
             i++;
         }
+        levels = lv.toArray(new String[lv.size()]);
+        levelMap = map;
     }
 
     /** same as <code>RFactor(c, 1)</code> */
@@ -110,17 +115,7 @@ public class RFactor {
     /** return <code>true</code> if the factor contains the given level (it is NOT the same as levelIndex==-1!) */
     public boolean contains(String name) {
         int li = levelIndex(name);
-        if (li < 0) {
-            return false;
-        }
-        int i = 0;
-        while (i < ids.length) {
-            if (ids[i] == li) {
-                return true;
-            }
-            i++;
-        }
-        return false;
+        return li >= 0 && contains(li);
     }
 
     /** count the number of occurences of a given level index */
@@ -138,7 +133,8 @@ public class RFactor {
 
     /** count the number of occurences of a given level name */
     public int count(String name) {
-        return count(levelIndex(name));
+        int li = levelIndex(name);
+        return (li < 0) ? 0 : count(li);
     }
 
     /** return an array with level counts. */
@@ -155,19 +151,78 @@ public class RFactor {
         return c;
     }
 
+    /** count the occurences of several levels in one pass over the cases
+     @param names level names
+     @return number of cases of each given level, 0 for names which are not levels of this factor */
+    public int[] counts(String[] names) {
+        int[] all = counts();
+        int[] c = new int[names.length];
+        int i = 0;
+        while (i < names.length) {
+            int li = levelIndex(names[i]);
+            c[i] = (li < 0) ? 0 : all[li - index_base];
+            i++;
+        }
+        return c;
+    }
+
     /** return the index of a given level name or -1 if it doesn't exist */
     public int levelIndex(String name) {
         if (name == null) {
             return -1;
         }
-        int i = 0;
-        while (i < levels.length) {
-            if (levels[i] != null && levels[i].equals(name)) {
-                return i + index_base;
+        Integer i = levelMap().get(name);
+        return (i == null) ? -1 : (i.intValue() + index_base);
+    }
+
+    /** returns the map from level names to their zero-based position, building it on first use */
+    private HashMap<String, Integer> levelMap() {
+        HashMap<String, Integer> m = levelMap;
+        if (m == null) {
+            m = new HashMap<String, Integer>(levels.length * 4 / 3 + 1);
+            int i = levels.length - 1;
+            while (i >= 0) { // backwards, so that the first occurrence wins
+                if (levels[i] != null) {
+                    m.put(levels[i], Integer.valueOf(i));
+                }
+                i--;
+            }
+            levelMap = m;
+        }
+        return m;
+    }
+
+    /** create a factor with the same cases coded against a different set of levels, e.g. to make factors comparable
+     or to match the levels expected by a model. Cases whose level is not in <code>newLevels</code> become NA.
+     The cases are recoded in one pass through a table which maps each old level to its new index.
+     @param newLevels levels of the new factor; the array is used directly, not copied
+     @return new factor with the same index base as this one */
+    public RFactor remap(String[] newLevels) {
+        HashMap<String, Integer> target = new HashMap<String, Integer>(newLevels.length * 4 / 3 + 1);
+        int i = newLevels.length - 1;
+        while (i >= 0) {
+            if (newLevels[i] != null) {
+                target.put(newLevels[i], Integer.valueOf(i));
             }
+            i--;
+        }
+        int[] tr = new int[levels.length];
+        i = 0;
+        while (i < levels.length) {
+            Integer ix = (levels[i] == null) ? null : target.get(levels[i]);
+            tr[i] = (ix == null) ? REXPInteger.NA : (ix.intValue() + index_base);
+            i++;
+        }
+        int[] ni = new int[ids.length];
+        i = 0;
+        while (i < ids.length) {
+            final int li = ids[i] - index_base;
+            ni[i] = (li >= 0 && li < tr.length) ? tr[li] : REXPInteger.NA;
             i++;
         }
-        return -1;
+        RFactor f = new RFactor(ni, newLevels, false, index_base);
+        f.levelMap = target;
+        return f;
     }
 
     /** return the list of levels (0-based, use {@link #indexBase} correction if you want to access it by level index) */
@@ -4,12 +4,17 @@ package org.rosuda.rengine;
 // Copyright (C) 2004,2007,2008 Simon Urbanek
 
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.Vector;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /** implementation of R-lists<br>
  All lists (dotted-pair lists, language lists, expressions and vectors) are regarded as named generic vectors.
@@ -17,9 +22,16 @@ import java.util.Vector;
 
  This class inofficially implements the Map interface. Unfortunately a conflict in the Java iterface classes Map and List doesn't allow us to implement both officially. Most prominently the Map 'remove' method had to be renamed to removeByKey.
 
+ Lookups by name use a hash index which is built on first use and kept up to date when names are appended or set, so
+ they take constant time even for long lists; other modifications of the names cause it to be rebuilt on the next lookup.
+ As in R the first element with a given name is found if names are duplicated.
+
  @version $Id$
  */
 public class RList extends Vector implements List {
+    /** lists with fewer names are searched linearly, which is faster than building an index */
+    private static final int INDEX_THRESHOLD = 8;
+
     public Vector names;
 
     /** constructs an empty list */
@@ -43,7 +55,7 @@ public class RList extends Vector implements List {
         super(initSize);
         names = null;
         if (hasNames) {
-            names = new Vector(initSize);
+            names = new Names(initSize);
         }
     }
 
@@ -60,7 +72,7 @@ public class RList extends Vector implements List {
     public RList(REXP[] contents, String[] names) {
         this(contents);
         if (names != null && names.length > 0) {
-            this.names = new Vector(names.length);
+            this.names = new Names(names.length);
             int i = 0;
             while (i < names.length) {
                 this.names.add(names[i++]);
@@ -77,7 +89,7 @@ public class RList extends Vector implements List {
     public RList(Collection contents, String[] names) {
         this(contents);
         if (names != null && names.length > 0) {
-            this.names = new Vector(names.length);
+            this.names = new Names(names.length);
             int i = 0;
             while (i < names.length) {
                 this.names.add(names[i++]);
@@ -94,7 +106,7 @@ public class RList extends Vector implements List {
     public RList(Collection contents, Collection names) {
         this(contents);
         if (names != null && names.size() > 0) {
-            this.names = new Vector(names);
+            this.names = new Names(names);
             while (this.names.size() < size()) {
                 this.names.add(null);
             }
@@ -112,16 +124,27 @@ public class RList extends Vector implements List {
      @return value which corresponds to the given key or
      <code>null</code> if the list is unnamed or key not found */
     public REXP at(String v) {
-        if (names == null) {
-            return null;
-        }
-        int i = names.indexOf(v);
+        int i = indexOfKey(v);
         if (i < 0) {
             return null;
         }
         return (REXP) elementAt(i);
     }
 
+    /** returns the index of the first element with the given name
+     @param key name
+     @return index or -1 if the list is unnamed or the name was not found */
+    public int indexOfKey(Object key) {
+        Vector n = names;
+        if (n == null) {
+            return -1;
+        }
+        if (!(n instanceof Names) || n.size() < INDEX_THRESHOLD) { // names assigned directly are not indexed
+            return n.indexOf(key);
+        }
+        return ((Names) n).indexOfName(key);
+    }
+
     /** get element at the specified position
      @param i index
      @return value at the index or <code>null</code> if the index is out of bounds */
@@ -144,7 +167,7 @@ public class RList extends Vector implements List {
             return;
         }
         if (names == null) {
-            names = new Vector();
+            names = new Names(10);
         }
         if (names.size() < size()) {
             names.setSize(size());
@@ -289,7 +312,7 @@ public class RList extends Vector implements List {
     // --- Map interface
 
     public boolean containsKey(Object key) {
-        return (names == null) ? false : names.contains(key);
+        return indexOfKey(key) >= 0;
     }
 
     public boolean containsValue(Object value) {
@@ -318,16 +341,14 @@ public class RList extends Vector implements List {
             add(value);
             return null;
         }
-        if (names != null) {
-            int p = names.indexOf(key);
-            if (p >= 0) {
-                return super.set(p, value);
-            }
+        int p = indexOfKey(key);
+        if (p >= 0) {
+            return super.set(p, value);
         }
         int i = size();
         super.add(value);
         if (names == null) {
-            names = new Vector(i + 1);
+            names = new Names(i + 1);
         }
         while (names.size() < i) {
             names.add(null);
@@ -391,16 +412,12 @@ public class RList extends Vector implements List {
     }
 
     public Object removeByKey(Object key) {
-        if (names == null) {
-            return null;
-        }
-        int i = names.indexOf(key);
+        int i = indexOfKey(key);
         if (i < 0) {
             return null;
         }
         Object o = elementAt(i);
-        removeElementAt(i);
-        names.removeElementAt(i);
+        removeElementAt(i); // removes the name as well
         return o;
     }
 
@@ -412,4 +429,188 @@ public class RList extends Vector implements List {
     public String toString() {
         return "RList" + super.toString() + "{" + (isNamed() ? "named," : "") + size() + "}";
     }
+
+    /** vector of names which keeps an index of the first occurrence of each name. Appending or setting names updates
+     the index in place, all other modifications drop it, so that it is rebuilt on the next lookup. */
+    private static final class Names extends Vector {
+        private static final long serialVersionUID = 2912482351744946226L;
+
+        /** maps each name to the index of its first occurrence, <code>null</code> if it has to be rebuilt */
+        private transient HashMap<Object, Integer> first;
+
+        Names(int initialCapacity) {
+            super(initialCapacity);
+        }
+
+        Names(Collection c) {
+            super(c);
+        }
+
+        /** returns the index of the first occurrence of a name, building the index if necessary
+         @param name name
+         @return index or -1 if the name does not occur */
+        synchronized int indexOfName(Object name) {
+            if (first == null) {
+                first = new HashMap<Object, Integer>(elementCount * 4 / 3 + 1);
+                for (int i = elementCount - 1; i >= 0; i--) { // backwards, so that the first occurrence wins
+                    first.put(elementData[i], Integer.valueOf(i));
+                }
+            }
+            Integer i = first.get(name);
+            return (i == null) ? -1 : i.intValue();
+        }
+
+        /** adds the names from the given position on to the index, they were just appended */
+        private void appended(int from) {
+            if (first != null) {
+                for (int i = from; i < elementCount; i++) {
+                    first.putIfAbsent(elementData[i], Integer.valueOf(i));
+                }
+            }
+        }
+
+        /** updates the index after the name at the given position was replaced */
+        private void replaced(int i, Object old) {
+            if (first == null) {
+                return;
+            }
+            Object e = elementData[i];
+            Integer p = first.get(old);
+            if (p != null && p.intValue() == i && !Objects.equals(old, e)) {
+                int next = indexOf(old, i + 1);
+                if (next < 0) {
+                    first.remove(old);
+                } else {
+                    first.put(old, Integer.valueOf(next));
+                }
+            }
+            p = first.get(e);
+            if (p == null || p.intValue() > i) {
+                first.put(e, Integer.valueOf(i));
+            }
+        }
+
+        private void changed() {
+            first = null;
+        }
+
+        public synchronized Object set(int index, Object element) {
+            Object old = super.set(index, element);
+            replaced(index, old);
+            return old;
+        }
+
+        public synchronized void setElementAt(Object obj, int index) {
+            Object old = elementAt(index);
+            super.setElementAt(obj, index);
+            replaced(index, old);
+        }
+
+        public synchronized boolean add(Object e) {
+            super.add(e);
+            appended(elementCount - 1);
+            return true;
+        }
+
+        public void add(int index, Object element) {
+            insertElementAt(element, index);
+        }
+
+        public synchronized void addElement(Object obj) {
+            super.addElement(obj);
+            appended(elementCount - 1);
+        }
+
+        public synchronized void insertElementAt(Object obj, int index) {
+            boolean append = index == elementCount;
+            super.insertElementAt(obj, index);
+            if (append) {
+                appended(index);
+            } else {
+                changed();
+            }
+        }
+
+        public synchronized boolean addAll(Collection c) {
+            int from = elementCount;
+            boolean ch = super.addAll(c);
+            appended(from);
+            return ch;
+        }
+
+        public synchronized boolean addAll(int index, Collection c) {
+            changed();
+            return super.addAll(index, c);
+        }
+
+        public synchronized Object remove(int index) {
+            changed();
+            return super.remove(index);
+        }
+
+        public boolean remove(Object o) {
+            changed();
+            return super.remove(o);
+        }
+
+        public synchronized boolean removeElement(Object obj) {
+            changed();
+            return super.removeElement(obj);
+        }
+
+        public synchronized void removeElementAt(int index) {
+            changed();
+            super.removeElementAt(index);
+        }
+
+        public synchronized void removeAllElements() {
+            changed();
+            super.removeAllElements();
+        }
+
+        public void clear() {
+            changed();
+            super.clear();
+        }
+
+        public synchronized boolean removeAll(Collection c) {
+            changed();
+            return super.removeAll(c);
+        }
+
+        public synchronized boolean retainAll(Collection c) {
+            changed();
+            return super.retainAll(c);
+        }
+
+        public synchronized boolean removeIf(Predicate filter) {
+            changed();
+            return super.removeIf(filter);
+        }
+
+        public synchronized void replaceAll(UnaryOperator operator) {
+            changed();
+            super.replaceAll(operator);
+        }
+
+        public synchronized void sort(Comparator c) {
+            changed();
+            super.sort(c);
+        }
+
+        public synchronized void setSize(int newSize) {
+            int from = elementCount;
+            super.setSize(newSize);
+            if (newSize >= from) {
+                appended(from);
+            } else {
+                changed();
+            }
+        }
+
+        protected synchronized void removeRange(int fromIndex, int toIndex) {
+            changed();
+            super.removeRange(fromIndex, toIndex);
+        }
+    }
 }
@@ -0,0 +1,232 @@
+package org.rosuda.rengine;
+
+import java.nio.DoubleBuffer;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/** view of a numeric matrix stored in column-major order as R does (<code>matrix(c(1,2,3,4),2,2)</code> has the
+ columns <code>(1,2)</code> and <code>(3,4)</code>). Unlike {@link REXP#asDoubleMatrix()} and
+ {@link REXP#createDoubleMatrix(double[][])} it neither copies nor transposes the data: a view obtained by
+ {@link REXP#asMatrix()} shares the payload of the {@link REXPDouble} (unless the vector is backed by a buffer, whose
+ values are copied) and {@link #toREXP()} shares the array of the view.
+ <p>
+ Matrices to be sent to R can be filled column by column with a {@link Builder}:
+ <pre>
+ RMatrix.Builder b = new RMatrix.Builder(rows, cols);
+ for (int j = 0; j &lt; cols; j++)
+     for (int i = 0; i &lt; rows; i++)
+         b.add(value(i, j));
+ c.assign("m", b.build().toREXP());
+ </pre> */
+public class RMatrix {
+    private final double[] data;
+    private final int rows;
+    private final int cols;
+
+    /** creates a view of column-major data. The array is used directly, not copied.
+     *  @param data matrix elements in column-major order, at least <code>rows * cols</code> elements
+     *  @param rows number of rows
+     *  @param cols number of columns */
+    public RMatrix(double[] data, int rows, int cols) {
+        if (rows < 0 || cols < 0 || (long) rows * cols > data.length) {
+            throw new IllegalArgumentException("matrix " + rows + "x" + cols + " does not fit into " + data.length + " elements");
+        }
+        this.data = data;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /** returns the number of rows
+     *  @return number of rows */
+    public int rows() {
+        return rows;
+    }
+
+    /** returns the number of columns
+     *  @return number of columns */
+    public int cols() {
+        return cols;
+    }
+
+    /** returns the underlying column-major array. Changes to it are visible in this view and vice versa.
+     *  @return data array */
+    public double[] data() {
+        return data;
+    }
+
+    /** returns an element
+     *  @param i row index (zero-based)
+     *  @param j column index (zero-based)
+     *  @return element at <code>[i, j]</code> */
+    public double get(int i, int j) {
+        return data[index(i, j)];
+    }
+
+    /** sets an element. Since the data is shared, this also changes the {@link REXPDouble} the view was created from.
+     *  @param i row index (zero-based)
+     *  @param j column index (zero-based)
+     *  @param value new value */
+    public void set(int i, int j, double value) {
+        data[index(i, j)] = value;
+    }
+
+    private int index(int i, int j) {
+        if (i < 0 || i >= rows || j < 0 || j >= cols) {
+            throw new IndexOutOfBoundsException("[" + i + ", " + j + "] of " + rows + "x" + cols);
+        }
+        return j * rows + i;
+    }
+
+    /** returns a column as buffer which shares the data of the matrix
+     *  @param j column index (zero-based)
+     *  @return buffer of <code>rows()</code> elements positioned at the first row */
+    public DoubleBuffer column(int j) {
+        if (j < 0 || j >= cols) {
+            throw new IndexOutOfBoundsException("column " + j + " of " + cols);
+        }
+        return DoubleBuffer.wrap(data, j * rows, rows).slice();
+    }
+
+    /** copies a column into an array
+     *  @param j column index (zero-based)
+     *  @param dst destination array, must have room for <code>rows()</code> elements starting at <code>off</code>
+     *  @param off offset in the destination array */
+    public void copyColumn(int j, double[] dst, int off) {
+        if (j < 0 || j >= cols) {
+            throw new IndexOutOfBoundsException("column " + j + " of " + cols);
+        }
+        System.arraycopy(data, j * rows, dst, off, rows);
+    }
+
+    /** copies a row into an array
+     *  @param i row index (zero-based)
+     *  @param dst destination array, must have room for <code>cols()</code> elements starting at <code>off</code>
+     *  @param off offset in the destination array */
+    public void copyRow(int i, double[] dst, int off) {
+        if (i < 0 || i >= rows) {
+            throw new IndexOutOfBoundsException("row " + i + " of " + rows);
+        }
+        for (int j = 0, k = i; j < cols; j++, k += rows) {
+            dst[off + j] = data[k];
+        }
+    }
+
+    /** returns an iterator over the elements of a row. It steps through the column-major data with a stride of
+     *  <code>rows()</code>, so the row is not copied and the values are not boxed if {@link PrimitiveIterator.OfDouble#nextDouble()} is used.
+     *  @param i row index (zero-based)
+     *  @return iterator over the <code>cols()</code> elements of the row */
+    public PrimitiveIterator.OfDouble row(final int i) {
+        if (i < 0 || i >= rows) {
+            throw new IndexOutOfBoundsException("row " + i + " of " + rows);
+        }
+        return new PrimitiveIterator.OfDouble() {
+            private int k = i;
+            private final int end = i + cols * rows;
+
+            public boolean hasNext() {
+                return k < end;
+            }
+
+            public double nextDouble() {
+                if (k >= end) {
+                    throw new NoSuchElementException();
+                }
+                double d = data[k];
+                k += rows;
+                return d;
+            }
+        };
+    }
+
+    /** creates a matrix of doubles in the form double[rows][cols] as returned by {@link REXP#asDoubleMatrix()}. This copies the data.
+     *  @return copy of the matrix */
+    public double[][] toArray() {
+        double[][] r = new double[rows][cols];
+        int k = 0;
+        for (int j = 0; j < cols; j++) {
+            for (int i = 0; i < rows; i++) {
+                r[i][j] = data[k++];
+            }
+        }
+        return r;
+    }
+
+    /** creates a REXP representing this matrix in R, which shares the data of this view
+     *  @return <code>REXPDouble</code> with "dim" attribute */
+    public REXPDouble toREXP() {
+        double[] d = data;
+        if (d.length != rows * cols) { // the vector length defines the size of the matrix in R
+            d = new double[rows * cols];
+            System.arraycopy(data, 0, d, 0, d.length);
+        }
+        return new REXPDouble(d,
+                new REXPList(
+                        new RList(
+                                new REXP[] {new REXPInteger(new int[] {rows, cols})},
+                                new String[] {"dim"})));
+    }
+
+    public String toString() {
+        return "RMatrix[" + rows + "x" + cols + "]";
+    }
+
+    /** fills a new matrix in column-major order, directly into the array which will be sent to R */
+    public static class Builder {
+        private final double[] data;
+        private final int rows;
+        private final int cols;
+        private int pos;
+
+        /** creates a builder for a matrix whose elements are initially 0
+         *  @param rows number of rows
+         *  @param cols number of columns */
+        public Builder(int rows, int cols) {
+            if (rows < 0 || cols < 0 || (long) rows * cols > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("invalid matrix dimensions " + rows + "x" + cols);
+            }
+            this.rows = rows;
+            this.cols = cols;
+            data = new double[rows * cols];
+        }
+
+        /** sets the next element in column-major order, i.e. all rows of the first column come first
+         *  @param value value of the element
+         *  @return this builder */
+        public Builder add(double value) {
+            data[pos++] = value;
+            return this;
+        }
+
+        /** sets the elements of the next column
+         *  @param src array containing the column
+         *  @param off offset of the first row in <code>src</code>
+         *  @return this builder */
+        public Builder addColumn(double[] src, int off) {
+            if (pos % rows != 0 && rows > 0) {
+                throw new IllegalStateException("the current column is only partially filled");
+            }
+            System.arraycopy(src, off, data, pos, rows);
+            pos += rows;
+            return this;
+        }
+
+        /** sets an element at an arbitrary position
+         *  @param i row index (zero-based)
+         *  @param j column index (zero-based)
+         *  @param value value of the element
+         *  @return this builder */
+        public Builder set(int i, int j, double value) {
+            if (i < 0 || i >= rows || j < 0 || j >= cols) {
+                throw new IndexOutOfBoundsException("[" + i + ", " + j + "] of " + rows + "x" + cols);
+            }
+            data[j * rows + i] = value;
+            return this;
+        }
+
+        /** creates the matrix. The builder must not be used afterwards since the matrix shares its data.
+         *  @return new matrix */
+        public RMatrix build() {
+            return new RMatrix(data, rows, cols);
+        }
+    }
+}
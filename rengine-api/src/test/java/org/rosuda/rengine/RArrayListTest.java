@@ -0,0 +1,96 @@
+package org.rosuda.rengine;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link RArrayList} and of generic vectors backed by one.
+ */
+public class RArrayListTest extends TestCase {
+
+    private static RArrayList list(String... names) {
+        REXP[] contents = new REXP[names.length];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new REXPInteger(i);
+        }
+        return new RArrayList(contents, names);
+    }
+
+    public void testNamedLookup() throws REXPMismatchException {
+        RArrayList l = list("a", "b", "c", "b", null, "e", "f", "g", "a");
+
+        assertEquals(1, l.indexOfKey("b"));
+        assertEquals(0, l.at("a").asInteger());
+        assertEquals(4, l.indexOfKey(null));
+        assertEquals(-1, l.indexOfKey("x"));
+        assertNull(l.get("x"));
+        assertTrue(l.containsKey("g"));
+
+        l.setKeyAt(1, "x");
+        assertEquals(3, l.indexOfKey("b"));
+        assertEquals(1, l.indexOfKey("x"));
+        l.setKeyAt(8, "c");
+        assertEquals(2, l.indexOfKey("c"));
+    }
+
+    public void testPutAppendsAndReplaces() throws REXPMismatchException {
+        RArrayList l = new RArrayList();
+        for (int i = 0; i < 1000; i++) {
+            l.put("k" + i, new REXPInteger(i));
+        }
+        assertEquals(500, l.put("k500", new REXPInteger(-1)).asInteger());
+        l.add("k0", new REXPInteger(1000)); // duplicate name
+
+        assertEquals(1001, l.size());
+        assertEquals(-1, l.at("k500").asInteger());
+        assertEquals(0, l.indexOfKey("k0"));
+        assertEquals(999, l.indexOfKey("k999"));
+    }
+
+    public void testToRList() throws REXPMismatchException {
+        RArrayList l = list("a", "b", null, "b", "c", "d", "e", "f");
+
+        RList r = l.toRList();
+        RArrayList back = new RArrayList(r);
+
+        assertEquals(8, r.size());
+        assertEquals(1, r.at("b").asInteger());
+        assertNull(r.keyAt(2));
+        assertEquals(8, back.size());
+        for (int i = 0; i < 8; i++) {
+            assertSame(l.at(i), back.at(i));
+            assertEquals(l.keyAt(i), back.keyAt(i));
+        }
+        assertFalse(new RArrayList(new RList(l.toArray())).isNamed());
+    }
+
+    public void testRemoveByKey() throws REXPMismatchException {
+        RArrayList l = list("a", "b", "c", "b", "d", "e", "f", "g", "h");
+        assertEquals(7, l.indexOfKey("g"));
+
+        assertEquals(1, l.removeByKey("b").asInteger());
+        assertEquals(8, l.size());
+        assertEquals("c", l.keyAt(1));
+        assertEquals(2, l.indexOfKey("b"));
+        assertEquals(3, l.at("b").asInteger());
+        assertEquals(6, l.indexOfKey("g"));
+        assertNull(l.keyAt(8));
+        assertNull(l.removeByKey("x"));
+    }
+
+    public void testGenericVectorAsList() throws REXPMismatchException {
+        REXPGenericVector v = new REXPGenericVector(list("a", "b", "c"), null);
+        assertEquals(3, v.length());
+        assertEquals(1, v.elementAt("b").asInteger());
+
+        RList l = v.asList();
+        l.put("d", new REXPInteger(3));
+        l.remove(0);
+
+        assertSame(l, v.asList());
+        assertEquals(3, v.length());
+        assertEquals(1, v.elementAt(0).asInteger());
+        assertEquals(3, v.elementAt(2).asInteger());
+        assertEquals(3, v.elementAt("d").asInteger());
+        assertNull(v.elementAt("a"));
+    }
+}
@@ -0,0 +1,145 @@
+package org.rosuda.rengine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the per-element accessors of {@link REXPVector} convert like the corresponding whole-vector methods.
+ */
+public class REXPVectorTest extends TestCase {
+
+    /** checks getDouble, getInt, getString, isNAAt and copyInto against asDoubles, asIntegers, asStrings and isNA;
+     an accessor must throw exactly if its whole-vector counterpart does */
+    private static void assertConsistent(REXPVector v) throws REXPMismatchException {
+        int n = v.length();
+        double[] d = null;
+        try {
+            d = v.asDoubles();
+        } catch (REXPMismatchException e) {
+            assertMismatch(v, "double");
+        }
+        if (d != null) {
+            double[] c = new double[n + 1];
+            v.copyInto(c, 1);
+            for (int i = 0; i < n; i++) {
+                assertEquals("element " + i, Double.doubleToRawLongBits(d[i]), Double.doubleToRawLongBits(v.getDouble(i)));
+                assertEquals("element " + i, Double.doubleToRawLongBits(d[i]), Double.doubleToRawLongBits(c[i + 1]));
+            }
+        }
+        int[] a = null;
+        try {
+            a = v.asIntegers();
+        } catch (REXPMismatchException e) {
+            assertMismatch(v, "int");
+        }
+        if (a != null) {
+            int[] c = new int[n + 1];
+            v.copyInto(c, 1);
+            for (int i = 0; i < n; i++) {
+                assertEquals("element " + i, a[i], v.getInt(i));
+                assertEquals("element " + i, a[i], c[i + 1]);
+            }
+        }
+        String[] s = null;
+        try {
+            s = v.asStrings();
+        } catch (REXPMismatchException e) {
+            assertMismatch(v, "String");
+        }
+        if (s != null) {
+            for (int i = 0; i < n; i++) {
+                assertEquals("element " + i, s[i], v.getString(i));
+            }
+        }
+        boolean[] na = v.isNA();
+        for (int i = 0; i < n; i++) {
+            assertEquals("element " + i, na[i], v.isNAAt(i));
+        }
+    }
+
+    private static void assertMismatch(REXPVector v, String type) {
+        try {
+            if (type.equals("double")) {
+                v.getDouble(0);
+                v.copyInto(new double[v.length()], 0);
+            } else if (type.equals("int")) {
+                v.getInt(0);
+                v.copyInto(new int[v.length()], 0);
+            } else {
+                v.getString(0);
+            }
+            fail(v + " converted to " + type);
+        } catch (REXPMismatchException e) {
+            assertSame(v, e.getSender());
+        }
+    }
+
+    public void testDouble() throws REXPMismatchException {
+        double[] d = {1.5, -2.7, REXPDouble.NA, Double.NaN, 0.0};
+        REXPDouble v = new REXPDouble(d);
+        assertConsistent(v);
+        assertTrue(v.isNAAt(2));
+        assertFalse(v.isNAAt(3)); // NaN is not NA
+        assertEquals(-2, v.getInt(1));
+        assertEquals("1.5", v.getString(0));
+
+        DoubleBuffer b = ByteBuffer.allocateDirect(d.length * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        b.put(d).flip();
+        assertConsistent(new REXPDouble(b, null));
+    }
+
+    public void testInteger() throws REXPMismatchException {
+        int[] a = {1, -2, REXPInteger.NA, 0};
+        REXPInteger v = new REXPInteger(a);
+        assertConsistent(v);
+        assertTrue(v.isNAAt(2));
+        assertEquals((double) REXPInteger.NA, v.getDouble(2), 0.0); // as by asDoubles(), NA is not mapped
+        assertEquals("-2", v.getString(1));
+
+        IntBuffer b = ByteBuffer.allocateDirect(a.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        b.put(a).flip();
+        assertConsistent(new REXPInteger(b, null));
+    }
+
+    public void testLogical() throws REXPMismatchException {
+        REXPLogical v = new REXPLogical(new byte[] {REXPLogical.TRUE, REXPLogical.FALSE, REXPLogical.NA});
+        assertConsistent(v);
+        assertTrue(REXPDouble.isNA(v.getDouble(2)));
+        assertEquals(REXPInteger.NA, v.getInt(2));
+        assertEquals("NA", v.getString(2));
+        assertEquals(1.0, v.getDouble(0), 0.0);
+        assertEquals(0, v.getInt(1));
+        assertTrue(v.isNAAt(2));
+    }
+
+    public void testString() throws REXPMismatchException {
+        REXPString v = new REXPString(new String[] {"a", null, "1"});
+        assertConsistent(v);
+        assertTrue(v.isNAAt(1));
+        assertNull(v.getString(1));
+        assertMismatch(v, "double");
+        assertMismatch(v, "int");
+    }
+
+    public void testFactor() throws REXPMismatchException {
+        REXPFactor v = new REXPFactor(new RFactor(new String[] {"b", "a", null, "b"}));
+        assertConsistent(v);
+        assertEquals("b", v.getString(0));
+        assertEquals(2, v.getInt(1));
+        assertNull(v.getString(2));
+        assertTrue(v.isNAAt(2));
+    }
+
+    public void testRaw() throws REXPMismatchException {
+        REXPRaw v = new REXPRaw(new byte[] {1, 2});
+        assertConsistent(v);
+        assertMismatch(v, "double");
+        assertMismatch(v, "int");
+        assertMismatch(v, "String");
+        assertFalse(v.isNAAt(0));
+    }
+}
@@ -0,0 +1,77 @@
+package org.rosuda.rengine;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the level lookups and recoding of {@link RFactor}.
+ */
+public class RFactorTest extends TestCase {
+
+    private static final int NA = REXPInteger.NA;
+
+    public void testFactorize() {
+        RFactor f = new RFactor(new String[] {"foo", "bar", "foo", "foo", null, "bar"});
+
+        assertTrue(Arrays.equals(new String[] {"foo", "bar"}, f.levels()));
+        assertTrue(Arrays.equals(new int[] {1, 2, 1, 1, NA, 2}, f.asIntegers()));
+        assertEquals(2, f.levelIndex("bar"));
+        assertEquals(-1, f.levelIndex("baz"));
+        assertEquals(-1, f.levelIndex(null));
+        assertNull(f.at(4));
+    }
+
+    public void testCounts() {
+        RFactor f = new RFactor(new String[] {"foo", "bar", "foo", "foo", null, "bar"});
+
+        assertEquals(3, f.count("foo"));
+        assertEquals(0, f.count("baz"));
+        assertEquals(0, f.count((String) null));
+        assertTrue(f.contains("bar"));
+        assertFalse(f.contains("baz"));
+        assertTrue(Arrays.equals(new int[] {3, 2}, f.counts()));
+        assertTrue(Arrays.equals(new int[] {2, 0, 3, 0}, f.counts(new String[] {"bar", "baz", "foo", null})));
+    }
+
+    public void testUnusedAndDuplicateLevels() {
+        // level "a" is listed twice, as in R the first one is found
+        RFactor f = new RFactor(new int[] {1, 3, 3, NA, 2}, new String[] {"a", "b", "a", "c"});
+
+        assertEquals(1, f.levelIndex("a"));
+        assertEquals(1, f.count("a")); // cases coded with the second "a" are not counted
+        assertEquals(4, f.levelIndex("c"));
+        assertFalse(f.contains("c"));
+        assertEquals(0, f.count("c"));
+        assertTrue(Arrays.equals(new int[] {1, 0}, f.counts(new String[] {"a", "c"})));
+    }
+
+    public void testIndexBase() {
+        RFactor f = new RFactor(new String[] {"x", "y", null, "y"}, 0);
+
+        assertEquals(0, f.indexBase());
+        assertTrue(Arrays.equals(new int[] {0, 1, NA, 1}, f.asIntegers()));
+        assertEquals(1, f.levelIndex("y"));
+        assertEquals(2, f.count("y"));
+        assertTrue(f.contains("x"));
+        assertTrue(Arrays.equals(new int[] {2, 1}, f.counts(new String[] {"y", "x"})));
+
+        RFactor r = f.remap(new String[] {"y", "z"});
+        assertEquals(0, r.indexBase());
+        assertTrue(Arrays.equals(new int[] {NA, 0, NA, 0}, r.asIntegers()));
+        assertEquals(1, r.levelIndex("z"));
+    }
+
+    public void testRemap() {
+        RFactor f = new RFactor(new String[] {"foo", "bar", "foo", "foo", null, "bar"});
+
+        RFactor r = f.remap(new String[] {"bar", "foo"});
+        assertTrue(Arrays.equals(new int[] {2, 1, 2, 2, NA, 1}, r.asIntegers()));
+        assertEquals(1, r.levelIndex("bar"));
+        assertTrue(Arrays.equals(new int[] {2, 3}, r.counts()));
+
+        RFactor missing = f.remap(new String[] {"foo", "baz"});
+        assertTrue(Arrays.equals(new int[] {1, NA, 1, 1, NA, NA}, missing.asIntegers()));
+        assertEquals(0, missing.count("baz"));
+    }
+}
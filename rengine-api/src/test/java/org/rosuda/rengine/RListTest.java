@@ -0,0 +1,83 @@
+package org.rosuda.rengine;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the name lookups of {@link RList}. The lists have at least 8 names, so the index is used.
+ */
+public class RListTest extends TestCase {
+
+    private static RList list(String... names) {
+        REXP[] contents = new REXP[names.length];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new REXPInteger(i);
+        }
+        return new RList(contents, names);
+    }
+
+    public void testFirstMatchOnDuplicateNames() throws REXPMismatchException {
+        RList l = list("a", "b", "c", "b", "d", "e", "f", "g", "a");
+
+        assertEquals(1, l.indexOfKey("b"));
+        assertEquals(0, l.indexOfKey("a"));
+        assertEquals(1, l.at("b").asInteger());
+        assertEquals(-1, l.indexOfKey("x"));
+        assertFalse(l.containsKey("x"));
+    }
+
+    public void testPutAppendsAndReplaces() throws REXPMismatchException {
+        RList l = new RList();
+        for (int i = 0; i < 1000; i++) {
+            l.put("k" + i, new REXPInteger(i));
+        }
+        l.put("k500", new REXPInteger(-1));
+        l.add(new REXPInteger(1000)); // unnamed
+
+        assertEquals(1001, l.size());
+        assertEquals(500, l.indexOfKey("k500"));
+        assertEquals(-1, l.at("k500").asInteger());
+        assertEquals(999, l.at("k999").asInteger());
+        assertNull(l.keyAt(1000));
+        l.put("k1000", new REXPInteger(1001));
+        assertEquals(1001, l.indexOfKey("k1000"));
+    }
+
+    public void testInvalidationThroughNames() {
+        RList l = list("a", "b", "c", "b", "d", "e", "f", "g", "h");
+        assertEquals(1, l.indexOfKey("b"));
+
+        l.names.set(1, "x");
+        assertEquals(3, l.indexOfKey("b"));
+        assertEquals(1, l.indexOfKey("x"));
+
+        l.names.set(5, "a");
+        assertEquals(0, l.indexOfKey("a"));
+
+        l.names.remove(0);
+        assertEquals(0, l.indexOfKey("x"));
+        assertEquals(4, l.indexOfKey("a"));
+
+        l.names.add(0, "h");
+        assertEquals(0, l.indexOfKey("h"));
+
+        l.setKeyAt(0, "z");
+        assertEquals(8, l.indexOfKey("h"));
+        assertEquals(0, l.indexOfKey("z"));
+    }
+
+    public void testRemoveByKey() throws REXPMismatchException {
+        RList l = list("a", "b", "c", "b", "d", "e", "f", "g", "h");
+
+        assertEquals(1, ((REXP) l.removeByKey("b")).asInteger());
+        assertEquals(8, l.size());
+        assertEquals(2, l.indexOfKey("b")); // the second "b" moved up
+        assertEquals(3, l.at("b").asInteger());
+        assertEquals(1, l.indexOfKey("c"));
+        assertEquals(7, l.indexOfKey("h"));
+        assertNull(l.removeByKey("x"));
+
+        l.remove(0);
+        assertEquals(-1, l.indexOfKey("a"));
+        assertEquals(0, l.indexOfKey("c"));
+    }
+}
@@ -0,0 +1,286 @@
+package org.rosuda.rengine.rserve;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REngine;
+import org.rosuda.rengine.REngineException;
+import org.rosuda.rengine.rserve.protocol.REXPFactory;
+
+/**
+ * {@link REngine} which memoizes the results of pure expressions evaluated by another engine, typically an
+ * {@link RConnection}. Only expressions registered with {@link #markPure(String, String...)} are cached, all other
+ * calls are passed through. A cached result is returned without a request to the server until
+ * <ul>
+ * <li>it is older than the time to live,</li>
+ * <li>it is evicted because the cache exceeds its size limit (least recently used results first; the size of a
+ * result is the length of its binary representation as sent by Rserve),</li>
+ * <li>a symbol the expression depends on is assigned through {@link #assign(String, REXP, REXP)} or
+ * {@link #invalidate(String)} is called for it, or</li>
+ * <li>{@link #invalidateAll()} is called.</li>
+ * </ul>
+ * Assignments which happen in R code (e.g. <code>parseAndEval("x &lt;- 1")</code>) are not tracked, callers must
+ * invalidate the affected symbols themselves.
+ * <pre>
+ * CachingREngine c = new CachingREngine(connection, 64 * 1024 * 1024, 60000);
+ * c.markPure("levels(ref$region)", "ref");
+ * REXP r = c.parseAndEval("levels(ref$region)"); // served from the cache on subsequent calls
+ * </pre>
+ * Cached results are shared between callers, they must not be modified. The cache is thread-safe, but that does not
+ * make the underlying engine thread-safe.
+ */
+public class CachingREngine extends REngine {
+    private final REngine engine;
+    private final long maxBytes;
+    private final long ttlNanos;
+
+    /** dependencies of the pure expressions */
+    private final HashMap<String, String[]> pure = new HashMap<String, String[]>();
+    /** cached results, the least recently used first */
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+    /** incremented by every invalidation, so that results evaluated meanwhile are not cached */
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /** a cached result */
+    private static final class Entry {
+        final REXP value;
+        final long size;
+        final long created;
+
+        Entry(REXP value, long size, long created) {
+            this.value = value;
+            this.size = size;
+            this.created = created;
+        }
+    }
+
+    /** creates a caching engine
+     * @param engine engine evaluating the expressions
+     * @param maxBytes maximal total size of the cached results in bytes; larger results are not cached
+     * @param ttl time to live of cached results in milliseconds, 0 or less for no limit */
+    public CachingREngine(REngine engine, long maxBytes, long ttl) {
+        this.engine = engine;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = (ttl > 0) ? ttl * 1000000L : 0;
+    }
+
+    /** returns the engine evaluating the expressions
+     * @return underlying engine */
+    public REngine getEngine() {
+        return engine;
+    }
+
+    /** marks an expression as pure, i.e. its result only depends on the given symbols which are not changed by
+     * evaluating it. Its results are cached from now on. The expression must be passed exactly the same way to
+     * {@link #parseAndEval(String)} or {@link #eval(String)}, no normalization is done.
+     * @param cmd expression
+     * @param dependsOn symbols the result depends on */
+    public synchronized void markPure(String cmd, String... dependsOn) {
+        pure.put(cmd, dependsOn.clone());
+        remove(cmd); // the dependencies may have changed
+        generation++;
+    }
+
+    /** stops caching the results of an expression and drops its cached result
+     * @param cmd expression */
+    public synchronized void unmarkPure(String cmd) {
+        pure.remove(cmd);
+        remove(cmd);
+        generation++;
+    }
+
+    /** drops the cached results of all expressions which depend on a symbol
+     * @param symbol symbol name */
+    public synchronized void invalidate(String symbol) {
+        generation++;
+        Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            for (String s : pure.get(e.getKey())) {
+                if (s.equals(symbol)) {
+                    bytes -= e.getValue().size;
+                    it.remove();
+                    invalidations++;
+                    break;
+                }
+            }
+        }
+    }
+
+    /** drops all cached results; the expressions stay marked as pure */
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidations += cache.size();
+        cache.clear();
+        bytes = 0;
+    }
+
+    /** evaluates an expression in the global environment, equivalent to <code>parseAndEval(cmd, null, true)</code>
+     * @param cmd expression
+     * @return result */
+    public REXP eval(String cmd) throws REngineException, REXPMismatchException {
+        return parseAndEval(cmd, null, true);
+    }
+
+    /** evaluates an expression; the result of pure expressions evaluated in the global environment is served from
+     * and stored in the cache */
+    public REXP parseAndEval(String text, REXP where, boolean resolve) throws REngineException, REXPMismatchException {
+        if (where != null || !resolve) {
+            return engine.parseAndEval(text, where, resolve);
+        }
+        long gen;
+        synchronized (this) {
+            if (!pure.containsKey(text)) {
+                gen = -1;
+            } else {
+                Entry e = cache.get(text);
+                if (e != null) {
+                    if (ttlNanos == 0 || System.nanoTime() - e.created < ttlNanos) {
+                        hits++;
+                        return e.value;
+                    }
+                    remove(text);
+                }
+                misses++;
+                gen = generation;
+            }
+        }
+        if (gen < 0) {
+            return engine.parseAndEval(text, where, resolve);
+        }
+        long created = System.nanoTime();
+        REXP r = engine.parseAndEval(text, where, resolve);
+        long size;
+        try {
+            size = new REXPFactory(r).getBinaryLongLength();
+        } catch (REXPMismatchException ex) { // no binary representation, e.g. a reference
+            return r;
+        }
+        synchronized (this) {
+            if (size <= maxBytes && gen == generation) {
+                remove(text);
+                cache.put(text, new Entry(r, size, created));
+                bytes += size;
+                Iterator<Entry> it = cache.values().iterator();
+                while (bytes > maxBytes) {
+                    bytes -= it.next().size;
+                    it.remove();
+                    evictions++;
+                }
+            }
+        }
+        return r;
+    }
+
+    private void remove(String cmd) {
+        Entry e = cache.remove(cmd);
+        if (e != null) {
+            bytes -= e.size;
+        }
+    }
+
+    /** assigns a value and drops the cached results of the expressions which depend on the symbol */
+    public void assign(String symbol, REXP value, REXP env) throws REngineException, REXPMismatchException {
+        try {
+            engine.assign(symbol, value, env);
+        } finally { // the value may have been changed even if the call failed
+            invalidate(symbol);
+        }
+    }
+
+    // --- statistics
+
+    /** @return number of evaluations served from the cache */
+    public synchronized long getHitCount() { return hits; }
+
+    /** @return number of evaluations of pure expressions which were not cached */
+    public synchronized long getMissCount() { return misses; }
+
+    /** @return fraction of evaluations of pure expressions served from the cache, 0 if there were none */
+    public synchronized double getHitRatio() { return (hits + misses == 0) ? 0 : (double) hits / (hits + misses); }
+
+    /** @return number of results evicted because of the size limit */
+    public synchronized long getEvictionCount() { return evictions; }
+
+    /** @return number of results dropped by assignments and explicit invalidation */
+    public synchronized long getInvalidationCount() { return invalidations; }
+
+    /** @return total size of the cached results in bytes */
+    public synchronized long getCachedBytes() { return bytes; }
+
+    /** @return number of cached results */
+    public synchronized int getCachedCount() { return cache.size(); }
+
+    /** @return expressions marked as pure */
+    public synchronized Set<String> getPureExpressions() { return new HashSet<String>(pure.keySet()); }
+
+    // --- delegation
+
+    public REXP parse(String text, boolean resolve) throws REngineException {
+        return engine.parse(text, resolve);
+    }
+
+    public REXP eval(REXP what, REXP where, boolean resolve) throws REngineException, REXPMismatchException {
+        return engine.eval(what, where, resolve);
+    }
+
+    public REXP get(String symbol, REXP env, boolean resolve) throws REngineException, REXPMismatchException {
+        return engine.get(symbol, env, resolve);
+    }
+
+    public REXP resolveReference(REXP ref) throws REngineException, REXPMismatchException {
+        return engine.resolveReference(ref);
+    }
+
+    public REXP createReference(REXP value) throws REngineException, REXPMismatchException {
+        return engine.createReference(value);
+    }
+
+    public void finalizeReference(REXP ref) throws REngineException, REXPMismatchException {
+        engine.finalizeReference(ref);
+    }
+
+    public REXP getParentEnvironment(REXP env, boolean resolve) throws REngineException, REXPMismatchException {
+        return engine.getParentEnvironment(env, resolve);
+    }
+
+    public REXP newEnvironment(REXP parent, boolean resolve) throws REngineException, REXPMismatchException {
+        return engine.newEnvironment(parent, resolve);
+    }
+
+    /** drops all cached results and closes the underlying engine */
+    public boolean close() {
+        invalidateAll();
+        return engine.close();
+    }
+
+    public boolean supportsReferences() { return engine.supportsReferences(); }
+
+    public boolean supportsEnvironments() { return engine.supportsEnvironments(); }
+
+    public boolean supportsREPL() { return engine.supportsREPL(); }
+
+    public boolean supportsLocking() { return engine.supportsLocking(); }
+
+    public int tryLock() { return engine.tryLock(); }
+
+    public int lock() { return engine.lock(); }
+
+    public void unlock(int lockValue) { engine.unlock(lockValue); }
+
+    public String toString() {
+        return "CachingREngine[" + engine + ",cached=" + getCachedCount() + ",hits=" + getHitCount() + ",misses=" + getMissCount() + "]";
+    }
+}
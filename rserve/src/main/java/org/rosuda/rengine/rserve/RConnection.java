@@ -5,9 +5,10 @@ package org.rosuda.rengine.rserve;
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.rosuda.rengine.REXP;
 import org.rosuda.rengine.REXPMismatchException;
@@ -17,8 +18,13 @@ import org.rosuda.rengine.REngineException;
 import org.rosuda.rengine.rserve.protocol.JCrypt;
 import org.rosuda.rengine.rserve.protocol.RConnectionException;
 import org.rosuda.rengine.rserve.protocol.REXPFactory;
+import org.rosuda.rengine.rserve.protocol.REXPStreamDecoder;
 import org.rosuda.rengine.rserve.protocol.RPacket;
 import org.rosuda.rengine.rserve.protocol.RTalk;
+import org.rosuda.rengine.rserve.protocol.RTransport;
+import org.rosuda.rengine.rserve.protocol.RTransportFactory;
+import org.rosuda.rengine.rserve.protocol.SocketTransport;
+import org.rosuda.rengine.rserve.protocol.SocketTransportFactory;
 
 /**  class providing TCP/IP connection to an Rserve
  @version $Id$
@@ -42,16 +48,16 @@ public class RConnection extends REngine {
     int rsrvVersion;
     /** last error string */
     String lastError = null;
-    private Socket socket;
+    private RTransport transport;
     private boolean connected = false;
-    private InputStream is;
-    private OutputStream os;
     private boolean authReq = false;
     private int authType = AT_plain;
     private String Key = null;
     private RTalk rt = null;
     private String host;
     private int port;
+    /** send buffer size of the server as set by {@link #setSendBufferSize}, it is 2MB unless it was changed */
+    private long sendBufferSize = 2 * 1024 * 1024;
 
     /** make a new local connection on default port (6311) */
     public RConnection() throws RserveException {
@@ -71,25 +77,27 @@ public class RConnection extends REngine {
      * @param port TCP port
      */
     public RConnection(String host, int port) throws RserveException {
-        this(host, port, null);
+        this(host, port, null, new SocketTransportFactory());
+    }
+
+    /** make a new connection to specified host and given port using a custom transport, e.g. a
+     * {@link SocketTransportFactory} configured to use NIO channels, timeouts and socket buffer sizes.
+     * @param host host name/IP
+     * @param port TCP port
+     * @param factory factory used to create the transport
+     */
+    public RConnection(String host, int port, RTransportFactory factory) throws RserveException {
+        this(host, port, null, factory);
     }
 
     /** restore a connection based on a previously detached session
      * @param session detached session object */
     RConnection(RSession session) throws RserveException {
-        this(null, 0, session);
+        this(null, 0, session, new SocketTransportFactory());
     }
 
 
-    private RConnection(String host, int port, RSession session) throws RserveException {
-        try {
-            if (connected) {
-                socket.close();
-            }
-            socket = null;
-        } catch (IOException e) {
-            throw new RserveException(this, "Cannot close previous connection: " + e.getMessage(), e);
-        }
+    private RConnection(String host, int port, RSession session, RTransportFactory factory) throws RserveException {
         if (session != null) {
             host = session.host;
             port = session.port;
@@ -97,14 +105,13 @@ public class RConnection extends REngine {
         connected = false;
         this.host = host;
         this.port = port;
+        RTransport t;
         try {
-            Socket ss = new Socket(host, port);
-            // disable Nagle's algorithm since we really want immediate replies
-            ss.setTcpNoDelay(true);
-            initWithSocket(ss, session);
+            t = factory.connect(host, port);
         } catch (IOException sce) {
             throw new RserveException(this, "Cannot connect: " + sce.getMessage(), sce, RTalk.ERR_conn_broken);
         }
+        initWithTransport(t, session);
     }
 
     /** create a connection based on a previously obtained
@@ -118,32 +125,38 @@ public class RConnection extends REngine {
     public RConnection(Socket sock) throws RserveException {
         this.host = null;
         this.port = 0;
+        RTransport t;
         try {
-            if (connected) {
-                socket.close();
-            }
-            connected = false;
-            socket = null;
-        } catch (IOException e) {
-            throw new RserveException(this, "Cannot close previous connection: " + e.getMessage(), e);
-        }
-        initWithSocket(sock, null);
-    }
-
-    private void initWithSocket(Socket sock, RSession session) throws RserveException {
-        socket = sock;
-        try {
-            is = socket.getInputStream();
-            os = socket.getOutputStream();
+            t = new SocketTransport(sock);
         } catch (IOException gse) {
             throw new RserveException(this, "Cannot get io stream: " + gse.getMessage(), gse);
         }
-        rt = new RTalk(is, os);
+        initWithTransport(t, null);
+    }
+
+    /** create a connection based on a previously obtained transport.
+     @param transport connected transport
+     */
+    public RConnection(RTransport transport) throws RserveException {
+        this.host = null;
+        this.port = 0;
+        initWithTransport(transport, null);
+    }
+
+    private void initWithTransport(RTransport t, RSession session) throws RserveException {
+        transport = t;
+        rt = new RTalk(transport);
         if (session == null) {
             byte[] IDs = new byte[32];
-            int n;
+            int n = 0;
             try {
-                n = is.read(IDs);
+                while (n < 32) {
+                    int rd = transport.read(IDs, n, 32 - n);
+                    if (rd < 0) {
+                        break;
+                    }
+                    n += rd;
+                }
             } catch (IOException sre) {
                 throw new RserveException(this, "Error while receiving data: " + sre.getMessage(), sre);
             }
@@ -188,18 +201,16 @@ public class RConnection extends REngine {
                 }
             } catch (RserveException innerX) {
                 try {
-                    socket.close();
+                    transport.close();
                 } catch (IOException e) {
                     throw new RserveException(this, "Cannot close socket", e);
                 }
-                is = null;
-                os = null;
-                socket = null;
+                transport = null;
                 throw innerX;
             }
         } else { // we have a session to take care of
             try {
-                os.write(session.key, 0, 32);
+                transport.write(session.key, 0, 32);
             } catch (IOException sre) {
                 throw new RserveException(this, "Error while sending session key: " + sre.getMessage(), sre);
             }
@@ -211,8 +222,6 @@ public class RConnection extends REngine {
 
     public void finalize() {
         close();
-        is = null;
-        os = null;
     }
 
     /** get server version as reported during the handshake.
@@ -224,8 +233,8 @@ public class RConnection extends REngine {
     /** closes current connection */
     public boolean close() {
         try {
-            if (socket != null) {
-                socket.close();
+            if (transport != null) {
+                transport.close();
             }
             connected = false;
             return true;
@@ -282,25 +291,41 @@ public class RConnection extends REngine {
     }
 
     private REXP parseEvalResponse(RPacket rp) throws RserveException {
+        if (rp.getREXP() != null) { // already decoded while receiving
+            return rp.getREXP();
+        }
+        ByteBuffer[] cc = rp.getContChunks();
+        if (cc != null && cc.length > 1) { // too large for an array
+            return parseEvalResponse(cc);
+        }
         int rxo = 0;
-        byte[] pc = rp.getCont();
+        ByteBuffer cb = rp.getContBuffer();
+        if (cb == null) {
+            return null;
+        }
+        // the response is parsed in place, without copying the content of the packet
+        byte[] pc = cb.array();
+        int po = cb.arrayOffset();
         if (rsrvVersion > 100) { /* since 0101 eval responds correctly by using DT_SEXP type/len header which is 4 bytes long */
             rxo = 4;
             /* we should check parameter type (should be DT_SEXP) and fail if it's not */
-            if (pc[0] != RTalk.DT_SEXP && pc[0] != (RTalk.DT_SEXP | RTalk.DT_LARGE)) {
+            if (pc[po] != RTalk.DT_SEXP && pc[po] != (RTalk.DT_SEXP | RTalk.DT_LARGE)) {
                 throw new RserveException(this,
-                        "Error while processing eval output: SEXP (type " + RTalk.DT_SEXP + ") expected but found result type " + pc[0] + ".");
+                        "Error while processing eval output: SEXP (type " + RTalk.DT_SEXP + ") expected but found result type " + pc[po] + ".");
             }
-            if (pc[0] == (RTalk.DT_SEXP | RTalk.DT_LARGE)) {
+            if (pc[po] == (RTalk.DT_SEXP | RTalk.DT_LARGE)) {
                 rxo = 8; // large data need skip of 8 bytes
             }
             /* warning: we are not checking or using the length - we assume that only the one SEXP is returned. This is true
             for the current CMD_eval implementation, but may not be in the future. */
         }
-        if (pc.length > rxo) {
+        if (cb.remaining() > rxo) {
             try {
                 REXPFactory rx = new REXPFactory();
-                rx.parseREXP(pc, rxo);
+                rx.setInternStrings(rt.isInternStrings());
+                rx.setDictionaryStrings(rt.isDictionaryStrings());
+                rx.setParallelThreshold(rt.getParallelThreshold());
+                rx.parseREXP(pc, po + rxo);
                 return rx.getREXP();
             } catch (REXPMismatchException me) {
                 throw new RserveException(this, "Error when parsing response: " + me.getMessage(), me);
@@ -309,6 +334,28 @@ public class RConnection extends REngine {
         return null;
     }
 
+    /** decodes an eval response whose content is stored in chunks; such responses always use the DT_SEXP header */
+    private REXP parseEvalResponse(ByteBuffer[] cc) throws RserveException {
+        byte pt = cc[0].get(cc[0].position());
+        if ((pt & 63) != RTalk.DT_SEXP) {
+            throw new RserveException(this,
+                    "Error while processing eval output: SEXP (type " + RTalk.DT_SEXP + ") expected but found result type " + pt + ".");
+        }
+        try {
+            REXPStreamDecoder d = new REXPStreamDecoder(cc);
+            d.setOffHeapThreshold(rt.getOffHeapThreshold());
+            d.setInternStrings(rt.isInternStrings());
+            d.setDictionaryStrings(rt.isDictionaryStrings());
+            d.setParallelThreshold(rt.getParallelThreshold());
+            d.skip(((pt & RTalk.DT_LARGE) != 0) ? 8 : 4);
+            return d.decode();
+        } catch (IOException e) {
+            throw new RserveException(this, "Error when parsing response: " + e.getMessage(), e);
+        } catch (REXPMismatchException me) {
+            throw new RserveException(this, "Error when parsing response: " + me.getMessage(), me);
+        }
+    }
+
     /** evaluates the given command and retrieves the result
      @param cmd command/expression string
      @return R-xpression or <code>null</code> if an error occured */
@@ -318,7 +365,8 @@ public class RConnection extends REngine {
         }
         RPacket rp;
         try {
-            rp = rt.request(RTalk.CMD_eval, cmd + "\n");
+            // large results are decoded while they are received; the DT_SEXP header is only sent since 0101
+            rp = (rsrvVersion > 100) ? rt.requestREXP(RTalk.CMD_eval, cmd + "\n") : rt.request(RTalk.CMD_eval, cmd + "\n");
             if (rp != null && rp.isOk()) {
                 return parseEvalResponse(rp);
             } else {
@@ -384,28 +432,43 @@ public class RConnection extends REngine {
         if (!connected || rt == null) {
             throw new RserveException(this, "Not connected");
         }
+        RPacket rp;
+        try {
+            rp = rt.requestSEXP(RTalk.CMD_setSEXP, symbolParameter(sym), new REXPFactory(rexp));
+        } catch (REXPMismatchException me) {
+            throw new RserveException(this, "Error creating binary representation: " + me.getMessage(), me);
+        } catch (RConnectionException e) {
+            throw new RserveException(this, "assign failed", e, RTalk.ERR_conn_broken);
+        }
+        if (rp == null || !rp.isOk()) {
+            throw new RserveException(this, "assign failed", rp);
+        }
+    }
+
+    /** builds a DT_STRING parameter holding a symbol name */
+    private static byte[] symbolParameter(String sym) {
+        byte[] symn = sym.getBytes();
+        int sl = symn.length + 1;
+        if ((sl & 3) > 0) {
+            sl = (sl & 0xfffffc) + 4; // make sure the symbol length is divisible by 4
+        }
+        byte[] rq = new byte[sl + 4];
+        System.arraycopy(symn, 0, rq, 4, symn.length);
+        RTalk.setHdr(RTalk.DT_STRING, sl, rq, 0);
+        return rq;
+    }
+
+    /** builds the parameters of CMD_setSEXP: the symbol name followed by the binary representation of the value */
+    private byte[] setSEXPParameters(String sym, REXP rexp) throws RserveException {
         try {
             REXPFactory r = new REXPFactory(rexp);
             int rl = r.getBinaryLength();
-            byte[] symn = sym.getBytes();
-            int sl = symn.length + 1;
-            if ((sl & 3) > 0) {
-                sl = (sl & 0xfffffc) + 4; // make sure the symbol length is divisible by 4
-            }
-            byte[] rq = new byte[sl + rl + ((rl > 0xfffff0) ? 12 : 8)];
-            int ic;
-            for (ic = 0; ic < symn.length; ic++) {
-                rq[ic + 4] = symn[ic];
-            }
-            while (ic < sl) {
-                rq[ic + 4] = 0;
-                ic++;
-            }
-            // pad with 0
-            RTalk.setHdr(RTalk.DT_STRING, sl, rq, 0);
-            RTalk.setHdr(RTalk.DT_SEXP, rl, rq, sl + 4);
-            r.getBinaryRepresentation(rq, sl + ((rl > 0xfffff0) ? 12 : 8));
-            requestSetSEXP(rq);
+            byte[] symp = symbolParameter(sym);
+            int sl = symp.length;
+            byte[] rq = new byte[sl + rl + ((rl > 0xfffff0) ? 8 : 4)];
+            System.arraycopy(symp, 0, rq, 0, sl);
+            r.getBinaryRepresentation(rq, RTalk.setHdr(RTalk.DT_SEXP, rl, rq, sl));
+            return rq;
         } catch (REXPMismatchException me) {
             throw new RserveException(this, "Error creating binary representation: " + me.getMessage(), me);
         }
@@ -423,6 +486,80 @@ public class RConnection extends REngine {
         }
     }
 
+    /**
+     * Evaluates the given command without waiting for the result. Subsequent asynchronous requests are pipelined, i.e.
+     * they are sent to Rserve before the response to this one arrives, see {@link RTalk#submit}.
+     * Dependent actions attached with the non-async methods of the future run on the thread completing the responses
+     * in order; they may use this connection, but must not wait for another of its futures.
+     * @param cmd command/expression string
+     * @return future completed with the result; it fails with {@link RserveException} if the evaluation failed
+     */
+    public CompletableFuture<REXP> evalAsync(String cmd) {
+        if (!connected || rt == null) {
+            return failed(new RserveException(this, "Not connected"));
+        }
+        return checkResponse(rt.submit(RTalk.CMD_eval, cmd + "\n"), EVAL_FAILED_ERROR_MESSAGE).thenApply(rp -> {
+            try {
+                return parseEvalResponse(rp);
+            } catch (RserveException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Evaluates the given command without waiting for it to finish and without fetching the result,
+     * see {@link #evalAsync(String)}.
+     * @param cmd command/expression string
+     * @return future completed once the command was evaluated
+     */
+    public CompletableFuture<Void> voidEvalAsync(String cmd) {
+        if (!connected || rt == null) {
+            return failed(new RserveException(this, "Not connected"));
+        }
+        return checkResponse(rt.submit(RTalk.CMD_voidEval, cmd + "\n"), "voidEval failed").thenApply(rp -> (Void) null);
+    }
+
+    /**
+     * Assigns a content of a REXP to a symbol in R without waiting for the response, see {@link #assign(String, REXP)}
+     * and {@link #evalAsync(String)}.
+     * @param sym symbol name
+     * @param rexp contents
+     * @return future completed once the value was assigned
+     */
+    public CompletableFuture<Void> assignAsync(String sym, REXP rexp) {
+        if (!connected || rt == null) {
+            return failed(new RserveException(this, "Not connected"));
+        }
+        byte[] rq;
+        try {
+            rq = setSEXPParameters(sym, rexp);
+        } catch (RserveException e) {
+            return failed(e);
+        }
+        return checkResponse(rt.submit(RTalk.CMD_setSEXP, rq), "assign failed").thenApply(rp -> (Void) null);
+    }
+
+    /** maps failed and non-OK responses of a submitted request to {@link RserveException} */
+    private CompletableFuture<RPacket> checkResponse(CompletableFuture<RPacket> f, final String msg) {
+        return f.handle((rp, ex) -> {
+            if (ex != null) {
+                Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+                throw new CompletionException(new RserveException(this, msg, cause, RTalk.ERR_conn_broken));
+            }
+            if (rp == null || !rp.isOk()) {
+                throw new CompletionException(new RserveException(this, msg, rp));
+            }
+            return rp;
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable ex) {
+        CompletableFuture<T> f = new CompletableFuture<T>();
+        f.completeExceptionally(ex);
+        return f;
+    }
+
     /** open a file on the Rserve for reading
      @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory.
      @return input stream to be used for reading. Note that the stream is read-once only, there is no support for seek or rewind. */
@@ -430,11 +567,29 @@ public class RConnection extends REngine {
         return new RFileInputStream(rt, fn);
     }
 
+    /** open a file on the Rserve for reading with a given transfer window
+     @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory.
+     @param chunkSize number of bytes requested from the server at a time
+     @param readAhead number of chunks requested ahead; with a window of <code>chunkSize * readAhead</code> bytes in flight the transfer is not limited by the latency of the connection
+     @return input stream to be used for reading. Note that the stream is read-once only, there is no support for seek or rewind. */
+    public RFileInputStream openFile(String fn, int chunkSize, int readAhead) throws IOException {
+        return new RFileInputStream(rt, fn, chunkSize, readAhead);
+    }
+
     /** create a file on the Rserve for writing
      @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory.
      @return output stream to be used for writinging. Note that the stream is write-once only, there is no support for seek or rewind. */
     public RFileOutputStream createFile(String fn) throws IOException {
-        return new RFileOutputStream(rt, fn);
+        return new RFileOutputStream(rt, fn, (int) Math.min(sendBufferSize / 2, RFileOutputStream.DEFAULT_CHUNK_SIZE), RFileOutputStream.DEFAULT_WRITE_BEHIND);
+    }
+
+    /** create a file on the Rserve for writing with a given transfer window
+     @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory.
+     @param chunkSize number of bytes sent to the server at a time
+     @param writeBehind number of chunks which may be sent before the first of them was acknowledged
+     @return output stream to be used for writinging. Note that the stream is write-once only, there is no support for seek or rewind. */
+    public RFileOutputStream createFile(String fn, int chunkSize, int writeBehind) throws IOException {
+        return new RFileOutputStream(rt, fn, chunkSize, writeBehind);
     }
 
     /** remove a file on the Rserve
@@ -479,6 +634,7 @@ public class RConnection extends REngine {
      * implementations won't go below buffer sizes of 32kb though. If the specified buffer size results in 'out of memory' on the
      * server, the corresponding error is sent and the connection is terminated.<br>
      * <i>Note:</i> This command may go away in future versions of Rserve which will use dynamic send buffer allocation.
+     * Files created by {@link #createFile(String)} afterwards are sent in chunks of half the buffer size (at most 1MB).
      * @param sbs send buffer size (in bytes) min=32k, max=1GB
      */
     public void setSendBufferSize(long sbs) throws RserveException {
@@ -492,11 +648,64 @@ public class RConnection extends REngine {
             if (rp == null || !rp.isOk()) {
                 throw new RserveException(this, "setSendBufferSize failed", rp);
             }
+            sendBufferSize = sbs;
         } catch (RConnectionException e) {
             throw new RserveException(this, "setSendBufferSize failed", e, RTalk.ERR_conn_broken);
         }
     }
 
+    /** Sets the size from which double, integer and raw vectors in eval results are received into direct buffers outside
+     * of the Java heap instead of arrays. Such vectors are views of the received data; their <code>asDoubles()</code>,
+     * <code>asIntegers()</code> and <code>asBytes()</code> create a copy on each call, so they should be read through
+     * <code>asDoubleBuffer()</code>, <code>asIntBuffer()</code>, <code>asByteBuffer()</code> or the element accessors.
+     * Only results decoded while they are received (larger than 1MB) are affected; factors and payloads larger than 2GB
+     * are always stored in arrays.
+     * @param bytes minimal payload size in bytes, <code>Long.MAX_VALUE</code> (the default) to disable
+     */
+    public void setOffHeapThreshold(long bytes) throws RserveException {
+        if (!connected || rt == null) {
+            throw new RserveException(this, "Not connected");
+        }
+        rt.setOffHeapThreshold(bytes);
+    }
+
+    /** Enables or disables deduplication of repeated strings in eval results. Equal short strings within one result,
+     * e.g. the values of a categorical column, then share the same {@link String} object, which saves heap for results
+     * with many repeated values at the cost of a hash lookup per string. Disabled by default.
+     * @param intern <code>true</code> to deduplicate strings
+     */
+    public void setInternStrings(boolean intern) throws RserveException {
+        if (!connected || rt == null) {
+            throw new RserveException(this, "Not connected");
+        }
+        rt.setInternStrings(intern);
+    }
+
+    /** Enables or disables dictionary encoding of character vectors in eval results. Vectors of at least 64 elements
+     * with at most one distinct value per 8 elements are then returned as {@link org.rosuda.rengine.REXPDictionaryString},
+     * which stores an <code>int</code> code per element and each distinct value once. Disabled by default.
+     * @param dictionary <code>true</code> to dictionary-encode character vectors with few distinct values
+     */
+    public void setDictionaryStrings(boolean dictionary) throws RserveException {
+        if (!connected || rt == null) {
+            throw new RserveException(this, "Not connected");
+        }
+        rt.setDictionaryStrings(dictionary);
+    }
+
+    /** Sets the size from which the elements of lists and data frames in eval results are decoded concurrently in the
+     * common {@link java.util.concurrent.ForkJoinPool}, e.g. the columns of a wide data frame. The result is the same as
+     * with sequential decoding. Results larger than 1MB are normally decoded while they are received, a vector decoded
+     * in parallel is received completely first and its elements are not stored off-heap.
+     * @param bytes minimal size of the vector in bytes, <code>Long.MAX_VALUE</code> (the default) to disable
+     */
+    public void setParallelThreshold(long bytes) throws RserveException {
+        if (!connected || rt == null) {
+            throw new RserveException(this, "Not connected");
+        }
+        rt.setParallelThreshold(bytes);
+    }
+
     /** set string encoding for this session. It is strongly
      * recommended to make sure the encoding is always set to UTF-8
      * because that is the only encoding supported by this Java
@@ -545,13 +754,11 @@ public class RConnection extends REngine {
                 return;
             }
             try {
-                socket.close();
+                transport.close();
             } catch (IOException e) {
                 throw new RConnectionException("Cannot close socket", e);
             }
-            is = null;
-            os = null;
-            socket = null;
+            transport = null;
             connected = false;
             throw new RserveException(this, "login failed", rp);
         } else {
@@ -560,13 +767,11 @@ public class RConnection extends REngine {
                 return;
             }
             try {
-                socket.close();
+                transport.close();
             } catch (IOException e) {
                 throw new RConnectionException("Cannot close socket", e);
             }
-            is = null;
-            os = null;
-            socket = null;
+            transport = null;
             connected = false;
             throw new RserveException(this, "login failed", rp);
         }
@@ -677,12 +882,7 @@ public class RConnection extends REngine {
             throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
         }
         try {
-            REXPFactory r = new REXPFactory(what);
-            int rl = r.getBinaryLength();
-            byte[] rq = new byte[rl + ((rl > 0xfffff0) ? 8 : 4)];
-            RTalk.setHdr(RTalk.DT_SEXP, rl, rq, 0);
-            r.getBinaryRepresentation(rq, ((rl > 0xfffff0) ? 8 : 4));
-            RPacket rp = rt.request(resolve ? RTalk.CMD_eval : RTalk.CMD_voidEval, rq);
+            RPacket rp = rt.requestSEXP(resolve ? RTalk.CMD_eval : RTalk.CMD_voidEval, null, new REXPFactory(what));
             if (rp != null && rp.isOk()) {
                 return parseEvalResponse(rp);
             }
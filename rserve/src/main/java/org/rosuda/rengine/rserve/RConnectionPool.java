@@ -0,0 +1,343 @@
+package org.rosuda.rengine.rserve;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rosuda.rengine.rserve.protocol.RConnectionException;
+import org.rosuda.rengine.rserve.protocol.RTalk;
+import org.rosuda.rengine.rserve.protocol.RTransportFactory;
+import org.rosuda.rengine.rserve.protocol.SocketTransportFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe pool of {@link RConnection}s to one Rserve. {@link RConnection} itself is not thread-safe, so each
+ * connection is used by one borrower at a time: obtain it with {@link #borrow()} and hand it back with
+ * {@link #release(RConnection)} (or {@link #invalidate(RConnection)} if it must not be reused).
+ * <p>
+ * New connections are logged in (if the server requires it) and get their string encoding set before they are
+ * handed out, {@link #start()} pre-warms the minimal number of connections. Connections are validated with a cheap
+ * <code>voidEval</code> on borrow and/or return and the reset script (if any) runs between borrowers, e.g.
+ * <code>rm(list=ls())</code>; connections failing either are closed and evicted from the pool.
+ * <p>
+ * The pool keeps statistics of the time spent in {@link #borrow()} and of the time borrowers had to wait for a
+ * connection because the pool was exhausted.
+ */
+public class RConnectionPool {
+    private static final Logger log = LoggerFactory.getLogger(RConnectionPool.class);
+
+    private final String host;
+    private final int port;
+    private final int minSize;
+    private final int maxSize;
+
+    private RTransportFactory transportFactory = new SocketTransportFactory();
+    private String user = null;
+    private String password = null;
+    private String stringEncoding = "utf8";
+    private String validationExpression = "NULL";
+    private boolean testOnBorrow = true;
+    private boolean testOnReturn = false;
+    private String resetScript = null;
+    private long maxWait = -1;
+
+    /** idle connections, the most recently used one first */
+    private final LinkedBlockingDeque<RConnection> idle = new LinkedBlockingDeque<RConnection>();
+    /** connections currently handed out */
+    private final Set<RConnection> leased = Collections.newSetFromMap(new ConcurrentHashMap<RConnection, Boolean>());
+    /** one permit per connection that may be handed out */
+    private final Semaphore permits;
+    private volatile boolean closed = false;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong borrowTime = new AtomicLong();
+    private final AtomicLong maxBorrowTime = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /** creates a pool of connections to the given Rserve. No connection is opened until {@link #start()} or
+     * {@link #borrow()} is called.
+     * @param host host name/IP
+     * @param port TCP port
+     * @param minSize number of connections opened by {@link #start()}
+     * @param maxSize maximal number of connections (idle and borrowed) */
+    public RConnectionPool(String host, int port, int minSize, int maxSize) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.host = host;
+        this.port = port;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        permits = new Semaphore(maxSize, true);
+    }
+
+    /** @param transportFactory factory used to open new connections */
+    public void setTransportFactory(RTransportFactory transportFactory) { this.transportFactory = transportFactory; }
+
+    /** set credentials used to log in new connections if the server requires authentication
+     * @param user user name
+     * @param password password */
+    public void setCredentials(String user, String password) {
+        this.user = user;
+        this.password = password;
+    }
+
+    /** @param stringEncoding encoding set on new connections (see {@link RConnection#setStringEncoding}), default is
+     * "utf8", <code>null</code> leaves the server setting untouched */
+    public void setStringEncoding(String stringEncoding) { this.stringEncoding = stringEncoding; }
+
+    /** @param validationExpression expression evaluated by <code>voidEval</code> to check that a connection is alive,
+     * default is "NULL" */
+    public void setValidationExpression(String validationExpression) { this.validationExpression = validationExpression; }
+
+    /** @param testOnBorrow validate connections before they are handed out (default <code>true</code>) */
+    public void setTestOnBorrow(boolean testOnBorrow) { this.testOnBorrow = testOnBorrow; }
+
+    /** @param testOnReturn validate connections when they are returned (default <code>false</code>) */
+    public void setTestOnReturn(boolean testOnReturn) { this.testOnReturn = testOnReturn; }
+
+    /** @param resetScript script evaluated by <code>voidEval</code> when a connection is returned so that the next
+     * borrower doesn't see the session state of the previous one, <code>null</code> (default) disables the reset */
+    public void setResetScript(String resetScript) { this.resetScript = resetScript; }
+
+    /** @param maxWait maximal time in milliseconds {@link #borrow()} waits for a connection if the pool is exhausted,
+     * negative value (default) means wait forever */
+    public void setMaxWait(long maxWait) { this.maxWait = maxWait; }
+
+    /** opens and prepares the minimal number of connections */
+    public void start() throws RserveException {
+        while (!closed && created.get() - destroyed.get() < minSize && permits.tryAcquire()) {
+            try {
+                idle.addFirst(create());
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /** borrows a connection, waiting at most the time set by {@link #setMaxWait}
+     * @return connection ready for use */
+    public RConnection borrow() throws RserveException {
+        return borrow(maxWait);
+    }
+
+    /** borrows a connection
+     * @param timeout maximal time in milliseconds to wait if the pool is exhausted, negative value means wait forever
+     * @return connection ready for use */
+    public RConnection borrow(long timeout) throws RserveException {
+        long start = System.nanoTime();
+        if (closed) {
+            throw new RserveException(null, "Connection pool is closed");
+        }
+        acquirePermit(timeout, start);
+        try {
+            RConnection c;
+            while ((c = idle.pollFirst()) != null) {
+                if (!testOnBorrow || validate(c)) {
+                    break;
+                }
+                destroy(c);
+            }
+            if (c == null) {
+                c = create();
+            }
+            leased.add(c);
+            borrowed.incrementAndGet();
+            record(borrowTime, maxBorrowTime, System.nanoTime() - start);
+            return c;
+        } catch (RserveException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquirePermit(long timeout, long start) throws RserveException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        waited.incrementAndGet();
+        try {
+            if (timeout < 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                record(waitTime, maxWaitTime, System.nanoTime() - start);
+                throw new RserveException(null, "Timeout while waiting for a pooled connection (" + timeout + "ms)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RserveException(null, "Interrupted while waiting for a pooled connection", e);
+        }
+        record(waitTime, maxWaitTime, System.nanoTime() - start);
+    }
+
+    /** returns a borrowed connection to the pool. The connection is validated and/or reset (if configured) and
+     * evicted if that fails.
+     * @param c connection obtained by {@link #borrow()} */
+    public void release(RConnection c) {
+        if (!leased.remove(c)) {
+            throw new IllegalArgumentException("connection was not borrowed from this pool");
+        }
+        try {
+            if (closed || !c.isConnected() || !reset(c) || (testOnReturn && !validate(c))) {
+                destroy(c);
+            } else {
+                idle.addFirst(c);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /** returns a borrowed connection that must not be used any more (e.g. because it is in an unknown state); the
+     * connection is closed
+     * @param c connection obtained by {@link #borrow()} */
+    public void invalidate(RConnection c) {
+        if (!leased.remove(c)) {
+            throw new IllegalArgumentException("connection was not borrowed from this pool");
+        }
+        destroy(c);
+        permits.release();
+    }
+
+    /** returns a borrowed connection after the borrower got the given exception. The connection is evicted if the
+     * exception indicates a broken connection, otherwise it is returned as in {@link #release(RConnection)}.
+     * @param c connection obtained by {@link #borrow()}
+     * @param failure exception raised while using the connection */
+    public void release(RConnection c, Exception failure) {
+        if (isBroken(failure)) {
+            invalidate(c);
+        } else {
+            release(c);
+        }
+    }
+
+    /** checks whether an exception means that the connection is broken and can't be used any more
+     * @param e exception
+     * @return <code>true</code> for {@link RserveException}s with the <code>ERR_conn_broken</code> status and for
+     * {@link RConnectionException}s */
+    public static boolean isBroken(Exception e) {
+        return (e instanceof RConnectionException)
+                || (e instanceof RserveException && ((RserveException) e).getRequestReturnCode() == RTalk.ERR_conn_broken);
+    }
+
+    /** closes all idle connections; borrowed connections are closed when they are returned */
+    public void close() {
+        closed = true;
+        RConnection c;
+        while ((c = idle.pollFirst()) != null) {
+            destroy(c);
+        }
+    }
+
+    private RConnection create() throws RserveException {
+        RConnection c = new RConnection(host, port, transportFactory);
+        try {
+            if (c.needLogin()) {
+                c.login(user, password);
+            }
+            if (stringEncoding != null) {
+                c.setStringEncoding(stringEncoding);
+            }
+        } catch (RConnectionException e) {
+            c.close();
+            throw new RserveException(c, "Cannot log in: " + e.getMessage(), e, RTalk.ERR_conn_broken);
+        } catch (RserveException e) {
+            c.close();
+            throw e;
+        }
+        created.incrementAndGet();
+        return c;
+    }
+
+    private void destroy(RConnection c) {
+        c.close();
+        destroyed.incrementAndGet();
+    }
+
+    private boolean validate(RConnection c) {
+        try {
+            c.voidEval(validationExpression);
+            return true;
+        } catch (RserveException e) {
+            log.warn("evicting pooled connection, validation failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean reset(RConnection c) {
+        if (resetScript == null) {
+            return true;
+        }
+        try {
+            c.voidEval(resetScript);
+            return true;
+        } catch (RserveException e) {
+            log.warn("evicting pooled connection, reset failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    //========= statistics
+
+    /** @return number of idle connections */
+    public int getIdleCount() { return idle.size(); }
+
+    /** @return number of borrowed connections */
+    public int getActiveCount() { return leased.size(); }
+
+    /** @return number of connections opened by this pool */
+    public long getCreatedCount() { return created.get(); }
+
+    /** @return number of connections closed by this pool (evicted or closed by {@link #close()}) */
+    public long getDestroyedCount() { return destroyed.get(); }
+
+    /** @return number of successful {@link #borrow()} calls */
+    public long getBorrowCount() { return borrowed.get(); }
+
+    /** @return number of {@link #borrow()} calls that had to wait for a connection because the pool was exhausted */
+    public long getWaitCount() { return waited.get(); }
+
+    /** @return total time in nanoseconds spent in successful {@link #borrow()} calls (including waiting, opening and
+     * validating connections) */
+    public long getTotalBorrowTime() { return borrowTime.get(); }
+
+    /** @return longest time in nanoseconds spent in a successful {@link #borrow()} call */
+    public long getMaxBorrowTime() { return maxBorrowTime.get(); }
+
+    /** @return total time in nanoseconds borrowers waited for a connection because the pool was exhausted */
+    public long getTotalWaitTime() { return waitTime.get(); }
+
+    /** @return longest time in nanoseconds a borrower waited for a connection */
+    public long getMaxWaitTime() { return maxWaitTime.get(); }
+
+    /** @return average time in nanoseconds spent in a successful {@link #borrow()} call */
+    public long getAverageBorrowTime() {
+        long n = borrowed.get();
+        return (n == 0) ? 0 : borrowTime.get() / n;
+    }
+
+    public String toString() {
+        return "RConnectionPool[" + host + ":" + port + ",idle=" + getIdleCount() + ",active=" + getActiveCount()
+                + ",max=" + maxSize + "]";
+    }
+}
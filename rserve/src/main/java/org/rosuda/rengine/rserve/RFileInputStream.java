@@ -7,6 +7,13 @@ package org.rosuda.rengine.rserve;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.rosuda.rengine.rserve.protocol.RConnectionException;
 import org.rosuda.rengine.rserve.protocol.RPacket;
@@ -18,12 +25,29 @@ import org.rosuda.rengine.rserve.protocol.RTalk;
  * a {@link FileInputStream}. Currently mark and seek is not supported.
  * The current implementation is also "one-shot" only, that means the file
  * can be read only once.
+ * <p>
+ * The file is read in chunks of a fixed size and several chunks are requested ahead (see {@link RTalk#submit}), so
+ * the transfer is not bound by the latency of the connection. Reads are served from the received chunks, therefore
+ * small reads, including {@link #read()}, are cheap. {@link #transferTo(OutputStream)} and
+ * {@link #transferTo(WritableByteChannel)} write the chunks straight to their destination. While the stream is open
+ * other requests on the same connection wait until the requested chunks were received.
  * @version $Id$
  */
 public class RFileInputStream extends InputStream {
+    /** default size of the chunks requested from the server */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    /** default number of chunks requested ahead */
+    public static final int DEFAULT_READ_AHEAD = 4;
+
     /** RTalk class to use for communication with the Rserve */
     private final RTalk rt;
-   
+    private final int chunkSize;
+    private final int readAhead;
+    /** requested but not yet consumed chunks in the order of the file */
+    private final ArrayDeque<CompletableFuture<RPacket>> requested = new ArrayDeque<CompletableFuture<RPacket>>();
+    /** unread part of the current chunk, <code>null</code> if there is none */
+    private ByteBuffer chunk;
+
     /** set to <code>true</code> when {@link #close} was called.
      Any subsequent read requests on closed stream  result in an
      {@link IOException} or error result */
@@ -40,7 +64,19 @@ public class RFileInputStream extends InputStream {
      purposes. Therefore only filenames without path specification are considered
      valid, the behavior in respect to absolute paths in filenames is undefined. */
     RFileInputStream(RTalk rti, String fn) throws IOException {
+        this(rti, fn, DEFAULT_CHUNK_SIZE, DEFAULT_READ_AHEAD);
+    }
+
+    /** opens a file on the R server, see {@link #RFileInputStream(RTalk, String)}
+     @param chunkSize number of bytes requested at a time
+     @param readAhead maximal number of outstanding chunk requests, 1 disables pipelining */
+    RFileInputStream(RTalk rti, String fn, int chunkSize, int readAhead) throws IOException {
+        if (chunkSize < 1 || readAhead < 1) {
+            throw new IllegalArgumentException("invalid chunk size " + chunkSize + " or read-ahead " + readAhead);
+        }
         rt = rti;
+        this.chunkSize = chunkSize;
+        this.readAhead = readAhead;
         RPacket rp = null;
         try {
             rp = rt.request(RTalk.CMD_openFile, fn);
@@ -55,61 +91,137 @@ public class RFileInputStream extends InputStream {
         eof = false;
     }
 
-    /** reads one byte from the file. This function should be avoided, since
-     {@link RFileInputStream} provides no buffering. This means that each
-     call to this function leads to a complete packet exchange between
-     the server and the client. Use {@link #read(byte[], int, int)} instead
-     whenever possible. In fact this function calls <code>#read(b,0,1)</code>.
-     @return -1 on any failure, or the acquired byte (0..255) on success */
+    /** reads one byte from the file. The byte is taken from the current chunk, so a packet exchange with the
+     server only happens once a chunk is used up.
+     @return -1 on EOF, or the acquired byte (0..255) on success */
     public int read() throws IOException {
-        byte[] b = new byte[1];
-        if (read(b, 0, 1) < 1) {
+        if (!nextChunk()) {
             return -1;
         }
-        return b[0];
+        return chunk.get() & 255;
     }
 
-    /** Reads specified number of bytes (or less) from the remote file.
+    /** Reads specified number of bytes (or less) from the remote file. It blocks only if no data was received yet,
+     otherwise it returns the data received so far (up to <code>len</code> bytes).
      @param b buffer to store the read bytes
      @param off offset where to strat filling the buffer
      @param len maximal number of bytes to read
      @return number of bytes read or -1 if EOF reached
      */
     public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = 0;
+        do {
+            int k = Math.min(len - n, chunk.remaining());
+            chunk.get(b, off + n, k);
+            n += k;
+        } while (n < len && !requested.isEmpty() && requested.peekFirst().isDone() && nextChunk());
+        return n;
+    }
+
+    /** returns the number of bytes which can be read without waiting for the server
+     @return number of bytes in the current chunk */
+    public int available() throws IOException {
         if (closed) {
             throw new IOException("File is not open");
         }
-        if (eof) {
-            return -1;
+        return (chunk == null) ? 0 : chunk.remaining();
+    }
+
+    /** reads the rest of the file and writes it to a stream. The received chunks are written directly, without copying
+     them.
+     @param out destination, it is not closed
+     @return number of bytes transferred */
+    public long transferTo(OutputStream out) throws IOException {
+        long n = 0;
+        while (nextChunk()) {
+            int k = chunk.remaining();
+            out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), k);
+            chunk.position(chunk.limit());
+            n += k;
         }
-        RPacket rp = null;
-        try {
-            rp = rt.request(RTalk.CMD_readFile, len);
-            if (rp == null || !rp.isOk()) {
-                throw new IOException((rp == null) ? RFileStreamUtils.CONNECTION_TO_RSERVE_FAILED_ERROR_MESSAGE
-                                                   : ("Request return code: " + rp.getStat()));
+        return n;
+    }
+
+    /** reads the rest of the file and writes it to a channel, e.g. a {@link java.nio.channels.FileChannel}. The received
+     chunks are written directly, without copying them.
+     @param out destination, it is not closed
+     @return number of bytes transferred */
+    public long transferTo(WritableByteChannel out) throws IOException {
+        long n = 0;
+        while (nextChunk()) {
+            int k = chunk.remaining();
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
             }
-        } catch (RConnectionException e) {
-            throw new IOException(RFileStreamUtils.CONNECTION_TO_RSERVE_FAILED_ERROR_MESSAGE, e);
+            n += k;
         }
-        byte[] rd = rp.getCont();
-        if (rd == null) {
-            eof = true;
-            return -1;
+        return n;
+    }
+
+    /** makes sure that the current chunk has unread bytes, waiting for the next chunk if necessary, and keeps the
+     configured number of chunks requested
+     @return <code>false</code> on EOF */
+    private boolean nextChunk() throws IOException {
+        if (closed) {
+            throw new IOException("File is not open");
         }
-        int i = 0;
-        while (i < rd.length) {
-            b[off + i] = rd[i];
-            i++;
+        while (chunk == null || !chunk.hasRemaining()) {
+            chunk = null;
+            if (eof) {
+                return false;
+            }
+            while (requested.size() < readAhead) {
+                requested.addLast(rt.submit(RTalk.CMD_readFile, readParameter()));
+            }
+            RPacket rp = await(requested.pollFirst());
+            if (!rp.isOk()) {
+                throw new IOException("Request return code: " + rp.getStat());
+            }
+            ByteBuffer rd = rp.getContBuffer();
+            if (rd == null || !rd.hasRemaining()) {
+                // chunks requested behind the end are answered with no data as well, nobody waits for them
+                eof = true;
+                requested.clear();
+                return false;
+            }
+            chunk = rd;
+        }
+        return true;
+    }
+
+    /** returns the DT_INT parameter of a read request */
+    private byte[] readParameter() {
+        byte[] rq = new byte[8];
+        RTalk.setInt(chunkSize, rq, 4);
+        RTalk.setHdr(RTalk.DT_INT, 4, rq, 0);
+        return rq;
+    }
+
+    private static RPacket await(CompletableFuture<RPacket> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from Rserve");
+        } catch (ExecutionException e) {
+            throw new IOException(RFileStreamUtils.CONNECTION_TO_RSERVE_FAILED_ERROR_MESSAGE, e.getCause());
         }
-        return rd.length;
     }
 
     /** close stream - is not related to the actual RConnection, calling
-     close does not close the RConnection
+     close does not close the RConnection. Chunks which were requested
+     but not read are discarded.
      */
     public void close() throws IOException {
-        RFileStreamUtils.close(rt);
         closed = true;
+        chunk = null;
+        requested.clear();
+        RFileStreamUtils.close(rt);
     }
 }
@@ -11,7 +11,16 @@ package org.rosuda.rengine.rserve;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.rosuda.rengine.rserve.protocol.RConnectionException;
 import org.rosuda.rengine.rserve.protocol.RPacket;
@@ -23,13 +32,30 @@ import org.rosuda.rengine.rserve.protocol.RTalk;
  a {@link FileOutputStream}. Currently mark and seek is not supported.
  The current implementation is also "one-shot" only, that means the file
  can be written only once.
+ <p>
+ Writes are collected into chunks of a fixed size and each full chunk is sent without waiting for the server to
+ acknowledge it (see {@link RTalk#submit}), up to a bounded number of unacknowledged chunks. The transfer is therefore
+ limited by the bandwidth rather than the latency of the connection. A failed write may consequently only be reported
+ by a later write, by {@link #flush()} or by {@link #close()}, which both wait for all acknowledgements.
  @version $Id$
  */
 
 public class RFileOutputStream extends OutputStream {
+    /** default size of the chunks sent to the server */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    /** default number of chunks which may be sent before the first of them is acknowledged */
+    public static final int DEFAULT_WRITE_BEHIND = 4;
+
     /**
      * RTalk class to use for communication with the Rserve */
     private final RTalk rt;
+    /** chunk which is being filled */
+    private final byte[] buf;
+    /** number of bytes in <code>buf</code> */
+    private int count;
+    private final int writeBehind;
+    /** sent but not yet acknowledged chunks in the order they were sent */
+    private final ArrayDeque<CompletableFuture<RPacket>> unacknowledged = new ArrayDeque<CompletableFuture<RPacket>>();
 
     /**
      * Set to <code>true</code> when {@link #close} was called.
@@ -50,7 +76,23 @@ public class RFileOutputStream extends OutputStream {
      * @param fn filename of the file to create (existing file will be overwritten)
      */
     RFileOutputStream(RTalk rti, String fn) throws IOException {
+        this(rti, fn, DEFAULT_CHUNK_SIZE, DEFAULT_WRITE_BEHIND);
+    }
+
+    /**
+     * Creates a file on the R server, see {@link #RFileOutputStream(RTalk, String)}.
+     * @param rti RTalk object for communication with Rserve
+     * @param fn filename of the file to create (existing file will be overwritten)
+     * @param chunkSize number of bytes sent at a time
+     * @param writeBehind maximal number of unacknowledged chunks, 1 waits for each chunk before the next one is sent
+     */
+    RFileOutputStream(RTalk rti, String fn, int chunkSize, int writeBehind) throws IOException {
+        if (chunkSize < 1 || writeBehind < 1) {
+            throw new IllegalArgumentException("invalid chunk size " + chunkSize + " or write-behind " + writeBehind);
+        }
         rt = rti;
+        buf = new byte[chunkSize];
+        this.writeBehind = writeBehind;
         try {
             RPacket rp = rt.request(RTalk.CMD_createFile, fn);
             if (rp == null || !rp.isOk()) {
@@ -64,16 +106,15 @@ public class RFileOutputStream extends OutputStream {
     }
 
     /**
-     * Writes one byte to the file. This function should be avoided, since
-     * {@link RFileOutputStream} provides no buffering. This means that each
-     * call to this function leads to a complete packet exchange between
-     * the server and the client. Use {@link #write(byte[])} instead
-     * whenever possible. In fact this function calls <code>write(b,0,1)</code>.
+     * Writes one byte to the file. The byte is added to the current chunk.
      * @param b byte to write
      */
     public void write(int b) throws IOException {
-        byte[] ba = new byte[1];
-        write(ba, 0, 1);
+        checkOpen();
+        buf[count++] = (byte) b;
+        if (count == buf.length) {
+            sendBuffer();
+        }
     }
 
     /**
@@ -85,43 +126,140 @@ public class RFileOutputStream extends OutputStream {
     }
 
     /**
-     * Writes specified number of bytes to the remote file.
+     * Writes specified number of bytes to the remote file. Small writes are collected in the current chunk, full chunks
+     * of large writes are sent straight from <code>b</code>.
      * @param b buffer containing the bytes to write
      * @param off offset where to start
      * @param len number of bytes to write
      */
     public void write(byte[] b, int off, int len) throws IOException {
-        if (closed) {
-            throw new IOException("File is not open");
+        checkOpen();
+        if (len <= 0) {
+            return;
         }
-        if (len < 0) {
-            len = 0;
+        if (count > 0) {
+            int k = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, k);
+            count += k;
+            off += k;
+            len -= k;
+            if (count < buf.length) {
+                return;
+            }
+            sendBuffer();
         }
-        byte[] hdr = RTalk.newHdr(RTalk.DT_BYTESTREAM, len);
-        try {
-            RPacket rp = rt.request(RTalk.CMD_writeFile, hdr, b, off, len);
-            if (rp == null || !rp.isOk()) {
-                throw new IOException((rp == null) ? RFileStreamUtils.CONNECTION_TO_RSERVE_FAILED_ERROR_MESSAGE
-                                                   : ("Request return code: " + rp.getStat()));
+        while (len >= buf.length) {
+            send(b, off, buf.length);
+            off += buf.length;
+            len -= buf.length;
+        }
+        System.arraycopy(b, off, buf, 0, len);
+        count = len;
+    }
+
+    /**
+     * Writes the remaining content of a channel to the file. The content is read into the current chunk directly.
+     * @param src channel to read from, e.g. a {@link FileChannel}; it is not closed
+     * @return number of bytes transferred
+     */
+    public long transferFrom(ReadableByteChannel src) throws IOException {
+        checkOpen();
+        long n = 0;
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (true) {
+            bb.limit(buf.length).position(count);
+            int rd = src.read(bb);
+            if (rd < 0) {
+                return n;
+            }
+            n += rd;
+            count += rd;
+            if (count == buf.length) {
+                sendBuffer();
             }
-        } catch (RConnectionException e) {
-            throw new IOException(RFileStreamUtils.CONNECTION_TO_RSERVE_FAILED_ERROR_MESSAGE, e);
+        }
+    }
+
+    /**
+     * Writes the content of a local file to the file.
+     * @param src path of the local file
+     * @return number of bytes transferred
+     */
+    public long transferFrom(Path src) throws IOException {
+        FileChannel fc = FileChannel.open(src, StandardOpenOption.READ);
+        try {
+            return transferFrom(fc);
+        } finally {
+            fc.close();
         }
     }
 
     /**
      * Close stream - is not related to the actual RConnection, calling
-     * close does not close the RConnection.
+     * close does not close the RConnection. Data which was not sent yet is
+     * sent first, errors of unacknowledged writes are reported here.
      */
     public void close() throws IOException {
-        RFileStreamUtils.close(rt);
-        closed = true;
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            RFileStreamUtils.close(rt);
+        }
     }
 
     /**
-     * Currently (Rserve 0.3) there is no way to force flush on the remote side, hence this function is noop. Future
-     * versions of Rserve may support this feature though. At any rate, it is safe to call it.
+     * Sends the current chunk and waits until all chunks were acknowledged by the server. Currently (Rserve 0.3) there
+     * is no way to force flush on the remote side, so the data is not necessarily on disk yet.
      */
-    public void flush() {
+    public void flush() throws IOException {
+        checkOpen();
+        if (count > 0) {
+            sendBuffer();
+        }
+        while (!unacknowledged.isEmpty()) {
+            acknowledge();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("File is not open");
+        }
+    }
+
+    private void sendBuffer() throws IOException {
+        send(buf, 0, count);
+        count = 0;
+    }
+
+    /** sends a chunk once there is room for another unacknowledged write. The content is on the wire when this method
+     returns, so the array can be re-used right away. */
+    private void send(byte[] b, int off, int len) throws IOException {
+        while (!unacknowledged.isEmpty() && (unacknowledged.size() >= writeBehind || unacknowledged.peekFirst().isDone())) {
+            acknowledge();
+        }
+        unacknowledged.addLast(rt.submit(RTalk.CMD_writeFile, RTalk.newHdr(RTalk.DT_BYTESTREAM, len), b, off, len));
+    }
+
+    /** waits for the acknowledgement of the oldest unacknowledged chunk */
+    private void acknowledge() throws IOException {
+        RPacket rp;
+        try {
+            rp = unacknowledged.peekFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to Rserve");
+        } catch (ExecutionException e) {
+            unacknowledged.clear(); // all of them fail the same way
+            throw new IOException(RFileStreamUtils.CONNECTION_TO_RSERVE_FAILED_ERROR_MESSAGE, e.getCause());
+        }
+        unacknowledged.pollFirst();
+        if (!rp.isOk()) {
+            throw new IOException("Request return code: " + rp.getStat());
+        }
     }
 }
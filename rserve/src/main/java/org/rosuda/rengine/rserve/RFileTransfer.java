@@ -0,0 +1,449 @@
+package org.rosuda.rengine.rserve;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPRaw;
+
+/**
+ * Transfers large files between the client and an Rserve over several pooled connections at once. A single
+ * connection moves one request at a time, so its throughput is bound by the latency of the link; splitting the file
+ * into byte ranges which are moved concurrently uses the bandwidth instead.
+ * <p>
+ * Each connection takes the next untransferred range of the file, opens the remote file with an R connection, seeks
+ * to the start of the range and moves the range block by block with <code>readBin</code> (as a result of
+ * <code>eval</code>) or <code>writeBin</code> (of an assigned raw vector). The local file is read and written at the
+ * offsets of the ranges, so no reassembly is needed. Afterwards the MD5 sum of the local file is compared with the
+ * one computed by <code>tools::md5sum</code> on the server, unless verification is disabled.
+ * <p>
+ * Files from a given size on (see {@link #setCompressionThreshold(long)}) are transferred compressed: every block is
+ * compressed in zlib format by <code>memCompress(..., 'gzip')</code> on the server and inflated by the client, or
+ * deflated by the client and decompressed by <code>memDecompress</code> on the server. This trades CPU time on both
+ * sides for bandwidth. {@link Result#getWireBytes()} tells how many bytes were actually moved.
+ * <pre>
+ * RConnectionPool pool = new RConnectionPool(host, 6311, 0, 8);
+ * RFileTransfer.Result r = new RFileTransfer(pool, 8).download("model.rds", Paths.get("/data/model.rds"));
+ * System.out.println(r);
+ * </pre>
+ * The remote file name is interpreted by R on the server, relative to the working directory of the session. The
+ * pool must allow at least as many connections as are used for a transfer, otherwise the surplus workers wait for
+ * a connection (and may time out, see {@link RConnectionPool#setMaxWait(long)}).
+ */
+public class RFileTransfer {
+    /** default size of the ranges assigned to one connection at a time */
+    public static final long DEFAULT_RANGE_SIZE = 64L * 1024 * 1024;
+    /** default size of the blocks moved by one request; it fits into the default send buffer of Rserve */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /** R variables used on the connections */
+    private static final String FILE_VAR = ".rfile.transfer";
+    private static final String BLOCK_VAR = ".rfile.block";
+
+    private static final ThreadFactory THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RFileTransfer");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final RConnectionPool pool;
+    private final int connections;
+    private long rangeSize = DEFAULT_RANGE_SIZE;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private boolean verify = true;
+    private long compressionThreshold = Long.MAX_VALUE;
+
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong totalWireBytes = new AtomicLong();
+
+    /** creates a transfer utility
+     * @param pool pool providing the connections
+     * @param connections maximal number of connections used by one transfer */
+    public RFileTransfer(RConnectionPool pool, int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("invalid number of connections: " + connections);
+        }
+        this.pool = pool;
+        this.connections = connections;
+    }
+
+    /** @param rangeSize number of bytes a connection transfers before it takes the next range, at least the block size */
+    public void setRangeSize(long rangeSize) {
+        if (rangeSize < 1) {
+            throw new IllegalArgumentException("invalid range size: " + rangeSize);
+        }
+        this.rangeSize = rangeSize;
+    }
+
+    /** @param blockSize number of bytes moved by one request; responses must fit into the send buffer of the server,
+     * see {@link RConnection#setSendBufferSize(long)} */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("invalid block size: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /** @param verify <code>true</code> (the default) to compare the MD5 sums of the local and the remote file after a
+     * transfer */
+    public void setVerify(boolean verify) { this.verify = verify; }
+
+    /** @param bytes size from which files are transferred compressed, <code>Long.MAX_VALUE</code> (the default) never
+     * compresses and 0 always does */
+    public void setCompressionThreshold(long bytes) { this.compressionThreshold = bytes; }
+
+    /** @return number of bytes of all files transferred so far */
+    public long getTotalBytes() { return totalBytes.get(); }
+
+    /** @return number of payload bytes moved over the connections for all transfers so far, compressed blocks are
+     * counted with their compressed size */
+    public long getTotalWireBytes() { return totalWireBytes.get(); }
+
+    /** copies a file from the server to the client
+     * @param remote name of the file on the server
+     * @param local local file, it is created or overwritten
+     * @return statistics of the transfer
+     * @throws IOException if the transfer fails or the checksums differ */
+    public Result download(final String remote, Path local) throws IOException {
+        long start = System.nanoTime();
+        REXP s = evalOnce("file.info(" + quote(remote) + ")$size");
+        double d;
+        try {
+            d = s.asDouble();
+        } catch (REXPMismatchException e) {
+            throw new IOException("Cannot determine the size of " + remote, e);
+        }
+        if (Double.isNaN(d)) { // NA
+            throw new IOException("Remote file " + remote + " does not exist");
+        }
+        final long size = (long) d;
+        final boolean compress = size >= compressionThreshold;
+        final AtomicLong wire = new AtomicLong();
+        final FileChannel out = FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            transfer(size, new RangeTask() {
+                public void run(RConnection c, long off, long len) throws IOException, RserveException, REXPMismatchException {
+                    c.voidEval(FILE_VAR + " <- file(" + quote(remote) + ", 'rb'); invisible(seek(" + FILE_VAR + ", " + off + "))");
+                    Inflater inf = compress ? new Inflater() : null;
+                    try {
+                        while (len > 0) {
+                            int n = (int) Math.min(len, blockSize);
+                            String read = "readBin(" + FILE_VAR + ", 'raw', " + n + "L)";
+                            ByteBuffer b;
+                            if (compress) {
+                                byte[] z = ((REXPRaw) c.eval("memCompress(" + read + ", 'gzip')")).asBytes();
+                                wire.addAndGet(z.length);
+                                b = ByteBuffer.wrap(inflate(inf, z, n));
+                            } else {
+                                b = ((REXPRaw) c.eval(read)).asByteBuffer();
+                                wire.addAndGet(b.remaining());
+                            }
+                            if (b.remaining() != n) {
+                                throw new IOException("Remote file " + remote + " ended at " + (off + b.remaining()) + " bytes");
+                            }
+                            while (b.hasRemaining()) {
+                                off += out.write(b, off);
+                            }
+                            len -= n;
+                        }
+                    } finally {
+                        if (inf != null) {
+                            inf.end();
+                        }
+                        c.voidEval("close(" + FILE_VAR + "); rm(" + FILE_VAR + ")");
+                    }
+                }
+            });
+            out.force(false);
+        } finally {
+            out.close();
+        }
+        return finish(remote, local, size, wire.get(), start);
+    }
+
+    /** copies a file from the client to the server
+     * @param local local file
+     * @param remote name of the file on the server, it is created or overwritten
+     * @return statistics of the transfer
+     * @throws IOException if the transfer fails or the checksums differ */
+    public Result upload(Path local, final String remote) throws IOException {
+        long start = System.nanoTime();
+        final FileChannel in = FileChannel.open(local, StandardOpenOption.READ);
+        final AtomicLong wire = new AtomicLong();
+        long size;
+        try {
+            size = in.size();
+            final boolean compress = size >= compressionThreshold;
+            evalOnce("close(file(" + quote(remote) + ", 'wb'))"); // creates or truncates the file
+            transfer(size, new RangeTask() {
+                public void run(RConnection c, long off, long len) throws IOException, RserveException, REXPMismatchException {
+                    c.voidEval(FILE_VAR + " <- file(" + quote(remote) + ", 'r+b'); invisible(seek(" + FILE_VAR + ", " + off + ", rw = 'write'))");
+                    Deflater def = compress ? new Deflater() : null;
+                    try {
+                        byte[] block = null;
+                        while (len > 0) {
+                            int n = (int) Math.min(len, blockSize);
+                            if (block == null || block.length != n) {
+                                block = new byte[n];
+                            }
+                            ByteBuffer b = ByteBuffer.wrap(block);
+                            while (b.hasRemaining()) {
+                                if (in.read(b, off + b.position()) < 0) {
+                                    throw new IOException("Local file ended at " + (off + b.position()) + " bytes");
+                                }
+                            }
+                            if (compress) {
+                                byte[] z = deflate(def, block);
+                                wire.addAndGet(z.length);
+                                c.assign(BLOCK_VAR, new REXPRaw(z));
+                                c.voidEval("writeBin(memDecompress(" + BLOCK_VAR + ", 'gzip'), " + FILE_VAR + ")");
+                            } else {
+                                wire.addAndGet(n);
+                                c.assign(BLOCK_VAR, new REXPRaw(block));
+                                c.voidEval("writeBin(" + BLOCK_VAR + ", " + FILE_VAR + ")");
+                            }
+                            off += n;
+                            len -= n;
+                        }
+                    } finally {
+                        if (def != null) {
+                            def.end();
+                        }
+                        c.voidEval("close(" + FILE_VAR + "); suppressWarnings(rm(" + FILE_VAR + ", " + BLOCK_VAR + "))");
+                    }
+                }
+            });
+        } finally {
+            in.close();
+        }
+        return finish(remote, local, size, wire.get(), start);
+    }
+
+    /** transfers one range of the file over a borrowed connection */
+    interface RangeTask {
+        void run(RConnection c, long off, long len) throws IOException, RserveException, REXPMismatchException;
+    }
+
+    /** splits the file into ranges and runs the task for them on up to <code>connections</code> connections */
+    void transfer(final long size, final RangeTask task) throws IOException {
+        if (size == 0) {
+            return;
+        }
+        final long range = Math.max(rangeSize, blockSize);
+        final long ranges = (size + range - 1) / range;
+        final AtomicLong next = new AtomicLong();
+        int workers = (int) Math.min(connections, ranges);
+        ExecutorService ex = Executors.newFixedThreadPool(workers, THREADS);
+        try {
+            List<Future<Void>> fs = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workers; i++) {
+                fs.add(ex.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        RConnection c = pool.borrow();
+                        try {
+                            long r;
+                            while ((r = next.getAndIncrement()) < ranges) {
+                                long off = r * range;
+                                task.run(c, off, Math.min(range, size - off));
+                            }
+                        } catch (Exception e) {
+                            next.set(ranges); // the other workers stop after their current range
+                            pool.release(c, e);
+                            throw e;
+                        }
+                        pool.release(c);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : fs) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    Throwable t = e.getCause();
+                    throw (t instanceof IOException) ? (IOException) t : new IOException("File transfer failed: " + t.getMessage(), t);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during file transfer");
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+
+    /** verifies the transfer if enabled and creates the statistics */
+    private Result finish(String remote, Path local, long size, long wire, long start) throws IOException {
+        totalBytes.addAndGet(size);
+        totalWireBytes.addAndGet(wire);
+        String sum = null;
+        if (verify) {
+            sum = md5(local);
+            REXP r = evalOnce("unname(tools::md5sum(" + quote(remote) + "))");
+            String rsum;
+            try {
+                rsum = r.asString();
+            } catch (REXPMismatchException e) {
+                throw new IOException("Cannot compute the checksum of " + remote, e);
+            }
+            if (!sum.equalsIgnoreCase(rsum)) {
+                throw new IOException("Checksum mismatch after transfer of " + remote + ": local " + sum + ", remote " + rsum);
+            }
+        }
+        return new Result(size, wire, System.nanoTime() - start, sum);
+    }
+
+    /** evaluates an expression on a connection borrowed for this purpose */
+    private REXP evalOnce(String cmd) throws IOException {
+        RConnection c;
+        try {
+            c = pool.borrow();
+        } catch (RserveException e) {
+            throw new IOException(RFileStreamUtils.CONNECTION_TO_RSERVE_FAILED_ERROR_MESSAGE, e);
+        }
+        try {
+            REXP r = c.eval(cmd);
+            pool.release(c);
+            return r;
+        } catch (RserveException e) {
+            pool.release(c, e);
+            throw new IOException("Evaluation of " + cmd + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    /** inflates a block of zlib data
+     @param inf inflater, it is reset
+     @param z compressed data
+     @param n expected size of the data
+     @return inflated data, shorter than <code>n</code> if there was less data */
+    static byte[] inflate(Inflater inf, byte[] z, int n) throws IOException {
+        inf.reset();
+        inf.setInput(z);
+        byte[] b = new byte[n];
+        int k = 0;
+        try {
+            while (k < n && !inf.finished()) {
+                int r = inf.inflate(b, k, n - k);
+                if (r == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                k += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed block", e);
+        }
+        return (k == n) ? b : Arrays.copyOf(b, k);
+    }
+
+    /** deflates a block into zlib format
+     @param def deflater, it is reset
+     @param b data
+     @return compressed data */
+    static byte[] deflate(Deflater def, byte[] b) {
+        def.reset();
+        def.setInput(b);
+        def.finish();
+        byte[] z = new byte[b.length + b.length / 1000 + 64]; // more than the worst case of incompressible data
+        int k = 0;
+        while (!def.finished()) {
+            if (k == z.length) {
+                z = Arrays.copyOf(z, z.length * 2);
+            }
+            k += def.deflate(z, k, z.length - k);
+        }
+        return Arrays.copyOf(z, k);
+    }
+
+    private static String md5(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available", e);
+        }
+        FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer b = ByteBuffer.allocate(DEFAULT_BLOCK_SIZE);
+            while (fc.read(b) >= 0) {
+                b.flip();
+                md.update(b);
+                b.clear();
+            }
+        } finally {
+            fc.close();
+        }
+        StringBuilder sb = new StringBuilder(32);
+        for (byte x : md.digest()) {
+            sb.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+        }
+        return sb.toString();
+    }
+
+    /** returns a string as R string literal */
+    static String quote(String s) {
+        return "'" + s.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /** statistics of a finished transfer */
+    public static final class Result {
+        private final long bytes;
+        private final long wireBytes;
+        private final long nanos;
+        private final String checksum;
+
+        Result(long bytes, long wireBytes, long nanos, String checksum) {
+            this.bytes = bytes;
+            this.wireBytes = wireBytes;
+            this.nanos = nanos;
+            this.checksum = checksum;
+        }
+
+        /** @return number of bytes transferred */
+        public long getBytes() { return bytes; }
+
+        /** @return number of payload bytes moved over the connections, less than {@link #getBytes()} if the transfer
+         * was compressed */
+        public long getWireBytes() { return wireBytes; }
+
+        /** @return number of bytes saved by compression, negative if the data was incompressible */
+        public long getSavedBytes() { return bytes - wireBytes; }
+
+        /** @return duration of the transfer including the verification in nanoseconds */
+        public long getNanos() { return nanos; }
+
+        /** @return average throughput in bytes per second */
+        public double getThroughput() { return (nanos == 0) ? 0 : bytes * 1e9 / nanos; }
+
+        /** @return MD5 sum of the file as hexadecimal string or <code>null</code> if the transfer was not verified */
+        public String getChecksum() { return checksum; }
+
+        public String toString() {
+            return "RFileTransfer.Result[" + bytes + " bytes (" + wireBytes + " on the wire) in " + (nanos / 1000000) + "ms, "
+                    + String.format("%.1f", getThroughput() / (1024 * 1024)) + " MB/s"
+                    + ((checksum == null) ? "" : ", md5=" + checksum) + "]";
+        }
+    }
+}
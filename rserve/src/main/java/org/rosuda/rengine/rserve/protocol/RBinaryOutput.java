@@ -0,0 +1,189 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Little-endian sink for the binary representation of R-expressions written by {@link REXPFactory}. It either writes
+ * into a caller supplied array or buffer or it stages the output in a small buffer and passes it on to a stream, which
+ * allows representations larger than an array.
+ */
+final class RBinaryOutput {
+    /** size of the staging buffer in stream mode */
+    private static final int STAGING = 64 * 1024;
+
+    private final OutputStream out;
+    private final ByteBuffer buf;
+    /** position of the first byte in the buffer */
+    private final int base;
+    /** number of bytes passed on to the stream so far */
+    private long flushed;
+
+    /** creates a sink writing into an array
+     @param b array
+     @param off offset of the first byte to write */
+    RBinaryOutput(byte[] b, int off) {
+        out = null;
+        buf = ByteBuffer.wrap(b, off, b.length - off).order(ByteOrder.LITTLE_ENDIAN);
+        base = off;
+    }
+
+    /** creates a sink writing into a buffer starting at its position; the position of <code>b</code> is not changed
+     @param b buffer, heap or direct */
+    RBinaryOutput(ByteBuffer b) {
+        out = null;
+        buf = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+        base = 0;
+    }
+
+    /** creates a sink writing to a stream; {@link #flush()} must be called when done
+     @param out stream
+     @param size expected number of bytes, used to size the staging buffer */
+    RBinaryOutput(OutputStream out, long size) {
+        this.out = out;
+        buf = ByteBuffer.allocate((int) Math.max(16, Math.min(STAGING, size))).order(ByteOrder.LITTLE_ENDIAN);
+        base = 0;
+    }
+
+    /** returns the number of bytes written so far */
+    long position() {
+        return flushed + buf.position() - base;
+    }
+
+    void put(byte b) throws IOException {
+        ensure(1);
+        buf.put(b);
+    }
+
+    void putInt(int v) throws IOException {
+        ensure(4);
+        buf.putInt(v);
+    }
+
+    void putLong(long v) throws IOException {
+        ensure(8);
+        buf.putLong(v);
+    }
+
+    /** writes a header of an expression or a parameter, the length uses 56 bits if it exceeds 0xfffff0 */
+    void putHeader(int ty, long len) throws IOException {
+        if (len > 0xfffff0) {
+            putInt((ty | RTalk.DT_LARGE) & 255 | (int) ((len & 0xffffff) << 8));
+            putInt((int) (len >>> 24));
+        } else {
+            putInt((ty & 255) | (int) (len << 8));
+        }
+    }
+
+    void put(byte[] b, int off, int len) throws IOException {
+        if (out == null || len <= buf.remaining()) {
+            buf.put(b, off, len);
+            return;
+        }
+        flush();
+        out.write(b, off, len);
+        flushed += len;
+    }
+
+    /** writes the remaining bytes of the buffer, which may be direct memory */
+    void put(ByteBuffer a) throws IOException {
+        while (a.hasRemaining()) {
+            ensure(1);
+            int n = Math.min(buf.remaining(), a.remaining());
+            if (n == 0) {
+                throw new BufferOverflowException();
+            }
+            ByteBuffer s = a.duplicate();
+            s.limit(s.position() + n);
+            buf.put(s);
+            a.position(a.position() + n);
+        }
+    }
+
+    void putInts(int[] a) throws IOException {
+        int i = 0;
+        while (i < a.length) {
+            ensure(4);
+            int n = Math.min(buf.remaining() / 4, a.length - i);
+            if (n == 0) { // writing into an array or buffer which is too short
+                throw new BufferOverflowException();
+            }
+            buf.asIntBuffer().put(a, i, n);
+            buf.position(buf.position() + n * 4);
+            i += n;
+        }
+    }
+
+    /** writes the remaining values of the buffer, which may be a view of direct memory */
+    void putInts(IntBuffer a) throws IOException {
+        while (a.hasRemaining()) {
+            ensure(4);
+            int n = Math.min(buf.remaining() / 4, a.remaining());
+            if (n == 0) {
+                throw new BufferOverflowException();
+            }
+            IntBuffer s = a.duplicate();
+            s.limit(s.position() + n);
+            buf.asIntBuffer().put(s);
+            buf.position(buf.position() + n * 4);
+            a.position(a.position() + n);
+        }
+    }
+
+    void putDoubles(double[] a) throws IOException {
+        int i = 0;
+        while (i < a.length) {
+            ensure(8);
+            int n = Math.min(buf.remaining() / 8, a.length - i);
+            if (n == 0) { // writing into an array or buffer which is too short
+                throw new BufferOverflowException();
+            }
+            buf.asDoubleBuffer().put(a, i, n);
+            buf.position(buf.position() + n * 8);
+            i += n;
+        }
+    }
+
+    /** writes the remaining values of the buffer, which may be a view of direct memory */
+    void putDoubles(DoubleBuffer a) throws IOException {
+        while (a.hasRemaining()) {
+            ensure(8);
+            int n = Math.min(buf.remaining() / 8, a.remaining());
+            if (n == 0) {
+                throw new BufferOverflowException();
+            }
+            DoubleBuffer s = a.duplicate();
+            s.limit(s.position() + n);
+            buf.asDoubleBuffer().put(s);
+            buf.position(buf.position() + n * 8);
+            a.position(a.position() + n);
+        }
+    }
+
+    /** writes <code>b</code> until {@link #position()} reaches <code>pos</code> */
+    void padTo(long pos, byte b) throws IOException {
+        while (position() < pos) {
+            put(b);
+        }
+    }
+
+    /** passes staged bytes on to the stream; does nothing when writing into an array */
+    void flush() throws IOException {
+        if (out != null && buf.position() > 0) {
+            out.write(buf.array(), buf.arrayOffset(), buf.position());
+            flushed += buf.position();
+            buf.clear();
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() < n) {
+            flush();
+        }
+    }
+}
@@ -4,9 +4,18 @@ package org.rosuda.rengine.rserve.protocol;
 // Copyright (C) 2004-8 Simon Urbanek
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDictionaryString;
 import org.rosuda.rengine.REXPDouble;
 import org.rosuda.rengine.REXPExpressionVector;
 import org.rosuda.rengine.REXPFactor;
@@ -22,8 +31,8 @@ import org.rosuda.rengine.REXPS4;
 import org.rosuda.rengine.REXPString;
 import org.rosuda.rengine.REXPSymbol;
 import org.rosuda.rengine.REXPUnknown;
+import org.rosuda.rengine.RArrayList;
 import org.rosuda.rengine.RList;
-import org.rosuda.rengine.rserve.RConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,85 +45,130 @@ public class REXPFactory {
     private static final Logger log = LoggerFactory.getLogger(REXPFactory.class);
 
     /** xpression type: NULL */
-    private static final int XT_NULL = 0;
+    static final int XT_NULL = 0;
     /** xpression type: integer */
-    private static final int XT_INT = 1;
+    static final int XT_INT = 1;
     /** xpression type: double */
-    private static final int XT_DOUBLE = 2;
+    static final int XT_DOUBLE = 2;
     /** xpression type: String */
-    private static final int XT_STR = 3;
+    static final int XT_STR = 3;
     /** xpression type: language construct (currently content is same as list) */
-    private static final int XT_LANG = 4;
+    static final int XT_LANG = 4;
     /** xpression type: symbol (content is symbol name: String) */
-    private static final int XT_SYM = 5;
+    static final int XT_SYM = 5;
     /** xpression type: RBool */
-    private static final int XT_BOOL = 6;
+    static final int XT_BOOL = 6;
     /** xpression type: S4 object
      @since Rserve 0.5 */
-    private static final int XT_S4 = 7;
+    static final int XT_S4 = 7;
     /** xpression type: generic vector (RList) */
-    private static final int XT_VECTOR = 16;
+    static final int XT_VECTOR = 16;
     /** xpression type: dotted-pair list (RList) */
-    private static final int XT_LIST = 17;
+    static final int XT_LIST = 17;
     /**
      * xpression type: closure (there is no java class for that type (yet?). currently the body of the closure is stored in
      * the content part of the REXP. Please note that this may change in the future!)
      */
-    private static final int XT_CLOS = 18;
+    static final int XT_CLOS = 18;
     /** xpression type: symbol name
      @since Rserve 0.5 */
-    private static final int XT_SYMNAME = 19;
+    static final int XT_SYMNAME = 19;
     /** xpression type: dotted-pair list (w/o tags)
      @since Rserve 0.5 */
-    private static final int XT_LIST_NOTAG = 20;
+    static final int XT_LIST_NOTAG = 20;
     /** xpression type: dotted-pair list (w tags)
      @since Rserve 0.5 */
-    private static final int XT_LIST_TAG = 21;
+    static final int XT_LIST_TAG = 21;
     /** xpression type: language list (w/o tags)
      @since Rserve 0.5 */
-    private static final int XT_LANG_NOTAG = 22;
+    static final int XT_LANG_NOTAG = 22;
     /** xpression type: language list (w tags)
      @since Rserve 0.5 */
-    private static final int XT_LANG_TAG = 23;
+    static final int XT_LANG_TAG = 23;
     /** xpression type: expression vector */
-    private static final int XT_VECTOR_EXP = 26;
+    static final int XT_VECTOR_EXP = 26;
     /** xpression type: string vector */
-    private static final int XT_VECTOR_STR = 27;
+    static final int XT_VECTOR_STR = 27;
     /** xpression type: int[] */
-    private static final int XT_ARRAY_INT = 32;
+    static final int XT_ARRAY_INT = 32;
     /** xpression type: double[] */
-    private static final int XT_ARRAY_DOUBLE = 33;
+    static final int XT_ARRAY_DOUBLE = 33;
     /** xpression type: String[] (currently not used, Vector is used instead) */
-    private static final int XT_ARRAY_STR = 34;
+    static final int XT_ARRAY_STR = 34;
     /** internal use only! this constant should never appear in a REXP */
-    private static final int XT_ARRAY_BOOL_UA = 35;
+    static final int XT_ARRAY_BOOL_UA = 35;
     /** xpression type: RBool[] */
-    private static final int XT_ARRAY_BOOL = 36;
+    static final int XT_ARRAY_BOOL = 36;
     /** xpression type: raw (byte[])
      @since Rserve 0.4-? */
-    private static final int XT_RAW = 37;
+    static final int XT_RAW = 37;
     /** xpression type: Complex[]
      @since Rserve 0.5 */
-    private static final int XT_ARRAY_CPLX = 38;
+    static final int XT_ARRAY_CPLX = 38;
     /** xpression type: unknown; no assumptions can be made about the content */
-    private static final int XT_UNKNOWN = 48;
+    static final int XT_UNKNOWN = 48;
 
     /**
      * xpression type: RFactor; this XT is internally generated (ergo is does not come from Rsrv.h) to support RFactor class
      * which is built from XT_ARRAY_INT */
-    private static final int XT_FACTOR = 127;
+    static final int XT_FACTOR = 127;
 
     /** used for transport only - has attribute */
-    private static final int XT_HAS_ATTR = 128;
+    static final int XT_HAS_ATTR = 128;
 
     private int type;
     private REXPFactory attr;
     private REXP cont;
     private RList rootList;
+    /** cached length of the binary representation without the header, -1 if it was not calculated yet */
+    private long contentLength = -1;
+    /** factories of the elements of lists and vectors, created when the length is calculated */
+    private REXPFactory[] elements;
+    /** encoded strings of string vectors, strings, symbol names and list tags, created when the length is calculated */
+    private byte[][] strings;
+    /** converts received strings, shared by the factories of nested expressions */
+    private RStringDecoder decoder = RStringDecoder.PLAIN;
+    /** generic vectors with at least this many bytes of content are decoded in parallel */
+    private long parallelThreshold = Long.MAX_VALUE;
 
     public REXPFactory() {
     }
 
+    /** creates a factory for parsing a nested expression */
+    REXPFactory(RStringDecoder decoder, long parallelThreshold) {
+        this.decoder = decoder;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /** enables or disables deduplication of repeated strings in the expressions parsed by this factory. The strings are
+     interned in a small table which lives as long as this factory, so memory is only saved while the same values
+     repeat within one response.
+     @param intern <code>true</code> to share the {@link String} objects of equal short strings */
+    public void setInternStrings(boolean intern) {
+        decoder = decoder.withIntern(intern);
+    }
+
+    /** enables or disables dictionary encoding of string vectors parsed by this factory. Long string vectors with few
+     distinct values are then returned as {@link REXPDictionaryString}, which stores a code per element instead of a
+     reference.
+     @param dictionary <code>true</code> to dictionary-encode string vectors with few distinct values */
+    public void setDictionaryStrings(boolean dictionary) {
+        decoder = decoder.withDictionary(dictionary);
+    }
+
+    /** sets the size from which the elements of generic and expression vectors (lists, data frames) parsed by this
+     factory are decoded concurrently in the common {@link ForkJoinPool}. The elements are located by their headers
+     first and then decoded independently, the resulting expression is the same as with sequential decoding. Smaller
+     vectors are decoded on the calling thread since the overhead would outweigh the gain.
+     @param bytes minimal size of the vector content in bytes, <code>Long.MAX_VALUE</code> (the default) to disable */
+    public void setParallelThreshold(long bytes) {
+        parallelThreshold = bytes;
+    }
+
+    RStringDecoder getStringDecoder() {
+        return decoder;
+    }
+
     public REXPFactory(REXP r) throws REXPMismatchException {
         if (r == null) {
             r = new REXPNull();
@@ -153,26 +207,6 @@ public class REXPFactory {
         }
     }
 
-    private static int getStringBinaryRepresentation(byte[] buf, int off, String s) {
-        if (s == null) {
-            s = "";
-        }
-        int io = off;
-        try {
-            byte b[] = s.getBytes(RConnection.transferCharset);
-            System.arraycopy(b, 0, buf, io, b.length);
-            io += b.length;
-            b = null;
-        } catch (java.io.UnsupportedEncodingException uex) {
-            // FIXME: we should so something ... so far we hope noone's gonna mess with the encoding
-        }
-        buf[io++] = 0;
-        while ((io & 3) != 0) {
-            buf[io++] = 0; // padding if necessary..
-        }
-        return io;
-    }
-
     /** returns human-readable name of the xpression type as string. Arrays are denoted by a trailing asterisk (*).
      @param xt xpression type
      @return name of the xpression type */
@@ -282,7 +316,7 @@ public class REXPFactory {
         int eox = o + xl;
 
         type = xt;
-        attr = new REXPFactory();
+        attr = new REXPFactory(decoder, parallelThreshold);
         cont = null;
         if (hasAtt) {
             o = attr.parseREXP(buf, o);
@@ -303,13 +337,11 @@ public class REXPFactory {
             return o;
         }
         if (xt == XT_ARRAY_DOUBLE) {
-            int as = (eox - o) / 8, i = 0;
+            int as = (eox - o) / 8;
             double[] d = new double[as];
-            while (o < eox) {
-                d[i] = Double.longBitsToDouble(RTalk.getLong(buf, o));
-                o += 8;
-                i++;
-            }
+            // bulk conversion, much faster than assembling each value from bytes
+            ByteBuffer.wrap(buf, o, as * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(d);
+            o += as * 8;
             if (o != eox) {
                 log.warn("double array SEXP size mismatch");
                 o = eox;
@@ -371,31 +403,15 @@ public class REXPFactory {
             return o;
         }
         if (xt == XT_ARRAY_INT) {
-            int as = (eox - o) / 4, i = 0;
+            int as = (eox - o) / 4;
             int[] d = new int[as];
-            while (o < eox) {
-                d[i] = RTalk.getInt(buf, o);
-                o += 4;
-                i++;
-            }
+            ByteBuffer.wrap(buf, o, as * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(d);
+            o += as * 4;
             if (o != eox) {
                 log.warn("int array SEXP size mismatch");
                 o = eox;
             }
-            cont = null;
-            // hack for lists - special lists attached to int are factors
-            if (getAttr() != null) {
-                REXP ca = getAttr().asList().at("class");
-                REXP ls = getAttr().asList().at("levels");
-                if (ca != null && ls != null && ca.asString().equals("factor")) {
-                    // R uses 1-based index, Java uses 0-based one
-                    cont = new REXPFactor(d, ls.asStrings(), getAttr());
-                    xt = XT_FACTOR;
-                }
-            }
-            if (cont == null) {
-                cont = new REXPInteger(d, getAttr());
-            }
+            cont = createInteger(d, getAttr());
             return o;
         }
         if (xt == XT_RAW) {
@@ -409,8 +425,8 @@ public class REXPFactory {
         }
         if (xt == XT_LIST_NOTAG || xt == XT_LIST_TAG ||
                 xt == XT_LANG_NOTAG || xt == XT_LANG_TAG) {
-            REXPFactory lc = new REXPFactory();
-            REXPFactory nf = new REXPFactory();
+            REXPFactory lc = new REXPFactory(decoder, parallelThreshold);
+            REXPFactory nf = new REXPFactory(decoder, parallelThreshold);
             RList l = new RList();
             while (o < eox) {
                 String name = null;
@@ -443,8 +459,8 @@ public class REXPFactory {
                 rootList = new RList();
                 isRoot = true;
             }
-            REXPFactory headf = new REXPFactory();
-            REXPFactory tagf = new REXPFactory();
+            REXPFactory headf = new REXPFactory(decoder, parallelThreshold);
+            REXPFactory tagf = new REXPFactory(decoder, parallelThreshold);
             o = headf.parseREXP(buf, o);
             int elIndex = rootList.size();
             rootList.add(headf.cont);
@@ -464,82 +480,51 @@ public class REXPFactory {
             return o;
         }
         if (xt == XT_VECTOR || xt == XT_VECTOR_EXP) {
-            Vector v = new Vector(); //FIXME: could we use RList?
-            while (o < eox) {
-                REXPFactory xx = new REXPFactory();
-                o = xx.parseREXP(buf, o);
-                v.addElement(xx.cont);
+            REXPList va = getAttr();
+            String[] names = vectorNames(va);
+            RArrayList l = newVectorList(names);
+            if (eox - o >= parallelThreshold) {
+                o = parseElements(buf, o, eox, l);
+            } else {
+                while (o < eox) {
+                    REXPFactory xx = new REXPFactory(decoder, parallelThreshold);
+                    o = xx.parseREXP(buf, o);
+                    l.add(xx.cont);
+                }
             }
             if (o != eox) {
                 log.warn("int vector SEXP size mismatch");
                 o = eox;
             }
-            // fixup for lists since they're stored as attributes of vectors
-            if (getAttr() != null && getAttr().asList().at("names") != null) {
-                REXP nam = getAttr().asList().at("names");
-                String names[] = null;
-                if (nam.isString()) {
-                    names = nam.asStrings();
-                } else if (nam.isVector()) { // names could be a vector if supplied by old Rserve
-                    RList l = nam.asList();
-                    Object oa[] = l.toArray();
-                    names = new String[oa.length];
-                    for (int i = 0; i < oa.length; i++) {
-                        names[i] = ((REXP) oa[i]).asString();
-                    }
-                }
-                RList l = new RList(v, names);
-                cont = (xt == XT_VECTOR_EXP) ?
-                       new REXPExpressionVector(l, getAttr()) :
-                       new REXPGenericVector(l, getAttr());
-            } else {
-                cont = (xt == XT_VECTOR_EXP) ?
-                       new REXPExpressionVector(new RList(v), getAttr()) :
-                       new REXPGenericVector(new RList(v), getAttr());
-            }
+            cont = createVector(xt, l, names, va);
             return o;
         }
         if (xt == XT_ARRAY_STR) {
+            String s[] = new String[16];
             int c = 0, i = o;
-            /* count the entries */
-            while (i < eox) {
-                if (buf[i++] == 0) {
-                    c++;
-                }
-            }
-            String s[] = new String[c];
-            if (c > 0) {
-                c = 0;
-                i = o;
-                while (o < eox) {
-                    if (buf[o] == 0) {
-                        try {
-                            if (buf[i] == -1) { /* if the first byte is 0xff (-1 in signed char) then it either needs to be skipped
-                            (doubling) or there is an NA value */
-                                if (buf[i + 1] == 0) {
-                                    s[c] = null; /* NA */
-                                } else {
-                                    s[c] = new String(buf, i + 1, o - i - 1, RConnection.transferCharset);
-                                }
-                            } else {
-                                s[c] = new String(buf, i, o - i, RConnection.transferCharset);
-                            }
-                        } catch (java.io.UnsupportedEncodingException ex) {
-                            s[c] = "";
-                        }
-                        c++;
-                        i = o + 1;
+            while (o < eox) {
+                if (buf[o] == 0) {
+                    if (c == s.length) {
+                        s = Arrays.copyOf(s, c * 2);
+                    }
+                    if (buf[i] == -1) { /* if the first byte is 0xff (-1 in signed char) then it either needs to be skipped
+                    (doubling) or there is an NA value */
+                        s[c] = (buf[i + 1] == 0) ? null /* NA */ : decoder.decode(buf, i + 1, o - i - 1);
+                    } else {
+                        s[c] = decoder.decode(buf, i, o - i);
                     }
-                    o++;
+                    c++;
+                    i = o + 1;
                 }
+                o++;
             }
-            cont = new REXPString(s, getAttr());
+            cont = decoder.createVector((c == s.length) ? s : Arrays.copyOf(s, c), getAttr());
             return o;
         }
         if (xt == XT_VECTOR_STR) {
             Vector v = new Vector();
             while (o < eox) {
-                REXPFactory xx = new REXPFactory();
+                REXPFactory xx = new REXPFactory(decoder, parallelThreshold);
                 o = xx.parseREXP(buf, o);
                 v.addElement(xx.cont.asString());
             }
@@ -563,9 +548,9 @@ public class REXPFactory {
             }
             try {
                 if (xt == XT_STR) {
-                    cont = new REXPString(new String[] {new String(buf, o, i - o, RConnection.transferCharset)}, getAttr());
+                    cont = new REXPString(new String[] {decoder.decode(buf, o, i - o)}, getAttr());
                 } else {
-                    cont = new REXPSymbol(new String(buf, o, i - o, RConnection.transferCharset));
+                    cont = new REXPSymbol(decoder.decode(buf, o, i - o));
                 }
             } catch (Exception e) {
                 log.error("unable to convert string\n");
@@ -575,7 +560,7 @@ public class REXPFactory {
             return o;
         }
         if (xt == XT_SYM) {
-            REXPFactory sym = new REXPFactory();
+            REXPFactory sym = new REXPFactory(decoder, parallelThreshold);
             o = sym.parseREXP(buf, o); // PRINTNAME that's all we will use
             cont = new REXPSymbol(sym.getREXP().asString()); // content of a symbol is its printname string (so far)
             o = eox;
@@ -605,14 +590,182 @@ public class REXPFactory {
         return o;
     }
 
+    /** creates an integer vector; integer vectors with class "factor" and levels are factors */
+    static REXP createInteger(int[] d, REXPList attr) throws REXPMismatchException {
+        // hack for lists - special lists attached to int are factors
+        if (attr != null) {
+            REXP ca = attr.asList().at("class");
+            REXP ls = attr.asList().at("levels");
+            if (ca != null && ls != null && ca.asString().equals("factor")) {
+                // R uses 1-based index, Java uses 0-based one
+                return new REXPFactor(d, ls.asStrings(), attr);
+            }
+        }
+        return new REXPInteger(d, attr);
+    }
+
+    /** decodes the elements of a generic or expression vector concurrently. A first pass skips from header to header to
+     find the offsets of the elements, then each element is parsed by its own factory.
+     @return position just behind the last element */
+    private int parseElements(byte[] buf, int o, int eox, RArrayList l) throws REXPMismatchException {
+        int[] offsets = new int[16];
+        int n = 0;
+        while (o < eox) {
+            if (n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, n * 2);
+            }
+            offsets[n++] = o;
+            // a corrupt header must not send the offsets past the vector
+            int hl = ((buf[o] & 64) != 0) ? 8 : 4;
+            long next = (eox - o < hl) ? eox + 1 : o + hl + RTalk.getLongLen(buf, o);
+            if (next > eox) {
+                throw new REXPMismatchException(new REXPGenericVector(new RList()), "vector (element " + n + " exceeds the vector)");
+            }
+            o = (int) next;
+        }
+        if (n < 2) {
+            for (int i = 0; i < n; i++) {
+                REXPFactory xx = new REXPFactory(decoder, parallelThreshold);
+                xx.parseREXP(buf, offsets[i]);
+                l.add(xx.cont);
+            }
+            return o;
+        }
+        REXPFactory[] fs = new REXPFactory[n];
+        for (int i = 0; i < n; i++) {
+            // the intern table of a decoder must not be shared between threads
+            fs[i] = new REXPFactory(decoder.fork(), parallelThreshold);
+        }
+        ElementTask t = new ElementTask(buf, offsets, fs, 0, n);
+        try {
+            if (ForkJoinTask.inForkJoinPool()) { // nested vector
+                t.invoke();
+            } else {
+                ForkJoinPool.commonPool().invoke(t);
+            }
+        } catch (ElementException e) {
+            throw e.getCause();
+        }
+        for (int i = 0; i < n; i++) {
+            l.add(fs[i].cont);
+        }
+        return o;
+    }
+
+    /** parses a range of vector elements, splitting it until single elements remain */
+    private static class ElementTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] buf;
+        private final int[] offsets;
+        private final REXPFactory[] fs;
+        private final int from;
+        private final int to;
+
+        ElementTask(byte[] buf, int[] offsets, REXPFactory[] fs, int from, int to) {
+            this.buf = buf;
+            this.offsets = offsets;
+            this.fs = fs;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    fs[from].parseREXP(buf, offsets[from]);
+                } catch (REXPMismatchException e) {
+                    throw new ElementException(e);
+                }
+                return;
+            }
+            int m = (from + to) >>> 1;
+            invokeAll(new ElementTask(buf, offsets, fs, from, m), new ElementTask(buf, offsets, fs, m, to));
+        }
+    }
+
+    /** carries a parse error out of an {@link ElementTask} */
+    private static class ElementException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ElementException(REXPMismatchException cause) {
+            super(cause);
+        }
+
+        public REXPMismatchException getCause() {
+            return (REXPMismatchException) super.getCause();
+        }
+    }
+
+    /** returns the names of a generic or expression vector as given by its attributes
+     @param attr attributes of the vector
+     @return names or <code>null</code> if the vector is unnamed */
+    static String[] vectorNames(REXPList attr) throws REXPMismatchException {
+        // fixup for lists since they're stored as attributes of vectors
+        REXP nam = (attr == null) ? null : attr.asList().at("names");
+        if (nam == null) {
+            return null;
+        }
+        String names[] = null;
+        if (nam.isString()) {
+            names = nam.asStrings();
+        } else if (nam.isVector()) { // names could be a vector if supplied by old Rserve
+            RList l = nam.asList();
+            Object oa[] = l.toArray();
+            names = new String[oa.length];
+            for (int i = 0; i < oa.length; i++) {
+                names[i] = ((REXP) oa[i]).asString();
+            }
+        }
+        return names;
+    }
+
+    /** creates an empty list for the elements of a generic or expression vector, sized by its names if it has any
+     @param names names of the vector as returned by {@link #vectorNames}
+     @return new list */
+    static RArrayList newVectorList(String[] names) {
+        return new RArrayList((names == null) ? 10 : names.length, names != null);
+    }
+
+    /** creates a generic or expression vector from the parsed elements and names */
+    static REXP createVector(int xt, RArrayList l, String[] names, REXPList attr) {
+        if (names != null) {
+            int n = Math.min(names.length, l.size());
+            for (int i = 0; i < n; i++) {
+                l.setKeyAt(i, names[i]);
+            }
+        }
+        return (xt == XT_VECTOR_EXP) ?
+               new REXPExpressionVector(l, attr) :
+               new REXPGenericVector(l, attr);
+    }
+
     /**
      * Calculates the length of the binary representation of the REXP including all headers. This is the amount of memory
      * necessary to store the REXP via {@link #getBinaryRepresentation}.
      * <p>Please note that currently only XT_[ARRAY_]INT, XT_[ARRAY_]DOUBLE and XT_[ARRAY_]STR are supported! All other
      * types will return 4 which is the size of the header.
-     @return length of the REXP including headers (4 or 8 bytes)*/
+     @return length of the REXP including headers (4 or 8 bytes)
+     @throws REXPMismatchException if the representation does not fit into an array, see {@link #getBinaryLongLength()} */
     public int getBinaryLength() throws REXPMismatchException {
-        int l = 0;
+        long l = getBinaryLongLength();
+        if (l > Integer.MAX_VALUE) {
+            throw new REXPMismatchException(cont, "binary representation is too large for an array (" + l + " bytes)");
+        }
+        return (int) l;
+    }
+
+    /**
+     * Calculates the length of the binary representation of the REXP including all headers, see {@link #getBinaryLength()}.
+     * Representations larger than 2GB can only be written using {@link #writeBinaryRepresentation(OutputStream)}.
+     @return length of the REXP including headers (4 or 8 bytes) */
+    public long getBinaryLongLength() throws REXPMismatchException {
+        long l = getContentLength();
+        return l + ((l > 0xfffff0) ? 8 : 4); // large data need 4 more bytes
+    }
+
+    /** returns the type used in the binary representation */
+    private int getBinaryType() throws REXPMismatchException {
         int rxt = type;
         if (type == XT_LIST || type == XT_LIST_TAG || type == XT_LIST_NOTAG) {
             rxt = (cont.asList() != null && cont.asList().isNamed()) ? XT_LIST_TAG : XT_LIST_NOTAG;
@@ -620,18 +773,38 @@ public class REXPFactory {
         if (type == XT_VECTOR_STR) {
             rxt = XT_ARRAY_STR; // VECTOR_STR is broken right now
         }
+        return rxt;
+    }
 
-        boolean hasAttr = false;
+    private boolean hasBinaryAttr() throws REXPMismatchException {
         REXPList a = getAttr();
         RList al = null;
         if (a != null) {
             al = a.asList();
         }
-        if (al != null && al.size() > 0) {
-            hasAttr = true;
+        return (al != null && al.size() > 0);
+    }
+
+    private static byte[] getStringBytes(String s) {
+        if (s == null) {
+            s = "";
+        }
+        return s.getBytes(RStringDecoder.CHARSET);
+    }
+
+    /**
+     * Calculates the length of the binary representation without the header. The result is cached together with the
+     * factories of list elements and the encoded strings, so the representation can be written afterwards without
+     * measuring or encoding anything again. The cache assumes that the REXP is not modified in the meantime.
+     */
+    private long getContentLength() throws REXPMismatchException {
+        if (contentLength >= 0) {
+            return contentLength;
         }
-        if (hasAttr) {
-            l += attr.getBinaryLength();
+        long l = 0;
+        int rxt = getBinaryType();
+        if (hasBinaryAttr()) {
+            l += attr.getBinaryLongLength();
         }
         switch (rxt) {
             case XT_NULL:
@@ -644,93 +817,103 @@ public class REXPFactory {
                 l += 8;
                 break;
             case XT_RAW:
-                l += 4 + cont.asBytes().length;
-                if ((l & 3) > 0) {
-                    l = l - (l & 3) + 4;
-                }
+                l += 4 + cont.length(); // the length is known without copying off-heap payloads
                 break;
             case XT_STR:
             case XT_SYMNAME:
-                l += (cont == null) ? 1 : (cont.asString().length() + 1);
-                if ((l & 3) > 0) {
-                    l = l - (l & 3) + 4;
-                }
+                strings = new byte[][] {getStringBytes((cont == null) ? null : cont.asString())};
+                l += strings[0].length + 1;
                 break;
             case XT_ARRAY_INT:
-                l += cont.asIntegers().length * 4;
+                l += cont.length() * 4L;
                 break;
             case XT_ARRAY_DOUBLE:
-                l += cont.asDoubles().length * 8;
+                l += cont.length() * 8L;
                 break;
             case XT_ARRAY_CPLX:
-                l += cont.asDoubles().length * 8;
+                l += cont.asDoubles().length * 8L;
                 break;
             case XT_ARRAY_BOOL:
                 l += cont.asBytes().length + 4;
-                if ((l & 3) > 0) {
-                    l = l - (l & 3) + 4;
-                }
                 break;
             case XT_LIST_TAG:
             case XT_LIST_NOTAG:
             case XT_LANG_TAG:
             case XT_LANG_NOTAG:
             case XT_LIST:
-            case XT_VECTOR: {
-                final RList lst = cont.asList();
-                int i = 0;
-                while (i < lst.size()) {
-                    REXP x = lst.at(i);
-                    l += (x == null) ? 4 : (new REXPFactory(x).getBinaryLength());
-                    if (rxt == XT_LIST_TAG) {
-                        int pl = l;
-                        String s = lst.keyAt(i);
-                        l += 4; // header for a symbol
-                        l += (s == null) ? 1 : (s.length() + 1);
-                        if ((l & 3) > 0) {
-                            l = l - (l & 3) + 4;
-                        }
-                    }
-                    i++;
+            case XT_VECTOR:
+            case XT_VECTOR_EXP: {
+                // generic vectors are untagged and can be read without converting their contents to an RList
+                final REXPGenericVector gv = (cont instanceof REXPGenericVector) ? (REXPGenericVector) cont : null;
+                final RList lst = (gv == null) ? cont.asList() : null;
+                boolean tagged = (rxt == XT_LIST_TAG || rxt == XT_LANG_TAG);
+                int n = (gv != null) ? gv.length() : (lst == null) ? 0 : lst.size();
+                elements = new REXPFactory[n];
+                if (tagged) {
+                    strings = new byte[n][];
                 }
-                if ((l & 3) > 0) {
-                    l = l - (l & 3) + 4;
+                for (int i = 0; i < n; i++) {
+                    REXP x = (gv != null) ? gv.elementAt(i) : lst.at(i);
+                    elements[i] = new REXPFactory((x == null) ? new REXPNull() : x);
+                    l += elements[i].getBinaryLongLength();
+                    if (tagged) {
+                        strings[i] = getStringBytes(lst.keyAt(i));
+                        l += 4 + align(strings[i].length + 1); // the tag is a symbol name
+                    }
                 }
                 break;
             }
             case XT_ARRAY_STR: {
+                if (cont instanceof REXPDictionaryString) { // every distinct value is encoded only once
+                    REXPDictionaryString ds = (REXPDictionaryString) cont;
+                    String da[] = ds.getDictionary();
+                    byte db[][] = new byte[da.length][];
+                    for (int i = 0; i < da.length; i++) {
+                        db[i] = getStringBytes(da[i]);
+                    }
+                    int n = ds.length();
+                    strings = new byte[n][];
+                    for (int i = 0; i < n; i++) {
+                        int c = ds.getCode(i);
+                        if (c != REXPDictionaryString.NA) {
+                            byte b[] = db[c];
+                            strings[i] = b;
+                            if (b.length > 0 && b[0] == -1) {
+                                l++;
+                            }
+                            l += b.length;
+                        } else {
+                            l++; // NA = -1
+                        }
+                        l++;
+                    }
+                    break;
+                }
                 String sa[] = cont.asStrings();
-                int i = 0;
-                while (i < sa.length) {
+                strings = new byte[sa.length][];
+                for (int i = 0; i < sa.length; i++) {
                     if (sa[i] != null) {
-                        try {
-                            byte b[] = sa[i].getBytes(RConnection.transferCharset);
-                            if (b.length > 0) {
-                                if (b[0] == -1) {
-                                    l++;
-                                }
-                                l += b.length;
-                            }
-                            b = null;
-                        } catch (java.io.UnsupportedEncodingException uex) {
-                            // FIXME: we should so something ... so far we hope noone's gonna mess with the encoding
+                        byte b[] = getStringBytes(sa[i]);
+                        strings[i] = b;
+                        if (b.length > 0 && b[0] == -1) {
+                            l++;
                         }
+                        l += b.length;
                     } else {
                         l++; // NA = -1
                     }
                     l++;
-                    i++;
-                }
-                if ((l & 3) > 0) {
-                    l = l - (l & 3) + 4;
                 }
                 break;
             }
         } // switch
-        if (l > 0xfffff0) {
-            l += 4; // large data need 4 more bytes
-        }
-        return l + 4; // add the header
+        contentLength = align(l);
+        return contentLength;
+    }
+
+    /** rounds up to a multiple of 4 */
+    private static long align(long l) {
+        return ((l & 3) > 0) ? l - (l & 3) + 4 : l;
     }
 
     /**
@@ -741,110 +924,122 @@ public class REXPFactory {
      * @param buf buffer to store the REXP binary into
      * @param off offset of the first byte where to store the REXP
      * @return the offset of the first byte behind the stored REXP
+     * @throws java.nio.BufferOverflowException if the array is too short
      */
     public int getBinaryRepresentation(byte[] buf, int off) throws REXPMismatchException {
-        int myl = getBinaryLength();
-        boolean isLarge = (myl > 0xfffff0);
-        boolean hasAttr = false;
-        final REXPList a = getAttr();
-        RList al = null;
-        if (a != null) {
-            al = a.asList();
-        }
-        if (al != null && al.size() > 0) {
-            hasAttr = true;
-        }
-        int rxt = type, ooff = off;
-        if (type == XT_VECTOR_STR) {
-            rxt = XT_ARRAY_STR; // VECTOR_STR is broken right now
+        RBinaryOutput o = new RBinaryOutput(buf, off);
+        try {
+            write(o);
+        } catch (IOException e) { // cannot happen when writing into an array
+            throw new IllegalStateException(e);
         }
-        if (type == XT_LIST || type == XT_LIST_TAG || type == XT_LIST_NOTAG) {
-            rxt = (cont.asList() != null && cont.asList().isNamed()) ? XT_LIST_TAG : XT_LIST_NOTAG;
+        return off + (int) o.position();
+    }
+
+    /**
+     * Writes the REXP in its binary representation including header to a stream. Unlike
+     * {@link #getBinaryRepresentation(byte[], int)} this works for representations of any size,
+     * {@link #getBinaryLongLength()} bytes are written.
+     * @param out stream to write to
+     */
+    public void writeBinaryRepresentation(OutputStream out) throws IOException, REXPMismatchException {
+        RBinaryOutput o = new RBinaryOutput(out, getBinaryLongLength());
+        write(o);
+        o.flush();
+    }
+
+    /**
+     * Stores the REXP in its binary representation including header into a buffer starting at its current position,
+     * which is advanced by {@link #getBinaryLength()} bytes.
+     * @param buf buffer to store the REXP binary into, heap or direct. Its byte order is not used or changed.
+     * @throws java.nio.BufferOverflowException if the buffer has not enough space remaining; its position is not changed
+     */
+    public void writeBinaryRepresentation(ByteBuffer buf) throws REXPMismatchException {
+        RBinaryOutput o = new RBinaryOutput(buf);
+        try {
+            write(o);
+        } catch (IOException e) { // cannot happen when writing into a buffer
+            throw new IllegalStateException(e);
         }
-        RTalk.setHdr(rxt | (hasAttr ? XT_HAS_ATTR : 0), myl - (isLarge ? 8 : 4), buf, off);
-        off += (isLarge ? 8 : 4);
+        buf.position(buf.position() + (int) o.position());
+    }
+
+    private void write(RBinaryOutput o) throws IOException, REXPMismatchException {
+        long myl = getContentLength();
+        boolean hasAttr = hasBinaryAttr();
+        int rxt = getBinaryType();
+        o.putHeader(rxt | (hasAttr ? XT_HAS_ATTR : 0), myl);
+        long eox = o.position() + myl;
         if (hasAttr) {
-            off = attr.getBinaryRepresentation(buf, off);
+            attr.write(o);
         }
         switch (rxt) {
             case XT_S4:
             case XT_NULL:
                 break;
             case XT_INT:
-                RTalk.setInt(cont.asInteger(), buf, off);
+                o.putInt(cont.asInteger());
                 break;
             case XT_DOUBLE:
-                RTalk.setLong(Double.doubleToRawLongBits(cont.asDouble()), buf, off);
+                o.putLong(Double.doubleToRawLongBits(cont.asDouble()));
                 break;
-            case XT_ARRAY_INT: {
-                int ia[] = cont.asIntegers();
-                int i = 0, io = off;
-                while (i < ia.length) {
-                    RTalk.setInt(ia[i++], buf, io);
-                    io += 4;
+            case XT_ARRAY_INT:
+                if (cont instanceof REXPInteger) { // no copy for off-heap payloads
+                    o.putInts(((REXPInteger) cont).asIntBuffer());
+                } else {
+                    o.putInts(cont.asIntegers());
                 }
                 break;
-            }
             case XT_ARRAY_BOOL: {
                 byte ba[] = cont.asBytes();
-                int io = off;
-                RTalk.setInt(ba.length, buf, io);
-                io += 4;
+                o.putInt(ba.length);
                 if (ba.length > 0) {
                     for (int i = 0; i < ba.length; i++) {
-                        buf[io++] = (byte) ((ba[i] == REXPLogical.NA) ? 2 : ((ba[i] == REXPLogical.FALSE) ? 0 : 1));
+                        o.put((byte) ((ba[i] == REXPLogical.NA) ? 2 : ((ba[i] == REXPLogical.FALSE) ? 0 : 1)));
                     }
-                    while ((io & 3) != 0) {
-                        buf[io++] = 3;
+                    while ((o.position() & 3) != 0) {
+                        o.put((byte) 3);
                     }
                 }
                 break;
             }
-            case XT_ARRAY_DOUBLE: {
-                double da[] = cont.asDoubles();
-                int i = 0, io = off;
-                while (i < da.length) {
-                    RTalk.setLong(Double.doubleToRawLongBits(da[i++]), buf, io);
-                    io += 8;
+            case XT_ARRAY_DOUBLE:
+                if (cont instanceof REXPDouble) {
+                    o.putDoubles(((REXPDouble) cont).asDoubleBuffer());
+                } else {
+                    o.putDoubles(cont.asDoubles());
                 }
                 break;
-            }
-            case XT_RAW: {
-                byte by[] = cont.asBytes();
-                RTalk.setInt(by.length, buf, off);
-                off += 4;
-                System.arraycopy(by, 0, buf, off, by.length);
+            case XT_RAW:
+                if (cont instanceof REXPRaw) { // no copy for off-heap payloads
+                    ByteBuffer by = ((REXPRaw) cont).asByteBuffer();
+                    o.putInt(by.remaining());
+                    o.put(by);
+                } else {
+                    byte by[] = cont.asBytes();
+                    o.putInt(by.length);
+                    o.put(by, 0, by.length);
+                }
                 break;
-            }
             case XT_ARRAY_STR: {
-                String sa[] = cont.asStrings();
-                int i = 0, io = off;
-                while (i < sa.length) {
-                    if (sa[i] != null) {
-                        try {
-                            byte b[] = sa[i].getBytes(RConnection.transferCharset);
-                            if (b.length > 0) {
-                                if (b[0] == -1) {
-                                    /* if the first entry happens to be -1 then we need to double it so it doesn't get confused with NAs */
-                                    buf[io++] = -1;
-                                }
-                                System.arraycopy(b, 0, buf, io, b.length);
-                                io += b.length;
+                long so = o.position();
+                for (int i = 0; i < strings.length; i++) {
+                    byte b[] = strings[i];
+                    if (b != null) {
+                        if (b.length > 0) {
+                            if (b[0] == -1) {
+                                /* if the first entry happens to be -1 then we need to double it so it doesn't get confused with NAs */
+                                o.put((byte) -1);
                             }
-                            b = null;
-                        } catch (java.io.UnsupportedEncodingException uex) {
-                            // FIXME: we should so something ... so far we hope noone's gonna mess with the encoding
+                            o.put(b, 0, b.length);
                         }
                     } else {
-                        buf[io++] = -1; /* NAs are stored as 0xff (-1 in signed bytes) */
+                        o.put((byte) -1); /* NAs are stored as 0xff (-1 in signed bytes) */
                     }
-                    buf[io++] = 0;
-                    i++;
+                    o.put((byte) 0);
                 }
-                i = io - off;
-                while ((i & 3) != 0) {
-                    buf[io++] = 1;
-                    i++;
+                while (((o.position() - so) & 3) != 0) {
+                    o.put((byte) 1);
                 } // padding if necessary..
                 break;
             }
@@ -855,20 +1050,14 @@ public class REXPFactory {
             case XT_LIST:
             case XT_VECTOR:
             case XT_VECTOR_EXP: {
-                int io = off;
-                final RList lst = cont.asList();
-                if (lst != null) {
-                    int i = 0;
-                    while (i < lst.size()) {
-                        REXP x = lst.at(i);
-                        if (x == null) {
-                            x = new REXPNull();
-                        }
-                        io = new REXPFactory(x).getBinaryRepresentation(buf, io);
-                        if (rxt == XT_LIST_TAG || rxt == XT_LANG_TAG) {
-                            io = new REXPFactory(new REXPSymbol(lst.keyAt(i))).getBinaryRepresentation(buf, io);
-                        }
-                        i++;
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i].write(o);
+                    if (rxt == XT_LIST_TAG || rxt == XT_LANG_TAG) {
+                        byte b[] = strings[i];
+                        long tl = align(b.length + 1);
+                        o.putHeader(XT_SYMNAME, tl);
+                        o.put(b, 0, b.length);
+                        o.padTo(o.position() + tl - b.length, (byte) 0);
                     }
                 }
                 break;
@@ -876,9 +1065,10 @@ public class REXPFactory {
 
             case XT_SYMNAME:
             case XT_STR:
-                getStringBinaryRepresentation(buf, off, cont.asString());
+                o.put(strings[0], 0, strings[0].length);
+                o.put((byte) 0);
                 break;
         }
-        return ooff + myl;
+        o.padTo(eox, (byte) 0); // padding if necessary..
     }
 }
@@ -0,0 +1,420 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPList;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPRaw;
+import org.rosuda.rengine.RArrayList;
+
+/**
+ * Decodes the binary representation of an R-expression (see {@link REXPFactory}) while it is being read from a stream.
+ * <p>
+ * The payloads of numeric, logical, raw and string vectors are decoded straight into their target arrays through a
+ * small window buffer, generic vectors and their attributes are decoded element by element. The binary representation
+ * of a large result is therefore never held in memory as a whole and decoding overlaps with the transfer. All other
+ * (usually small) types are read into a temporary array and handed to {@link REXPFactory#parseREXP(byte[], int)}.
+ * <p>
+ * The decoder never reads more than the number of bytes it was created with, so it can be used on a stream carrying
+ * further messages.
+ * <p>
+ * Optionally (see {@link #setOffHeapThreshold(long)}) large double, integer and raw payloads are received into direct
+ * buffers instead of arrays, the resulting vectors are views of the received little-endian bytes outside of the Java
+ * heap.
+ * <p>
+ * Also optionally (see {@link #setParallelThreshold(long)}) large generic vectors are read as a whole and their
+ * elements are decoded concurrently by {@link REXPFactory}.
+ */
+public class REXPStreamDecoder {
+
+    /** size of the window buffer */
+    private static final int WINDOW = 64 * 1024;
+
+    private final ReadableByteChannel in;
+    /** window of read but not yet decoded bytes, always in read mode */
+    private ByteBuffer buf;
+    /** number of bytes which can still be read from the source */
+    private long available;
+    /** number of bytes consumed from the window so far, i.e. position in the binary representation */
+    private long pos;
+    /** payloads of at least this many bytes are stored in direct buffers */
+    private long offHeapThreshold = Long.MAX_VALUE;
+    private RStringDecoder decoder = RStringDecoder.PLAIN;
+    /** generic vectors of at least this many bytes are read as a whole and decoded in parallel */
+    private long parallelThreshold = Long.MAX_VALUE;
+
+    /** creates a decoder reading from a channel
+     @param in channel positioned at the header of the expression
+     @param length number of bytes the decoder may read from the channel */
+    public REXPStreamDecoder(ReadableByteChannel in, long length) {
+        this.in = in;
+        this.available = length;
+        buf = ByteBuffer.allocate((int) Math.min(WINDOW, Math.max(length, 16))).order(ByteOrder.LITTLE_ENDIAN);
+        buf.flip();
+    }
+
+    /** creates a decoder reading from a stream
+     @param in stream positioned at the header of the expression
+     @param length number of bytes the decoder may read from the stream */
+    public REXPStreamDecoder(InputStream in, long length) {
+        this(Channels.newChannel(in), length);
+    }
+
+    /** creates a decoder reading from a sequence of buffers, e.g. the chunks of a large packet
+     @param chunks buffers, each is read from its position to its limit */
+    public REXPStreamDecoder(ByteBuffer[] chunks) {
+        this(new ChunkChannel(chunks), remaining(chunks));
+    }
+
+    private static long remaining(ByteBuffer[] chunks) {
+        long n = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            n += chunks[i].remaining();
+        }
+        return n;
+    }
+
+    /** sets the size from which double, integer (except factors) and raw payloads are stored in direct buffers outside
+     of the Java heap rather than in arrays. Payloads larger than 2GB are always stored in arrays. By default all payloads
+     are stored in arrays.
+     @param bytes minimal payload size in bytes, <code>Long.MAX_VALUE</code> to disable */
+    public void setOffHeapThreshold(long bytes) {
+        offHeapThreshold = bytes;
+    }
+
+    /** enables or disables deduplication of repeated strings, see {@link REXPFactory#setInternStrings(boolean)}
+     @param intern <code>true</code> to share the {@link String} objects of equal short strings */
+    public void setInternStrings(boolean intern) {
+        decoder = decoder.withIntern(intern);
+    }
+
+    /** enables or disables dictionary encoding of string vectors, see {@link REXPFactory#setDictionaryStrings(boolean)}
+     @param dictionary <code>true</code> to dictionary-encode string vectors with few distinct values */
+    public void setDictionaryStrings(boolean dictionary) {
+        decoder = decoder.withDictionary(dictionary);
+    }
+
+    /** sets the size from which generic and expression vectors (lists, data frames) are read as a whole and their
+     elements are decoded concurrently, see {@link REXPFactory#setParallelThreshold(long)}. Such vectors are not decoded
+     while they are received, so their binary representation is held in memory, and their elements are always stored
+     on the heap. Vectors larger than 2GB are always decoded sequentially.
+     @param bytes minimal size of the vector content in bytes, <code>Long.MAX_VALUE</code> (the default) to disable */
+    public void setParallelThreshold(long bytes) {
+        parallelThreshold = bytes;
+    }
+
+    /** decodes one expression
+     @return decoded expression */
+    public REXP decode() throws IOException, REXPMismatchException {
+        return parse();
+    }
+
+    /** reads and discards everything that was not decoded yet, so that the source is positioned behind
+     the expression */
+    public void skipRemaining() throws IOException {
+        skip(buf.remaining() + available);
+    }
+
+    /** returns the number of bytes decoded so far
+     @return number of bytes */
+    public long getPosition() {
+        return pos;
+    }
+
+    private REXP parse() throws IOException, REXPMismatchException {
+        int h = getInt();
+        int xt = h & 255;
+        long xl = (h >>> 8) & 0xffffffL;
+        int hl = 4;
+        if ((xt & RTalk.DT_LARGE) != 0) {
+            xl |= (getInt() & 0xffffffffL) << 24;
+            hl = 8;
+        }
+        long eox = pos + xl;
+        int t = xt & 63;
+        if ((t != REXPFactory.XT_ARRAY_DOUBLE && t != REXPFactory.XT_ARRAY_INT && t != REXPFactory.XT_ARRAY_BOOL &&
+                t != REXPFactory.XT_RAW && t != REXPFactory.XT_ARRAY_STR &&
+                t != REXPFactory.XT_VECTOR && t != REXPFactory.XT_VECTOR_EXP) ||
+                ((t == REXPFactory.XT_VECTOR || t == REXPFactory.XT_VECTOR_EXP) &&
+                 xl >= parallelThreshold && xl <= Integer.MAX_VALUE - 16)) {
+            return parseBuffered(h, hl, xl);
+        }
+        REXPList attr = null;
+        if ((xt & REXPFactory.XT_HAS_ATTR) != 0) {
+            REXP a = parse();
+            if (a instanceof REXPList) {
+                attr = (REXPList) a;
+            }
+        }
+        REXP r;
+        if (t == REXPFactory.XT_ARRAY_DOUBLE && isOffHeap(eox - pos)) {
+            r = new REXPDouble(getDirect((eox - pos) & ~7L).asDoubleBuffer(), attr);
+        } else if (t == REXPFactory.XT_ARRAY_INT && isOffHeap(eox - pos) &&
+                (attr == null || attr.asList().at("levels") == null)) { // factors need an array
+            r = new REXPInteger(getDirect((eox - pos) & ~3L).asIntBuffer(), attr);
+        } else if (t == REXPFactory.XT_ARRAY_DOUBLE) {
+            double[] d = new double[checkedSize((eox - pos) / 8)];
+            int i = 0;
+            while (i < d.length) {
+                fill(8);
+                int n = Math.min(buf.remaining() / 8, d.length - i);
+                buf.asDoubleBuffer().get(d, i, n);
+                consume(n * 8);
+                i += n;
+            }
+            r = new REXPDouble(d, attr);
+        } else if (t == REXPFactory.XT_ARRAY_INT) {
+            int[] d = new int[checkedSize((eox - pos) / 4)];
+            int i = 0;
+            while (i < d.length) {
+                fill(4);
+                int n = Math.min(buf.remaining() / 4, d.length - i);
+                buf.asIntBuffer().get(d, i, n);
+                consume(n * 4);
+                i += n;
+            }
+            r = REXPFactory.createInteger(d, attr);
+        } else if (t == REXPFactory.XT_ARRAY_BOOL) {
+            byte[] d = getBytes(getInt());
+            for (int j = 0; j < d.length; j++) {
+                if (d[j] != 0 && d[j] != 1) {
+                    d[j] = REXPLogical.NA;
+                }
+            }
+            r = new REXPLogical(d, attr);
+        } else if (t == REXPFactory.XT_RAW) {
+            int n = getInt();
+            r = isOffHeap(n) ? new REXPRaw(getDirect(n), attr) : new REXPRaw(getBytes(n), attr);
+        } else if (t == REXPFactory.XT_ARRAY_STR) {
+            r = decoder.createVector(getStrings(eox), attr);
+        } else {
+            String[] names = REXPFactory.vectorNames(attr);
+            RArrayList l = REXPFactory.newVectorList(names);
+            while (pos < eox) {
+                l.add(parse());
+            }
+            r = REXPFactory.createVector(t, l, names, attr);
+        }
+        if (pos > eox) {
+            throw new REXPMismatchException(r, "SEXP size mismatch");
+        }
+        if (pos < eox) { // padding
+            skip(eox - pos);
+        }
+        return r;
+    }
+
+    /** reads an expression of a type without streaming support, or a vector to be decoded in parallel, as a whole and
+     parses it */
+    private REXP parseBuffered(int h, int hl, long xl) throws IOException, REXPMismatchException {
+        byte[] b = new byte[checkedSize(hl + xl)];
+        RTalk.setInt(h, b, 0);
+        if (hl == 8) {
+            RTalk.setInt((int) (xl >>> 24), b, 4);
+        }
+        getBytes(b, hl, b.length - hl);
+        REXPFactory f = new REXPFactory(decoder, parallelThreshold);
+        f.parseREXP(b, 0);
+        return f.getREXP();
+    }
+
+    /** decodes zero-terminated strings up to the end of the expression, see XT_ARRAY_STR in {@link REXPFactory} */
+    private String[] getStrings(long eox) throws IOException {
+        ArrayList<String> sl = new ArrayList<String>();
+        while (pos < eox) {
+            int lim = (int) Math.min(buf.remaining(), eox - pos);
+            int p = buf.position();
+            int e = -1;
+            for (int i = p; i < p + lim; i++) {
+                if (buf.get(i) == 0) {
+                    e = i;
+                    break;
+                }
+            }
+            if (e < 0) {
+                if (lim == eox - pos) { // padding behind the last string
+                    consume(lim);
+                    break;
+                }
+                if (buf.remaining() == buf.capacity()) { // the string does not fit into the window
+                    ByteBuffer nb = ByteBuffer.allocate(buf.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                    nb.put(buf);
+                    nb.flip();
+                    buf = nb;
+                }
+                fill(buf.remaining() + 1);
+                continue;
+            }
+            byte[] a = buf.array();
+            int o = buf.arrayOffset() + p;
+            int l = e - p;
+            if (l > 0 && a[o] == -1) { // leading 0xff is either doubled or denotes NA
+                sl.add((l == 1) ? null : decoder.decode(a, o + 1, l - 1));
+            } else {
+                sl.add(decoder.decode(a, o, l));
+            }
+            consume(l + 1);
+        }
+        return sl.toArray(new String[sl.size()]);
+    }
+
+    private boolean isOffHeap(long n) {
+        return n >= offHeapThreshold && n <= Integer.MAX_VALUE;
+    }
+
+    /** reads bytes into a new direct buffer; once the window is drained they are read from the source straight into it */
+    private ByteBuffer getDirect(long n) throws IOException {
+        ByteBuffer d = ByteBuffer.allocateDirect(checkedSize(n)).order(ByteOrder.LITTLE_ENDIAN);
+        while (d.hasRemaining()) {
+            if (buf.hasRemaining()) {
+                int k = Math.min(d.remaining(), buf.remaining());
+                ByteBuffer s = buf.duplicate();
+                s.limit(s.position() + k);
+                d.put(s);
+                consume(k);
+                continue;
+            }
+            int space = (int) Math.min(d.remaining(), available);
+            if (space == 0) {
+                throw new EOFException("unexpected end of SEXP data");
+            }
+            int lim = d.limit();
+            d.limit(d.position() + space);
+            int rd = in.read(d);
+            d.limit(lim);
+            if (rd < 0) {
+                throw new EOFException("EOF reached");
+            }
+            available -= rd;
+            pos += rd;
+        }
+        d.flip();
+        return d;
+    }
+
+    private static int checkedSize(long n) throws IOException {
+        if (n < 0 || n > Integer.MAX_VALUE - 8) {
+            throw new IOException("SEXP too large (" + n + " bytes)");
+        }
+        return (int) n;
+    }
+
+    private int getInt() throws IOException {
+        fill(4);
+        pos += 4;
+        return buf.getInt();
+    }
+
+    private byte[] getBytes(int n) throws IOException {
+        if (n < 0) {
+            throw new IOException("invalid length " + n);
+        }
+        byte[] b = new byte[n];
+        getBytes(b, 0, n);
+        return b;
+    }
+
+    private void getBytes(byte[] b, int off, int n) throws IOException {
+        while (n > 0) {
+            fill(1);
+            int k = Math.min(n, buf.remaining());
+            buf.get(b, off, k);
+            pos += k;
+            off += k;
+            n -= k;
+        }
+    }
+
+    private void consume(int n) {
+        buf.position(buf.position() + n);
+        pos += n;
+    }
+
+    /** skips bytes, e.g. a parameter header in front of the expression
+     @param n number of bytes to skip */
+    public void skip(long n) throws IOException {
+        while (n > 0) {
+            fill(1);
+            int k = (int) Math.min(n, buf.remaining());
+            consume(k);
+            n -= k;
+        }
+    }
+
+    /** makes sure that at least <code>n</code> bytes (at most the window size) are available in the window */
+    private void fill(int n) throws IOException {
+        if (buf.remaining() >= n) {
+            return;
+        }
+        buf.compact();
+        try {
+            while (buf.position() < n) {
+                int space = (int) Math.min(buf.remaining(), available);
+                if (space == 0) {
+                    throw new EOFException("unexpected end of SEXP data");
+                }
+                int lim = buf.limit();
+                buf.limit(buf.position() + space);
+                int rd = in.read(buf);
+                buf.limit(lim);
+                if (rd < 0) {
+                    throw new EOFException("EOF reached");
+                }
+                available -= rd;
+            }
+        } finally {
+            buf.flip();
+        }
+    }
+
+    /** channel reading from a sequence of buffers */
+    private static class ChunkChannel implements ReadableByteChannel {
+        private final ByteBuffer[] chunks;
+        private int i;
+
+        ChunkChannel(ByteBuffer[] chunks) {
+            this.chunks = new ByteBuffer[chunks.length];
+            for (int j = 0; j < chunks.length; j++) {
+                this.chunks[j] = chunks[j].duplicate();
+            }
+        }
+
+        public int read(ByteBuffer dst) {
+            while (i < chunks.length && !chunks[i].hasRemaining()) {
+                i++;
+            }
+            if (i == chunks.length) {
+                return -1;
+            }
+            ByteBuffer src = chunks[i];
+            int n = Math.min(src.remaining(), dst.remaining());
+            ByteBuffer s = src.duplicate();
+            s.limit(s.position() + n);
+            dst.put(s);
+            src.position(src.position() + n);
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    public String toString() {
+        return "REXPStreamDecoder[pos=" + pos + ",available=" + available + "]";
+    }
+}
@@ -4,12 +4,29 @@ package org.rosuda.rengine.rserve.protocol;
 // Copyright (C) 2004 Simon Urbanek
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
 
+import java.nio.ByteBuffer;
+
+import org.rosuda.rengine.REXP;
+
 /** small class encapsulating packets from/to Rserv
+ <p>
+ Packets returned by {@link RTalk} may be backed by the receive buffer of the connection which is re-used by
+ subsequent requests. The content is therefore only guaranteed to be valid until the next request is sent
+ over the same {@link RTalk}. Use {@link #getCont()} to obtain a private copy if the content must be retained.
+ <p>
+ Contents which are too large for a single array are stored in chunks, see {@link #getContChunks()}.
  @version $Id$
  */
 public class RPacket {
     private final int cmd;
     private final byte[] cont;
+    private final long len;
+    /** content of packets too large for a single array, <code>cont</code> is <code>null</code> in that case */
+    private final ByteBuffer[] chunks;
+    /** <code>true</code> if <code>cont</code> is a buffer that may be re-used once the packet was processed */
+    private final boolean shared;
+    /** expression decoded while the packet was received, see {@link RTalk#requestREXP} */
+    private final REXP rexp;
 
     /** construct new packet
      @param Rcmd command
@@ -17,6 +34,51 @@ public class RPacket {
     public RPacket(int Rcmd, byte[] Rcont) {
         cmd = Rcmd;
         cont = Rcont;
+        len = (Rcont == null) ? 0 : Rcont.length;
+        chunks = null;
+        shared = false;
+        rexp = null;
+    }
+
+    /** construct new packet whose content is the first <code>len</code> bytes of a shared buffer
+     @param Rcmd command
+     @param Rcont content buffer (may be larger than the content and may be re-used by the caller later)
+     @param len length of the content */
+    public RPacket(int Rcmd, byte[] Rcont, int len) {
+        cmd = Rcmd;
+        cont = Rcont;
+        this.len = (Rcont == null) ? 0 : len;
+        chunks = null;
+        shared = true;
+        rexp = null;
+    }
+
+    /** construct new packet whose content was decoded into an expression while it was received
+     @param Rcmd command
+     @param rexp decoded expression */
+    public RPacket(int Rcmd, REXP rexp) {
+        cmd = Rcmd;
+        cont = null;
+        len = 0;
+        chunks = null;
+        shared = false;
+        this.rexp = rexp;
+    }
+
+    /** construct new packet whose content is stored in several chunks
+     @param Rcmd command
+     @param chunks content, each chunk from its position to its limit */
+    public RPacket(int Rcmd, ByteBuffer[] chunks) {
+        cmd = Rcmd;
+        cont = null;
+        long l = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            l += chunks[i].remaining();
+        }
+        len = l;
+        this.chunks = chunks;
+        shared = false;
+        rexp = null;
     }
 
     /** get command
@@ -35,9 +97,53 @@ public class RPacket {
      @return status code returned on last response */
     public int getStat() { return ((cmd >> 24) & 127); }
 
-    /** get content
-     @return inner package content */
-    public byte[] getCont() { return cont; }
+    /** get content. If the packet is backed by a shared receive buffer a copy of the content is returned.
+     @return inner package content or <code>null</code> if the packet has no content */
+    public byte[] getCont() {
+        checkArrayContent();
+        if (cont == null || !shared) {
+            return cont;
+        }
+        byte[] c = new byte[(int) len];
+        System.arraycopy(cont, 0, c, 0, (int) len);
+        return c;
+    }
+
+    /** get content without copying it. The returned buffer is a view of the content; if the packet is backed by a
+     shared receive buffer it is only valid until that buffer is re-used.
+     @return view of the content or <code>null</code> if the packet has no content */
+    public ByteBuffer getContBuffer() {
+        checkArrayContent();
+        return (cont == null) ? null : ByteBuffer.wrap(cont, 0, (int) len).slice();
+    }
+
+    /** get content as a sequence of buffers. This works for contents of any size, smaller contents are returned as a
+     single buffer (see {@link #getContBuffer()}).
+     @return views of the content or <code>null</code> if the packet has no content */
+    public ByteBuffer[] getContChunks() {
+        if (chunks == null) {
+            return (cont == null) ? null : new ByteBuffer[] {getContBuffer()};
+        }
+        ByteBuffer[] c = new ByteBuffer[chunks.length];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = chunks[i].slice();
+        }
+        return c;
+    }
+
+    private void checkArrayContent() {
+        if (chunks != null) {
+            throw new IllegalStateException("content of " + len + " bytes is too large for an array, use getContChunks()");
+        }
+    }
+
+    /** get the expression decoded from the content while it was received
+     @return expression or <code>null</code> if the content was not decoded */
+    public REXP getREXP() { return rexp; }
+
+    /** get length of the content
+     @return number of bytes in the content */
+    public long getContLength() { return len; }
 
-    public String toString() { return "RPacket[cmd=" + cmd + ",len=" + ((cont == null) ? "<null>" : ("" + cont.length)) + "]"; }
+    public String toString() { return "RPacket[cmd=" + cmd + ",len=" + ((cont == null && chunks == null) ? "<null>" : ("" + len)) + "]"; }
 }
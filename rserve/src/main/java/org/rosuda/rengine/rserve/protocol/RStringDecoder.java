@@ -0,0 +1,137 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.rosuda.rengine.REXPDictionaryString;
+import org.rosuda.rengine.REXPList;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.rserve.RConnection;
+
+/**
+ * Converts the bytes of strings received from Rserve into Java strings. Pure ASCII strings, which is what most
+ * identifiers, factor levels and categorical values are, bypass the UTF-8 decoder. Optionally repeated values are
+ * deduplicated through a small intern table, so that a vector with many copies of the same short string shares the
+ * {@link String} objects. The table has a fixed number of slots and a colliding string simply replaces the previous
+ * entry, so the memory it holds is bounded regardless of the number of distinct values. Also optionally, long string
+ * vectors with few distinct values are stored as {@link REXPDictionaryString}.
+ * <p>
+ * Instances with an intern table are not thread-safe, a decoder is meant to be used for decoding one response and
+ * {@link #fork()} provides decoders for concurrent decoding.
+ */
+final class RStringDecoder {
+    /** charset used by Rserve */
+    static final Charset CHARSET = Charset.forName(RConnection.transferCharset);
+
+    /** number of slots of the intern table, a power of 2 */
+    private static final int SLOTS = 4096;
+    /** longer strings are not interned, they are rarely repeated and expensive to compare */
+    private static final int MAX_INTERN_LENGTH = 64;
+
+    /** string vectors shorter than this are never dictionary-encoded */
+    private static final int MIN_DICTIONARY_LENGTH = 64;
+    /** string vectors are dictionary-encoded if they have at most one distinct value per this many elements */
+    private static final int DICTIONARY_RATIO = 8;
+    /** upper limit of the size of the dictionary */
+    private static final int MAX_DICTIONARY_SIZE = 65536;
+
+    /** decoder without intern table and dictionary encoding; it has no state and can be shared */
+    static final RStringDecoder PLAIN = new RStringDecoder(false, false);
+
+    /** bytes of the interned strings, <code>null</code> if interning is disabled */
+    private final byte[][] keys;
+    private final String[] values;
+    private final boolean dictionary;
+
+    /** creates a decoder
+     @param intern whether repeated strings are deduplicated
+     @param dictionary whether string vectors with few distinct values are dictionary-encoded */
+    RStringDecoder(boolean intern, boolean dictionary) {
+        keys = intern ? new byte[SLOTS][] : null;
+        values = intern ? new String[SLOTS] : null;
+        this.dictionary = dictionary;
+    }
+
+    /** returns a decoder with the same dictionary setting
+     @param intern whether repeated strings are deduplicated
+     @return decoder */
+    RStringDecoder withIntern(boolean intern) {
+        return (intern || dictionary) ? new RStringDecoder(intern, dictionary) : PLAIN;
+    }
+
+    /** returns a decoder with the same intern setting
+     @param dictionary whether string vectors with few distinct values are dictionary-encoded
+     @return decoder */
+    RStringDecoder withDictionary(boolean dictionary) {
+        boolean intern = keys != null;
+        return (intern || dictionary) ? new RStringDecoder(intern, dictionary) : PLAIN;
+    }
+
+    /** returns a decoder with the same settings for use by another thread
+     @return this decoder if it has no state, otherwise a new decoder with an empty intern table */
+    RStringDecoder fork() {
+        return (keys == null) ? this : new RStringDecoder(true, dictionary);
+    }
+
+    /** creates a character vector from decoded strings, dictionary-encoded if that is enabled and worthwhile
+     @param s strings
+     @param attr attributes
+     @return character vector */
+    REXPString createVector(String[] s, REXPList attr) {
+        if (dictionary && s.length >= MIN_DICTIONARY_LENGTH) {
+            REXPString d = REXPDictionaryString.encode(s, Math.min(MAX_DICTIONARY_SIZE, s.length / DICTIONARY_RATIO), attr);
+            if (d != null) {
+                return d;
+            }
+        }
+        return new REXPString(s, attr);
+    }
+
+    /** decodes a string
+     @param b buffer
+     @param off offset of the first byte
+     @param len number of bytes
+     @return decoded string */
+    String decode(byte[] b, int off, int len) {
+        if (keys == null || len > MAX_INTERN_LENGTH) {
+            return newString(b, off, len);
+        }
+        int h = 0;
+        for (int i = off, e = off + len; i < e; i++) {
+            h = 31 * h + b[i];
+        }
+        int slot = (h ^ (h >>> 16)) & (SLOTS - 1);
+        byte[] k = keys[slot];
+        if (k != null && equals(k, b, off, len)) {
+            return values[slot];
+        }
+        String s = newString(b, off, len);
+        k = new byte[len];
+        System.arraycopy(b, off, k, 0, len);
+        keys[slot] = k;
+        values[slot] = s;
+        return s;
+    }
+
+    private static boolean equals(byte[] k, byte[] b, int off, int len) {
+        if (k.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (k[i] != b[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String newString(byte[] b, int off, int len) {
+        for (int i = off, e = off + len; i < e; i++) {
+            if (b[i] < 0) {
+                return new String(b, off, len, CHARSET);
+            }
+        }
+        // ASCII is the same in ISO-8859-1, whose decoding is a plain copy
+        return new String(b, off, len, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -8,15 +8,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPMismatchException;
 import org.rosuda.rengine.rserve.RConnection;
 
 /** This class encapsulates the QAP1 protocol used by Rserv.
  it is independent of the underying protocol(s), therefore RTalk
- can be used over any transport layer
+ can be used over any transport layer (see {@link RTransport})
  <p>
- The current implementation supports long (0.3+/0102) data format only
- up to 32-bit and only for incoming packets.
+ The current implementation supports the long (0.3+/0102) data format with 56-bit lengths in both directions,
+ see {@link #request(int, long, ContentWriter)} for sending and {@link RPacket#getContChunks()} for receiving large
+ contents.
+ <p>
+ Requests can be sent synchronously using <code>request</code> or pipelined using <code>submit</code>, see
+ {@link #submit(int, byte[], byte[], int, int)}. Both can be used from several threads.
  <p>
  @version $Id$
  */
@@ -75,16 +90,83 @@ public class RTalk {
     public static final int ERR_session_busy = 0x50;
     public static final int ERR_detach_failed = 0x51;
 
-    private final InputStream is;
-    private final OutputStream os;
+    /** payloads up to this size are copied behind the header and sent with a single write */
+    private static final int TX_COALESCE_LIMIT = 64 * 1024;
+    /** responses up to this size are received into the re-usable receive buffer, larger ones get their own array */
+    private static final int RX_REUSE_LIMIT = 1024 * 1024;
+    /** responses larger than this are received into chunks of this size instead of a single array */
+    private static final int MAX_CHUNK = 1 << 30;
+
+    /** default executor for the readers of pipelined responses, threads are created on demand */
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RTalk-reader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final RTransport transport;
+    /** the input side of the transport as a channel for {@link REXPStreamDecoder} */
+    private final ReadableByteChannel channel = new ReadableByteChannel() {
+        public int read(ByteBuffer dst) throws IOException {
+            return transport.read(dst);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    };
+
+    /** futures of submitted requests waiting for their response, in the order the requests were sent. The queue
+     is also the lock for the pipeline state, sending is guarded by the lock of this object. */
+    private final ArrayDeque<CompletableFuture<RPacket>> pending = new ArrayDeque<CompletableFuture<RPacket>>();
+    /** <code>true</code> while a reader task is processing pipelined responses */
+    private boolean readerActive;
+    /** answered requests whose futures were not completed yet, in the order of the responses; guarded by pending */
+    private final ArrayDeque<Answer> answered = new ArrayDeque<Answer>();
+    /** <code>true</code> while a task is completing answered futures */
+    private boolean completerActive;
+    /** set once reading a pipelined response failed; the stream is out of sync from then on */
+    private volatile RConnectionException pipelineFailure;
+    private Executor executor = READERS;
+    /** payloads of decoded responses from this size on are stored off-heap, see {@link REXPStreamDecoder#setOffHeapThreshold(long)} */
+    private volatile long offHeapThreshold = Long.MAX_VALUE;
+    /** whether repeated strings in decoded responses are deduplicated */
+    private volatile boolean internStrings;
+    /** whether string vectors with few distinct values in decoded responses are dictionary-encoded */
+    private volatile boolean dictionaryStrings;
+    /** generic vectors of decoded responses from this size on are decoded in parallel, see {@link REXPFactory#setParallelThreshold(long)} */
+    private volatile long parallelThreshold = Long.MAX_VALUE;
+
+    /** re-usable buffer for the response header */
+    private final byte[] ih = new byte[16];
+    /** re-usable transmit buffer: request header followed by the (coalesced) payload */
+    private byte[] tx = new byte[1024];
+    /** re-usable receive buffer for responses up to {@link #RX_REUSE_LIMIT} bytes */
+    private byte[] rx = new byte[1024];
 
     /** constructor; parameters specify the streams
      @param sis socket input stream
      @param sos socket output stream */
 
     public RTalk(InputStream sis, OutputStream sos) {
-        is = sis;
-        os = sos;
+        this(new SocketTransport(sis, sos));
+    }
+
+    /** constructor; parameter specifies the transport
+     @param transport connected transport */
+    public RTalk(RTransport transport) {
+        this.transport = transport;
+    }
+
+    /** returns the transport used by this object
+     @return transport */
+    public RTransport getTransport() {
+        return transport;
     }
 
     /** writes bit-wise int to a byte buffer at specified position in Intel-endian form
@@ -111,23 +193,30 @@ public class RTalk {
      * 4 or 8 bytes long, depending on the len parameter.
      */
     public static int setHdr(int ty, int len, byte[] buf, int offset) {
+        return setHdr(ty, (long) len, buf, offset);
+    }
+
+    /**
+     * Writes cmd/resp/type byte + 3/7 bytes len into a byte buffer at specified offset. Lengths above 0xfffff0 use the
+     * "long" format which can hold up to 56 bits.
+     * @param ty type/cmd/resp byte
+     * @param len length
+     * @param buf buffer
+     * @param offset offset
+     * @return offset in buf just after the header
+     */
+    public static int setHdr(int ty, long len, byte[] buf, int offset) {
         buf[offset] = (byte) ((ty & 255) | ((len > 0xfffff0) ? DT_LARGE : 0));
         offset++;
         buf[offset] = (byte) (len & 255);
         offset++;
-        buf[offset] = (byte) ((len & 0xff00) >> 8);
+        buf[offset] = (byte) ((len >> 8) & 255);
         offset++;
-        buf[offset] = (byte) ((len & 0xff0000) >> 16);
+        buf[offset] = (byte) ((len >> 16) & 255);
         offset++;
         if (len > 0xfffff0) { // for large data we need to set the next 4 bytes as well
-            buf[offset] = (byte) ((len & 0xff000000) >> 24);
-            offset++;
-            buf[offset] = 0;
-            offset++; // since len is int, we get 32-bits only
-            buf[offset] = 0;
-            offset++;
-            buf[offset] = 0;
-            offset++;
+            setInt((int) (len >>> 24), buf, offset);
+            offset += 4;
         }
         return offset;
     }
@@ -150,17 +239,24 @@ public class RTalk {
         return ((buf[offset] & 255) | ((buf[offset + 1] & 255) << 8) | ((buf[offset + 2] & 255) << 16) | ((buf[offset + 3] & 255) << 24));
     }
 
-    /** converts bit-wise stored length from a header. "long" format is supported up to 32-bit
+    /** converts bit-wise stored length from a header, see {@link #getLongLen(byte[], int)}.
      @param buf buffer
      @param offset offset of the header (length is at offset+1)
-     @return length */
+     @return length. "long" format is supported only up to 32-bit by this method */
     public static int getLen(byte[] buf, int offset) {
+        return (int) getLongLen(buf, offset);
+    }
 
-        return
-                ((buf[offset] & 64) > 0) ? // "long" format; still - we support 32-bit only
-                ((buf[offset + 1] & 255) | ((buf[offset + 2] & 255) << 8) | ((buf[offset + 3] & 255) << 16) | ((buf[offset + 4] & 255) << 24))
-                                         :
-                ((buf[offset + 1] & 255) | ((buf[offset + 2] & 255) << 8) | ((buf[offset + 3] & 255) << 16));
+    /** converts bit-wise stored length from a header including the 56-bit "long" format
+     @param buf buffer
+     @param offset offset of the header (length is at offset+1)
+     @return length */
+    public static long getLongLen(byte[] buf, int offset) {
+        long len = (buf[offset + 1] & 255) | ((buf[offset + 2] & 255) << 8) | ((buf[offset + 3] & 255) << 16);
+        if ((buf[offset] & DT_LARGE) != 0) {
+            len |= (getInt(buf, offset + 4) & 0xffffffffL) << 24;
+        }
+        return len;
     }
 
     /** converts bit-wise Intel-endian format into long
@@ -184,8 +280,7 @@ public class RTalk {
      @param cmd command
      @return returned packet or <code>null</code> if something went wrong */
     public RPacket request(int cmd) throws RConnectionException {
-        byte[] d = new byte[0];
-        return request(cmd, d);
+        return request(cmd, null, null, 0, 0);
     }
 
     /** sends a request with attached parameters
@@ -199,6 +294,9 @@ public class RTalk {
     /**
      * Sends a request with attached prefix and  parameters. Both prefix and cont can be <code>null</code>. Effectively
      * <code>request(a,b,null)</code> and <code>request(a,null,b)</code> are equivalent.
+     * <p>The header, prefix and (unless it is large) the content are sent in a single write. The content of the returned
+     * packet may be backed by the receive buffer of this object, see {@link RPacket}. If there are outstanding
+     * {@link #submit submitted} requests, this method waits until all of them were answered.
      * @param cmd command - a special command of -1 prevents request from sending anything
      * @param prefix - this content is sent *before* cont. It is provided to save memory copy operations where a small
      *               header precedes a large data chunk (usually prefix conatins the parameter header and cont contains
@@ -208,7 +306,291 @@ public class RTalk {
      * @param len number of bytes in cont to send (it is clipped to the length of cont if necessary)
      * @return returned packet or <code>null</code> if something went wrong
      */
-    public RPacket request(int cmd, byte[] prefix, byte[] cont, int offset, int len) throws RConnectionException {
+    public synchronized RPacket request(int cmd, byte[] prefix, byte[] cont, int offset, int len) throws RConnectionException {
+        awaitPipeline();
+        try {
+            if (cmd != -1) {
+                send(cmd, prefix, cont, offset, len);
+            }
+            return response(false);
+        } catch (IOException e) {
+            throw new RConnectionException(e);
+        }
+    }
+
+    /**
+     * Sends a request without waiting for the response. Requests submitted back-to-back are pipelined, i.e. they are all
+     * on the wire before the first response arrives. Rserve answers requests in the order it received them, the
+     * responses are read by a single reader thread which completes the returned futures in the same order.
+     * <p>The content of the packets passed to the futures is never shared, it can be retained. The futures are not
+     * completed by the reader but by a separate task on the executor, one after the other in the order of the responses.
+     * Dependent actions attached with the non-async methods run in that task, so they may submit further requests or
+     * send synchronous ones, but they must not wait for another future of this object as that would block its
+     * completion. If reading a response fails all outstanding futures fail with {@link RConnectionException} and so do
+     * all subsequent submissions.
+     * @param cmd command
+     * @param prefix content sent before cont (see {@link #request(int, byte[], byte[], int, int)})
+     * @param cont contents
+     * @param offset offset in cont where to start sending
+     * @param len number of bytes in cont to send
+     * @return future completed with the response packet
+     */
+    public CompletableFuture<RPacket> submit(int cmd, byte[] prefix, byte[] cont, int offset, int len) {
+        CompletableFuture<RPacket> f = new CompletableFuture<RPacket>();
+        synchronized (this) {
+            if (pipelineFailure == null) {
+                try {
+                    send(cmd, prefix, cont, offset, len);
+                } catch (IOException e) {
+                    failPipeline(new RConnectionException(e));
+                }
+            }
+            enqueue(f);
+        }
+        return f;
+    }
+
+    /** submits a request with attached parameters, see {@link #submit(int, byte[], byte[], int, int)}
+     @param cmd command
+     @param cont contents - parameters
+     @return future completed with the response packet */
+    public CompletableFuture<RPacket> submit(int cmd, byte[] cont) {
+        return submit(cmd, null, cont, 0, (cont == null) ? 0 : cont.length);
+    }
+
+    /** submits a request with one string parameter attached, see {@link #submit(int, byte[], byte[], int, int)}
+     @param cmd command
+     @param par parameter - length and DT_STRING will be prepended
+     @return future completed with the response packet */
+    public CompletableFuture<RPacket> submit(int cmd, String par) {
+        CompletableFuture<RPacket> f = new CompletableFuture<RPacket>();
+        synchronized (this) {
+            if (pipelineFailure == null) {
+                try {
+                    send(cmd, par);
+                } catch (IOException e) {
+                    failPipeline(new RConnectionException(e));
+                }
+            }
+            enqueue(f);
+        }
+        return f;
+    }
+
+    /** sets the executor running the reader of pipelined responses and completing their futures. By default a shared
+     pool of daemon threads is used.
+     @param executor executor */
+    public void setExecutor(Executor executor) {
+        synchronized (pending) {
+            this.executor = executor;
+        }
+    }
+
+    /** sets the size from which numeric and raw payloads of responses decoded by {@link #requestREXP} are stored in
+     direct buffers outside of the Java heap, see {@link REXPStreamDecoder#setOffHeapThreshold(long)}
+     @param bytes minimal payload size in bytes, <code>Long.MAX_VALUE</code> (the default) to disable */
+    public void setOffHeapThreshold(long bytes) {
+        offHeapThreshold = bytes;
+    }
+
+    /** returns the size from which numeric and raw payloads are stored off-heap
+     @return size in bytes */
+    public long getOffHeapThreshold() {
+        return offHeapThreshold;
+    }
+
+    /** enables or disables deduplication of repeated strings in responses decoded by {@link #requestREXP}, see
+     {@link REXPFactory#setInternStrings(boolean)}
+     @param intern <code>true</code> to share the {@link String} objects of equal short strings */
+    public void setInternStrings(boolean intern) {
+        internStrings = intern;
+    }
+
+    /** returns whether repeated strings in decoded responses are deduplicated
+     @return <code>true</code> if strings are interned */
+    public boolean isInternStrings() {
+        return internStrings;
+    }
+
+    /** enables or disables dictionary encoding of string vectors in responses decoded by {@link #requestREXP}, see
+     {@link REXPFactory#setDictionaryStrings(boolean)}
+     @param dictionary <code>true</code> to dictionary-encode string vectors with few distinct values */
+    public void setDictionaryStrings(boolean dictionary) {
+        dictionaryStrings = dictionary;
+    }
+
+    /** returns whether string vectors with few distinct values in decoded responses are dictionary-encoded
+     @return <code>true</code> if string vectors are dictionary-encoded */
+    public boolean isDictionaryStrings() {
+        return dictionaryStrings;
+    }
+
+    /** sets the size from which the elements of generic vectors (lists, data frames) in responses decoded by
+     {@link #requestREXP} are decoded concurrently, see {@link REXPStreamDecoder#setParallelThreshold(long)}
+     @param bytes minimal size of the vector content in bytes, <code>Long.MAX_VALUE</code> (the default) to disable */
+    public void setParallelThreshold(long bytes) {
+        parallelThreshold = bytes;
+    }
+
+    /** returns the size from which generic vectors are decoded in parallel
+     @return size in bytes */
+    public long getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /** returns the number of submitted requests which were not answered yet
+     @return number of outstanding requests */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /** adds a future for a request that was just sent and makes sure the reader is running. If the pipeline
+     failed the future fails right away. */
+    private void enqueue(CompletableFuture<RPacket> f) {
+        synchronized (pending) {
+            if (pipelineFailure != null) {
+                f.completeExceptionally(pipelineFailure);
+                return;
+            }
+            pending.addLast(f);
+            if (!readerActive) {
+                readerActive = true;
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            readPipeline();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    readerActive = false;
+                    failPipeline(new RConnectionException("Cannot start response reader", e));
+                }
+            }
+        }
+    }
+
+    /** reads responses of submitted requests until there are none outstanding. The reader only ever locks the queue
+     so that it keeps draining responses while another thread is blocked sending a large request. */
+    private void readPipeline() {
+        while (true) {
+            CompletableFuture<RPacket> f;
+            synchronized (pending) {
+                f = pending.peekFirst();
+                if (f == null) {
+                    readerActive = false;
+                    pending.notifyAll();
+                    return;
+                }
+            }
+            RPacket p;
+            try {
+                p = response(false);
+            } catch (Exception e) {
+                synchronized (pending) {
+                    failPipeline((e instanceof RConnectionException) ? (RConnectionException) e : new RConnectionException(e));
+                    readerActive = false;
+                    pending.notifyAll();
+                }
+                return;
+            }
+            synchronized (pending) {
+                pending.pollFirst();
+                deliver(f, p, null);
+            }
+        }
+    }
+
+    /** a response or failure to be passed to the future of a request */
+    private static final class Answer {
+        final CompletableFuture<RPacket> future;
+        final RPacket packet;
+        final RConnectionException failure;
+
+        Answer(CompletableFuture<RPacket> future, RPacket packet, RConnectionException failure) {
+            this.future = future;
+            this.packet = packet;
+            this.failure = failure;
+        }
+    }
+
+    /** queues the completion of a future and makes sure a task is completing them. Completing futures outside of the
+     reader keeps dependent actions which send requests from blocking the reader, which a synchronous request may be
+     waiting for. Must hold the lock of the queue. */
+    private void deliver(CompletableFuture<RPacket> f, RPacket p, RConnectionException e) {
+        answered.addLast(new Answer(f, p, e));
+        if (!completerActive) {
+            completerActive = true;
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        completeAnswered();
+                    }
+                });
+            } catch (RuntimeException x) { // no thread to complete the futures, at least fail them
+                completerActive = false;
+                Answer a;
+                while ((a = answered.pollFirst()) != null) {
+                    a.future.completeExceptionally(new RConnectionException("Cannot complete response", x));
+                }
+            }
+        }
+    }
+
+    /** completes the answered futures in order until there are none left */
+    private void completeAnswered() {
+        while (true) {
+            Answer a;
+            synchronized (pending) {
+                a = answered.pollFirst();
+                if (a == null) {
+                    completerActive = false;
+                    return;
+                }
+            }
+            if (a.failure != null) {
+                a.future.completeExceptionally(a.failure);
+            } else {
+                a.future.complete(a.packet);
+            }
+        }
+    }
+
+    /** fails all outstanding futures; the pipeline is out of sync after that so later submissions fail as well */
+    private void failPipeline(RConnectionException e) {
+        synchronized (pending) {
+            pipelineFailure = e;
+            CompletableFuture<RPacket> f;
+            while ((f = pending.pollFirst()) != null) {
+                deliver(f, null, e);
+            }
+        }
+    }
+
+    /** waits until all submitted requests were answered. Must hold the lock of this object which keeps new
+     requests from being submitted in the meantime. */
+    private void awaitPipeline() throws RConnectionException {
+        boolean interrupted = false;
+        synchronized (pending) {
+            while (readerActive) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (pipelineFailure != null) {
+            throw pipelineFailure;
+        }
+    }
+
+    /** sends one request, see {@link #request(int, byte[], byte[], int, int)} for parameters. Must hold the lock. */
+    private void send(int cmd, byte[] prefix, byte[] cont, int offset, int len) throws IOException {
         if (cont != null) {
             if (offset >= cont.length) {
                 cont = null;
@@ -223,74 +605,351 @@ public class RTalk {
         if (len < 0) {
             len = 0;
         }
-        int contlen = (cont == null) ? 0 : len;
-        if (prefix != null && prefix.length > 0) {
-            contlen += prefix.length;
+        int pl = (prefix == null) ? 0 : prefix.length;
+        int cl = (cont == null) ? 0 : len;
+        boolean coalesce = (cl <= TX_COALESCE_LIMIT);
+        int fl = 16 + pl + (coalesce ? cl : 0);
+        byte[] f = txBuffer(fl);
+        setFrameHdr(cmd, pl + cl, f);
+        if (pl > 0) {
+            System.arraycopy(prefix, 0, f, 16, pl);
         }
-        byte[] hdr = new byte[16];
-        setInt(cmd, hdr, 0);
-        setInt(contlen, hdr, 4);
-        for (int i = 8; i < 16; i++) {
-            hdr[i] = 0;
+        if (coalesce && cl > 0) {
+            System.arraycopy(cont, offset, f, 16 + pl, cl);
         }
+        if (coalesce) {
+            transport.write(f, 0, fl);
+        } else { // header and large content in one gathering write
+            transport.write(new ByteBuffer[] {ByteBuffer.wrap(f, 0, fl), ByteBuffer.wrap(cont, offset, cl)});
+        }
+    }
+
+    /** sends one request with a string parameter. Must hold the lock. */
+    private void send(int cmd, String par) throws IOException {
+        byte[] b;
         try {
-            if (cmd != -1) {
-                os.write(hdr);
-                if (prefix != null && prefix.length > 0) {
-                    os.write(prefix);
-                }
-                if (cont != null && cont.length > 0) {
-                    os.write(cont, offset, len);
-                }
+            b = par.getBytes(RConnection.transferCharset);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        int sl = b.length + 1;
+        if ((sl & 3) > 0) {
+            sl = (sl & 0xfffffc) + 4; // make sure the length is divisible by 4
+        }
+        if (sl > TX_COALESCE_LIMIT) {
+            byte[] rq = new byte[sl + 4];
+            System.arraycopy(b, 0, rq, 4, b.length);
+            setHdr(DT_STRING, sl, rq, 0);
+            send(cmd, null, rq, 0, rq.length);
+            return;
+        }
+        // small strings are encoded straight into the transmit buffer behind the header, which is never a large one
+        int hl = 4;
+        byte[] f = txBuffer(16 + hl + sl);
+        setFrameHdr(cmd, hl + sl, f);
+        setHdr(DT_STRING, sl, f, 16);
+        System.arraycopy(b, 0, f, 16 + hl, b.length);
+        for (int i = 16 + hl + b.length; i < 16 + hl + sl; i++) { // pad with 0
+            f[i] = 0;
+        }
+        transport.write(f, 0, 16 + hl + sl);
+    }
+
+    /** returns the transmit buffer, enlarged if necessary to hold at least <code>size</code> bytes */
+    private byte[] txBuffer(int size) {
+        if (tx.length < size) {
+            int n = tx.length;
+            while (n < size) {
+                n <<= 1;
             }
+            tx = new byte[n];
+        }
+        return tx;
+    }
 
-            byte[] ih = new byte[16];
-            if (is.read(ih) != 16) {
+    /** writes the 16-byte QAP1 message header into the beginning of the buffer */
+    private static void setFrameHdr(int cmd, long len, byte[] buf) {
+        setInt(cmd, buf, 0);
+        setInt((int) len, buf, 4);
+        setInt(0, buf, 8);
+        setInt((int) (len >>> 32), buf, 12); // high 32 bits of the length (since 0103)
+    }
+
+    /** returns the content length from a QAP1 message header */
+    private static long getFrameLen(byte[] hdr) {
+        return (getInt(hdr, 4) & 0xffffffffL) | ((long) getInt(hdr, 12) << 32);
+    }
+
+    /** reads exactly <code>len</code> bytes into the buffer */
+    private void readFully(byte[] buf, int off, int len) throws IOException, RConnectionException {
+        int n = 0;
+        while (n < len) {
+            int rd = transport.read(buf, off + n, len - n);
+            if (rd < 0) {
                 throw new RConnectionException("EOF reached");
             }
+            n += rd;
+        }
+    }
+
+    /** reads one response from the stream
+     @param shared if <code>true</code> small responses are received into the re-usable receive buffer; such packets
+     must not leave this object since the next response overwrites them */
+    private RPacket response(boolean shared) throws IOException, RConnectionException {
+        readFully(ih, 0, 16); // responses are only read by one thread at a time
+        return content(getInt(ih, 0), getFrameLen(ih), shared, null, 0);
+    }
+
+    /** reads the content of a response whose header was already read
+     @param head first bytes of the content which were already read, may be <code>null</code>
+     @param hl number of bytes in head */
+    private RPacket content(int rep, long rl, boolean shared, byte[] head, int hl) throws IOException, RConnectionException {
+        if (rl <= 0) {
+            return new RPacket(rep, (byte[]) null);
+        }
+        if (rl > MAX_CHUNK) { // does not fit into an array
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((rl + MAX_CHUNK - 1) / MAX_CHUNK)];
+            for (int i = 0; i < chunks.length; i++) {
+                byte[] c = new byte[(int) Math.min(MAX_CHUNK, rl - (long) i * MAX_CHUNK)];
+                int o = 0;
+                if (i == 0 && hl > 0) {
+                    System.arraycopy(head, 0, c, 0, hl);
+                    o = hl;
+                }
+                readFully(c, o, c.length - o);
+                chunks[i] = ByteBuffer.wrap(c);
+            }
+            return new RPacket(rep, chunks);
+        }
+        int l = (int) rl;
+        byte[] ct;
+        if (!shared || l > RX_REUSE_LIMIT) {
+            ct = new byte[l];
+        } else {
+            if (rx.length < l) {
+                int n = rx.length;
+                while (n < l) {
+                    n <<= 1;
+                }
+                rx = new byte[n];
+            }
+            ct = rx;
+        }
+        if (hl > 0) {
+            System.arraycopy(head, 0, ct, 0, hl);
+        }
+        readFully(ct, hl, l - hl);
+        return (ct == rx) ? new RPacket(rep, rx, l) : new RPacket(rep, ct);
+    }
+
+    /**
+     * Sends a request with one string parameter attached and decodes a large SEXP in the response while it is being
+     * received (see {@link REXPStreamDecoder}), which avoids holding the binary representation and the decoded
+     * expression in memory at the same time. Responses which are small, not OK or do not carry a DT_SEXP parameter are
+     * returned just like by {@link #request(int, String)}.
+     * @param cmd command
+     * @param par parameter - length and DT_STRING will be prepended
+     * @return returned packet; if the expression was decoded it is available from {@link RPacket#getREXP()} and the
+     * packet has no content
+     */
+    public synchronized RPacket requestREXP(int cmd, String par) throws RConnectionException {
+        awaitPipeline();
+        try {
+            send(cmd, par);
+            readFully(ih, 0, 16);
             int rep = getInt(ih, 0);
-            int rl = getInt(ih, 4);
-            if (rl > 0) {
-                byte[] ct = new byte[rl];
-                int n = 0;
-                while (n < rl) {
-                    int rd = is.read(ct, n, rl - n);
-                    n += rd;
+            long rl = getFrameLen(ih);
+            if ((rep & 15) != 1 || rl < 4) {
+                return content(rep, rl, false, null, 0);
+            }
+            if (rl <= RX_REUSE_LIMIT) {
+                return decodeShared(rep, content(rep, rl, true, null, 0));
+            }
+            readFully(ih, 0, 4);
+            if ((ih[0] & 63) != DT_SEXP) {
+                return content(rep, rl, false, ih, 4);
+            }
+            int hl = 4;
+            if ((ih[0] & DT_LARGE) != 0) {
+                readFully(ih, 4, 4);
+                hl = 8;
+            }
+            REXPStreamDecoder d = new REXPStreamDecoder(channel, rl - hl);
+            d.setOffHeapThreshold(offHeapThreshold);
+            d.setInternStrings(internStrings);
+            d.setDictionaryStrings(dictionaryStrings);
+            d.setParallelThreshold(parallelThreshold);
+            try {
+                REXP x = d.decode();
+                d.skipRemaining();
+                return new RPacket(rep, x);
+            } catch (REXPMismatchException e) {
+                d.skipRemaining();
+                throw new RConnectionException("Error when parsing response: " + e.getMessage(), e);
+            }
+        } catch (IOException e) {
+            throw new RConnectionException(e);
+        }
+    }
+
+    /** decodes the SEXP of a small response received into the re-usable receive buffer while the lock is held, so
+     that the buffer does not leave this object. Contents which are not a SEXP are copied. */
+    private RPacket decodeShared(int rep, RPacket p) throws RConnectionException {
+        ByteBuffer b = p.getContBuffer();
+        byte[] c = b.array();
+        int l = b.remaining();
+        if ((c[0] & 63) != DT_SEXP) {
+            return new RPacket(rep, Arrays.copyOf(c, l));
+        }
+        int hl = ((c[0] & DT_LARGE) != 0) ? 8 : 4;
+        if (l <= hl) {
+            return new RPacket(rep, (REXP) null);
+        }
+        REXPFactory f = new REXPFactory();
+        f.setInternStrings(internStrings);
+        f.setDictionaryStrings(dictionaryStrings);
+        f.setParallelThreshold(parallelThreshold);
+        try {
+            f.parseREXP(c, hl);
+        } catch (REXPMismatchException e) {
+            throw new RConnectionException("Error when parsing response: " + e.getMessage(), e);
+        }
+        return new RPacket(rep, f.getREXP());
+    }
+
+    /** writes the content of a request, see {@link RTalk#request(int, long, ContentWriter)} */
+    public interface ContentWriter {
+        /** writes the content of the request
+         @param out stream to write to; it must not be closed */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends a request whose content is written by the caller straight to the connection. The content is not assembled in
+     * memory first, so requests of any size (including more than 2GB) can be sent.
+     * @param cmd command
+     * @param len length of the content; the writer must write exactly this number of bytes
+     * @param writer writes the content
+     * @return returned packet or <code>null</code> if something went wrong
+     */
+    public synchronized RPacket request(int cmd, long len, ContentWriter writer) throws RConnectionException {
+        awaitPipeline();
+        try {
+            byte[] h = new byte[16];
+            setFrameHdr(cmd, len, h);
+            TransportOutputStream out = new TransportOutputStream(16 + len);
+            out.write(h, 0, 16);
+            writer.writeTo(out);
+            out.flush();
+            if (out.count != len + 16) { // the connection is out of sync at this point
+                throw new RConnectionException("Request content length mismatch: " + (out.count - 16) + " bytes written, " + len + " announced");
+            }
+            return response(false);
+        } catch (IOException e) {
+            throw new RConnectionException(e);
+        }
+    }
+
+    /**
+     * Sends a request with an optional prefix followed by an expression as DT_SEXP parameter. The binary representation
+     * is written straight into the transmit buffer if it is small or to the transport if it is large, it is never
+     * assembled in a separate array.
+     * @param cmd command
+     * @param prefix parameters sent before the expression, may be <code>null</code>
+     * @param rexp factory of the expression
+     * @return returned packet or <code>null</code> if something went wrong
+     */
+    public synchronized RPacket requestSEXP(int cmd, byte[] prefix, final REXPFactory rexp) throws RConnectionException, REXPMismatchException {
+        long rl = rexp.getBinaryLongLength();
+        int pl = (prefix == null) ? 0 : prefix.length;
+        int hl = (rl > 0xfffff0) ? 8 : 4;
+        long len = pl + hl + rl;
+        if (len > TX_COALESCE_LIMIT) {
+            final byte[] ph = new byte[pl + hl];
+            if (pl > 0) {
+                System.arraycopy(prefix, 0, ph, 0, pl);
+            }
+            setHdr(DT_SEXP, rl, ph, pl);
+            return request(cmd, len, new ContentWriter() {
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(ph, 0, ph.length);
+                    try {
+                        rexp.writeBinaryRepresentation(out);
+                    } catch (REXPMismatchException me) {
+                        throw new IOException("Error creating binary representation: " + me.getMessage(), me);
+                    }
                 }
-                return new RPacket(rep, ct);
+            });
+        }
+        awaitPipeline();
+        try {
+            byte[] f = txBuffer(16 + (int) len);
+            setFrameHdr(cmd, len, f);
+            if (pl > 0) {
+                System.arraycopy(prefix, 0, f, 16, pl);
             }
-            return new RPacket(rep, null);
+            setHdr(DT_SEXP, rl, f, 16 + pl);
+            rexp.getBinaryRepresentation(f, 16 + pl + hl);
+            transport.write(f, 0, 16 + (int) len);
+            return response(false);
         } catch (IOException e) {
             throw new RConnectionException(e);
         }
     }
 
+    /** stream collecting small writes in the transmit buffer and passing them on to the transport, counting the bytes */
+    private class TransportOutputStream extends OutputStream {
+        long count;
+        /** number of bytes in the transmit buffer */
+        private int n;
+
+        /** @param size expected number of bytes, used to size the transmit buffer */
+        TransportOutputStream(long size) {
+            txBuffer((int) Math.min(size, TX_COALESCE_LIMIT));
+        }
+
+        public void write(int b) throws IOException {
+            if (n == tx.length) {
+                flush();
+            }
+            tx[n++] = (byte) b;
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= tx.length) {
+                flush();
+                transport.write(b, off, len);
+            } else {
+                if (n + len > tx.length) {
+                    flush();
+                }
+                System.arraycopy(b, off, tx, n, len);
+                n += len;
+            }
+            count += len;
+        }
+
+        public void flush() throws IOException {
+            if (n > 0) {
+                transport.write(tx, 0, n);
+                n = 0;
+            }
+        }
+    }
+
     /** sends a request with one string parameter attached
      @param cmd command
      @param par parameter - length and DT_STRING will be prepended
      @return returned packet or <code>null</code> if something went wrong */
-    public RPacket request(int cmd, String par) throws RConnectionException {
-        byte[] b;
+    public synchronized RPacket request(int cmd, String par) throws RConnectionException {
+        awaitPipeline();
         try {
-            b = par.getBytes(RConnection.transferCharset);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
-        int sl = b.length + 1;
-        if ((sl & 3) > 0) {
-            sl = (sl & 0xfffffc) + 4; // make sure the length is divisible by 4
-        }
-        byte[] rq = new byte[sl + 5];
-        int i;
-        for (i = 0; i < b.length; i++) {
-            rq[i + 4] = b[i];
-        }
-        while (i < sl) { // pad with 0
-            rq[i + 4] = 0;
-            i++;
+            send(cmd, par);
+            return response(false);
+        } catch (IOException e) {
+            throw new RConnectionException(e);
         }
-        setHdr(DT_STRING, sl, rq, 0);
-        return request(cmd, rq);
     }
 
     /** sends a request with one string parameter attached
@@ -0,0 +1,41 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Transport layer used by {@link RTalk} to exchange QAP1 messages with Rserve. Implementations are expected to be
+ blocking, i.e. reads wait until at least one byte is available (or the read timeout of the transport expires) and
+ writes return only once all bytes were handed over to the transport. Reads and writes may happen concurrently, since
+ pipelined responses are read by one thread while another sends requests, but there is never more than one thread
+ reading or more than one thread writing at a time.
+ <p>
+ {@link SocketTransport} is the stream-based implementation working with any {@link java.net.Socket} (including SSL
+ sockets), {@link SocketChannelTransport} uses NIO channels and supports direct {@link ByteBuffer}s without copying.
+ */
+public interface RTransport {
+    /** reads up to <code>len</code> bytes into the buffer
+     @param b buffer
+     @param off offset in the buffer
+     @param len maximal number of bytes to read
+     @return number of bytes read or -1 if the end of the stream was reached */
+    int read(byte[] b, int off, int len) throws IOException;
+
+    /** reads bytes into the remaining space of the buffer, which can be direct
+     @param dst destination buffer
+     @return number of bytes read or -1 if the end of the stream was reached */
+    int read(ByteBuffer dst) throws IOException;
+
+    /** writes all <code>len</code> bytes from the buffer
+     @param b buffer
+     @param off offset in the buffer
+     @param len number of bytes to write */
+    void write(byte[] b, int off, int len) throws IOException;
+
+    /** writes the remaining content of all buffers in the given order. Transports supporting gathering writes send
+     them with as few system calls as possible.
+     @param srcs source buffers */
+    void write(ByteBuffer[] srcs) throws IOException;
+
+    /** closes the transport */
+    void close() throws IOException;
+}
@@ -0,0 +1,13 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.io.IOException;
+
+/** Creates connected {@link RTransport}s, allows {@link org.rosuda.rengine.rserve.RConnection} to use other transports
+ than the default blocking socket. */
+public interface RTransportFactory {
+    /** opens a new transport to the given Rserve
+     @param host host name/IP
+     @param port TCP port
+     @return connected transport */
+    RTransport connect(String host, int port) throws IOException;
+}
@@ -0,0 +1,116 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/** {@link RTransport} based on a NIO {@link SocketChannel}. Reads and writes go straight from/to the supplied
+ buffers, so direct buffers are filled without an intermediate copy and large requests are sent with a single
+ gathering write. If a read timeout is set the channel is operated in non-blocking mode behind selectors, because
+ blocking channels ignore <code>SO_TIMEOUT</code>. Reads and writes wait on separate selectors, so a thread reading
+ pipelined responses and a thread sending requests do not interfere. */
+public class SocketChannelTransport implements RTransport {
+    private final SocketChannel channel;
+    private final int readTimeout;
+    /** selectors used to wait until the channel can be read or written, <code>null</code> if the channel is blocking */
+    private final Selector readSelector;
+    private final Selector writeSelector;
+
+    /** creates transport using a connected channel without read timeout
+     @param channel connected channel */
+    public SocketChannelTransport(SocketChannel channel) throws IOException {
+        this(channel, 0);
+    }
+
+    /** creates transport using a connected channel
+     @param channel connected channel
+     @param readTimeout timeout in milliseconds for reads and writes, 0 means no timeout */
+    public SocketChannelTransport(SocketChannel channel, int readTimeout) throws IOException {
+        this.channel = channel;
+        this.readTimeout = readTimeout;
+        if (readTimeout > 0) {
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            try {
+                channel.register(readSelector, SelectionKey.OP_READ);
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                readSelector.close();
+                writeSelector.close();
+                throw e;
+            }
+        } else {
+            channel.configureBlocking(true);
+            readSelector = null;
+            writeSelector = null;
+        }
+    }
+
+    /** returns the underlying channel
+     @return channel */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        int n = channel.read(dst);
+        while (n == 0 && readSelector != null && dst.hasRemaining()) {
+            await(readSelector);
+            n = channel.read(dst);
+        }
+        return n;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(new ByteBuffer[] {ByteBuffer.wrap(b, off, len)});
+    }
+
+    public void write(ByteBuffer[] srcs) throws IOException {
+        while (remaining(srcs) > 0) {
+            if (channel.write(srcs) == 0 && writeSelector != null) {
+                await(writeSelector);
+            }
+        }
+    }
+
+    private static long remaining(ByteBuffer[] srcs) {
+        long n = 0;
+        for (int i = 0; i < srcs.length; i++) {
+            n += srcs[i].remaining();
+        }
+        return n;
+    }
+
+    /** waits until the channel is ready for the operation the selector is interested in or the timeout expires */
+    private void await(Selector selector) throws IOException {
+        try {
+            if (selector.select(readTimeout) == 0) {
+                throw new SocketTimeoutException("Rserve did not respond within " + readTimeout + "ms");
+            }
+        } finally {
+            selector.selectedKeys().clear();
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (readSelector != null) {
+                try {
+                    readSelector.close();
+                } finally {
+                    writeSelector.close();
+                }
+            }
+        }
+    }
+}
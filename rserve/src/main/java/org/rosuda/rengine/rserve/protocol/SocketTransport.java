@@ -0,0 +1,82 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/** Stream based {@link RTransport}. This is the classic transport working on top of the streams of a
+ {@link Socket} (or any other pair of streams) and the fallback for sockets which have no channel. */
+public class SocketTransport implements RTransport {
+    private final Socket socket;
+    private final InputStream is;
+    private final OutputStream os;
+
+    /** creates transport using the streams of a connected socket
+     @param socket connected socket */
+    public SocketTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        is = socket.getInputStream();
+        os = socket.getOutputStream();
+    }
+
+    /** creates transport on top of the given streams
+     @param is input stream
+     @param os output stream */
+    public SocketTransport(InputStream is, OutputStream os) {
+        socket = null;
+        this.is = is;
+        this.os = os;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        return is.read(b, off, len);
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (dst.hasArray()) {
+            int n = is.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+            return n;
+        }
+        byte[] b = new byte[Math.min(dst.remaining(), 64 * 1024)];
+        int n = is.read(b, 0, b.length);
+        if (n > 0) {
+            dst.put(b, 0, n);
+        }
+        return n;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        os.write(b, off, len);
+    }
+
+    public void write(ByteBuffer[] srcs) throws IOException {
+        for (int i = 0; i < srcs.length; i++) {
+            ByteBuffer src = srcs[i];
+            if (src.hasArray()) {
+                os.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            } else {
+                byte[] b = new byte[Math.min(src.remaining(), 64 * 1024)];
+                while (src.hasRemaining()) {
+                    int n = Math.min(b.length, src.remaining());
+                    src.get(b, 0, n);
+                    os.write(b, 0, n);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        } else {
+            is.close();
+            os.close();
+        }
+    }
+}
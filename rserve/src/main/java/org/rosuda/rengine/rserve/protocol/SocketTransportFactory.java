@@ -0,0 +1,83 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/** {@link RTransportFactory} creating TCP/IP transports. By default it creates the same blocking
+ {@link SocketTransport} that <code>RConnection</code> always used; {@link #setUseChannel} switches to
+ {@link SocketChannelTransport}. All socket options are applied before connecting. */
+public class SocketTransportFactory implements RTransportFactory {
+    private boolean useChannel = false;
+    private boolean tcpNoDelay = true;
+    private int connectTimeout = 0;
+    private int readTimeout = 0;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+
+    /** use NIO {@link SocketChannel} based transport instead of socket streams
+     @param useChannel <code>true</code> to create {@link SocketChannelTransport}s */
+    public void setUseChannel(boolean useChannel) { this.useChannel = useChannel; }
+
+    public boolean isUseChannel() { return useChannel; }
+
+    /** enable/disable Nagle's algorithm. It is disabled by default since we really want immediate replies.
+     @param tcpNoDelay value of <code>TCP_NODELAY</code> */
+    public void setTcpNoDelay(boolean tcpNoDelay) { this.tcpNoDelay = tcpNoDelay; }
+
+    public boolean isTcpNoDelay() { return tcpNoDelay; }
+
+    /** @param connectTimeout connect timeout in milliseconds, 0 (default) means no timeout */
+    public void setConnectTimeout(int connectTimeout) { this.connectTimeout = connectTimeout; }
+
+    public int getConnectTimeout() { return connectTimeout; }
+
+    /** @param readTimeout read timeout in milliseconds, 0 (default) means no timeout */
+    public void setReadTimeout(int readTimeout) { this.readTimeout = readTimeout; }
+
+    public int getReadTimeout() { return readTimeout; }
+
+    /** @param sendBufferSize size of the socket send buffer (<code>SO_SNDBUF</code>), 0 (default) keeps the system default */
+    public void setSendBufferSize(int sendBufferSize) { this.sendBufferSize = sendBufferSize; }
+
+    public int getSendBufferSize() { return sendBufferSize; }
+
+    /** @param receiveBufferSize size of the socket receive buffer (<code>SO_RCVBUF</code>), 0 (default) keeps the system default */
+    public void setReceiveBufferSize(int receiveBufferSize) { this.receiveBufferSize = receiveBufferSize; }
+
+    public int getReceiveBufferSize() { return receiveBufferSize; }
+
+    public RTransport connect(String host, int port) throws IOException {
+        if (useChannel) {
+            SocketChannel ch = SocketChannel.open();
+            try {
+                connect(ch.socket(), host, port);
+                return new SocketChannelTransport(ch, readTimeout);
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+        }
+        Socket s = new Socket();
+        try {
+            connect(s, host, port);
+            s.setSoTimeout(readTimeout);
+            return new SocketTransport(s);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    private void connect(Socket s, String host, int port) throws IOException {
+        s.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) {
+            s.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) { // must be set before connecting to take effect on the TCP window
+            s.setReceiveBufferSize(receiveBufferSize);
+        }
+        s.connect(new InetSocketAddress(host, port), connectTimeout);
+    }
+}
@@ -0,0 +1,141 @@
+package org.rosuda.rengine.rserve;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the parts of {@link RFileTransfer} which need no R: the splitting into ranges (with connections of a
+ * {@link StubRserve}) and the compression of blocks. The transfers themselves are tested in {@link RserveTest}.
+ */
+public class RFileTransferTest {
+
+    private StubRserve server;
+    private RConnectionPool pool;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubRserve();
+        pool = new RConnectionPool(server.getHost(), server.getPort(), 0, 4);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        pool.close();
+        server.close();
+    }
+
+    @Test(timeout = 30000)
+    public void rangeSplittingTest() throws IOException {
+        // given
+        final RFileTransfer transfer = new RFileTransfer(pool, 4);
+        transfer.setRangeSize(1000);
+        transfer.setBlockSize(100);
+        final List<long[]> ranges = Collections.synchronizedList(new ArrayList<long[]>());
+
+        // when
+        transfer.transfer(10500, (c, off, len) -> ranges.add(new long[] {off, len}));
+
+        // then
+        assertEquals(11, ranges.size());
+        Collections.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(new long[] {i * 1000L, 1000}, ranges.get(i));
+        }
+        assertArrayEquals(new long[] {10000, 500}, ranges.get(10));
+        assertTrue(pool.getCreatedCount() <= 4);
+    }
+
+    @Test(timeout = 30000)
+    public void rangeAtLeastBlockSizeTest() throws IOException {
+        // given
+        final RFileTransfer transfer = new RFileTransfer(pool, 2);
+        transfer.setRangeSize(10);
+        transfer.setBlockSize(400);
+        final List<long[]> ranges = Collections.synchronizedList(new ArrayList<long[]>());
+
+        // when
+        transfer.transfer(1000, (c, off, len) -> ranges.add(new long[] {off, len}));
+        transfer.transfer(0, (c, off, len) -> fail("no range expected for an empty file"));
+
+        // then
+        Collections.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[] {800, 200}, ranges.get(2));
+    }
+
+    @Test(timeout = 30000)
+    public void rangeFailureTest() {
+        // given
+        final RFileTransfer transfer = new RFileTransfer(pool, 2);
+        transfer.setRangeSize(100);
+        transfer.setBlockSize(100);
+
+        // when
+        try {
+            transfer.transfer(1000, (c, off, len) -> {
+                if (off == 300) {
+                    throw new IOException("range failed");
+                }
+            });
+            fail("IOException expected");
+        } catch (IOException e) {
+            // then
+            assertEquals("range failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void compressionRoundTripTest() throws IOException {
+        // given
+        final byte[] text = new byte[100000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 26);
+        }
+        final byte[] random = new byte[100000];
+        new Random(1).nextBytes(random);
+        final Deflater def = new Deflater();
+        final Inflater inf = new Inflater();
+
+        // when
+        try {
+            final byte[] zt = RFileTransfer.deflate(def, text);
+            final byte[] zr = RFileTransfer.deflate(def, random);
+
+            // then
+            assertTrue(zt.length < text.length / 10);
+            assertArrayEquals(text, RFileTransfer.inflate(inf, zt, text.length));
+            assertArrayEquals(random, RFileTransfer.inflate(inf, zr, random.length));
+            // a block which ends early is returned with its actual size
+            assertArrayEquals(text, RFileTransfer.inflate(inf, zt, text.length + 10));
+        } finally {
+            def.end();
+            inf.end();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBlockTest() throws IOException {
+        final Deflater def = new Deflater();
+        final Inflater inf = new Inflater();
+        try {
+            final byte[] z = RFileTransfer.deflate(def, new byte[1000]);
+            Arrays.fill(z, 2, z.length, (byte) 0x55);
+            RFileTransfer.inflate(inf, z, 1000);
+        } finally {
+            def.end();
+            inf.end();
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package org.rosuda.rengine.rserve;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.rengine.RDataFrame;
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDictionaryString;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPFactor;
+import org.rosuda.rengine.REXPGenericVector;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPRaw;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.RList;
+import org.rosuda.rengine.rserve.protocol.REXPFactory;
+import org.rosuda.rengine.rserve.protocol.SocketTransportFactory;
+
+/**
+ * Client tests against {@link StubRserve}, they need neither R nor Docker.
+ */
+public class RserveStubTest {
+
+    private StubRserve server;
+    private RConnection connection;
+
+    @Before
+    public void startServer() throws IOException, RserveException {
+        server = new StubRserve();
+        connection = server.connect();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        connection.close();
+        server.close();
+    }
+
+    @Test
+    public void handshakeTest() {
+        // then
+        assertTrue(connection.isConnected());
+        assertEquals(103, connection.getServerVersion());
+        assertFalse(connection.needLogin());
+    }
+
+    @Test
+    public void scriptedEvalTest() throws RserveException, REXPMismatchException {
+        // given
+        server.setResult("R.version$version.string", new REXPString("R version 3.4.0 (stub)"));
+
+        // when
+        final String versionString = connection.eval("R.version$version.string").asString();
+
+        // then
+        assertEquals("R version 3.4.0 (stub)", versionString);
+        assertEquals(42.0, connection.eval("42").asDouble(), 0.0);
+        assertTrue(connection.eval("NULL").isNull());
+    }
+
+    @Test(expected = RserveException.class)
+    public void evalErrorTest() throws RserveException {
+        connection.eval("stop('error')");
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        // given
+        final REXP[] values = {
+                new REXPDouble(new double[] {1.5, REXPDouble.NA, Double.NEGATIVE_INFINITY, -0.0}),
+                new REXPInteger(new int[] {1, REXPInteger.NA, Integer.MAX_VALUE}),
+                new REXPString(new String[] {"a", null, "üß€", ""}),
+                new REXPLogical(new byte[] {REXPLogical.TRUE, REXPLogical.FALSE, REXPLogical.NA}),
+                new REXPRaw(new byte[] {0, 1, (byte) 255}),
+                new REXPFactor(new int[] {1, 2, 1}, new String[] {"low", "high"}),
+                new REXPGenericVector(new RList(
+                        new REXP[] {new REXPDouble(1.0), new REXPString("x")}, new String[] {"num", "str"})),
+                REXP.createDataFrame(new RList(
+                        new REXP[] {new REXPInteger(new int[] {1, 2}), new REXPString(new String[] {"a", "b"})},
+                        new String[] {"id", "name"})),
+                REXP.createDoubleMatrix(new double[][] {{1, 2, 3}, {4, 5, 6}})
+        };
+
+        for (int i = 0; i < values.length; i++) {
+            // when
+            connection.assign("v" + i, values[i]);
+            final REXP r = connection.eval("v" + i);
+
+            // then
+            assertEquals(values[i].getClass(), r.getClass());
+            assertArrayEquals(binary(values[i]), binary(r));
+        }
+        assertArrayEquals(new double[] {1, 4, 2, 5, 3, 6}, server.getVariable("v8").asDoubles(), 0.0);
+        assertEquals(6.0, connection.eval("v8").asMatrix().get(1, 2), 0.0);
+    }
+
+    @Test
+    public void dataFrameViewTest() throws Exception {
+        // given
+        connection.assign("df", REXP.createDataFrame(new RList(
+                new REXP[] {
+                        new REXPDouble(new double[] {1.5, REXPDouble.NA, 3.5}),
+                        new REXPFactor(new int[] {2, 1, REXPInteger.NA}, new String[] {"low", "high"})
+                },
+                new String[] {"value", "level"})));
+
+        // when
+        final RDataFrame df = new RDataFrame(connection.eval("df"));
+
+        // then
+        assertEquals(3, df.rowCount());
+        assertEquals(2, df.columnCount());
+        assertTrue(df.hasAutomaticRowNames());
+        assertEquals("3", df.rowName(2));
+        assertEquals(1, df.columnIndex("level"));
+        assertEquals(-1, df.columnIndex("missing"));
+        assertTrue(df.isFactor(1));
+        final RDataFrame.Cursor row = df.cursor();
+        assertTrue(row.next());
+        assertEquals(1.5, row.getDouble(0), 0.0);
+        assertEquals("high", row.getString(1));
+        assertTrue(row.next());
+        assertTrue(row.isNA(0));
+        assertEquals("low", row.getString(1));
+        assertTrue(row.next());
+        assertTrue(row.isNA(1));
+        assertFalse(row.next());
+    }
+
+    @Test
+    public void offHeapEvalTest() throws Exception {
+        // given
+        final double[] d = new double[300000]; // large enough to be decoded while it is received
+        for (int i = 0; i < d.length; i++) {
+            d[i] = i;
+        }
+        connection.assign("big", new REXPDouble(d));
+        connection.setOffHeapThreshold(1024);
+
+        // when
+        final REXPDouble r = (REXPDouble) connection.eval("big");
+
+        // then
+        assertTrue(r.asDoubleBuffer().isDirect());
+        assertEquals(d.length, r.length());
+        assertEquals(299999.0, r.getDouble(299999), 0.0);
+        assertArrayEquals(d, r.asDoubles(), 0.0);
+    }
+
+    @Test
+    public void offHeapRawAssignTest() throws Exception {
+        // given
+        final byte[] b = new byte[100001]; // not a multiple of 4, so the representation is padded
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) i;
+        }
+        final ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+        direct.put(b).flip();
+        final REXPRaw raw = new REXPRaw(direct, null);
+
+        // when
+        connection.assign("r", raw);
+        final REXP r = connection.eval("r");
+
+        // then
+        assertArrayEquals(binary(new REXPRaw(b)), binary(raw));
+        assertArrayEquals(b, r.asBytes());
+        assertEquals(0, raw.asByteBuffer().position()); // writing does not consume the buffer
+    }
+
+    @Test
+    public void dictionaryStringsTest() throws Exception {
+        // given
+        final String[] s = new String[1000];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = (i % 100 == 0) ? null : "level" + (i % 10);
+        }
+        connection.assign("s", new REXPString(s));
+        connection.setDictionaryStrings(true);
+
+        // when
+        final REXP r = connection.eval("s");
+
+        // then
+        assertTrue(r instanceof REXPDictionaryString);
+        assertEquals(10, ((REXPDictionaryString) r).getDictionary().length);
+        assertArrayEquals(s, r.asStrings());
+        assertArrayEquals(s, ((REXPDictionaryString) r).toFactor().asStrings());
+        assertArrayEquals(binary(new REXPString(s)), binary(r));
+    }
+
+    @Test
+    public void parallelDecodeTest() throws Exception {
+        // given
+        final REXP[] columns = new REXP[20];
+        final String[] names = new String[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+            final double[] d = new double[20000]; // the list is large enough to be decoded while it is received
+            for (int i = 0; i < d.length; i++) {
+                d[i] = i * j;
+            }
+            columns[j] = (j % 2 == 0) ? new REXPDouble(d) : new REXPGenericVector(new RList(new REXP[] {new REXPDouble(d), new REXPString("x" + j)}));
+            names[j] = "c" + j;
+        }
+        final REXP list = new REXPGenericVector(new RList(columns, names));
+        connection.assign("l", list);
+        connection.assign("s", new REXPGenericVector(new RList(new REXP[] {new REXPInteger(1), new REXPString("a")}, new String[] {"i", "s"})));
+        final double[] big = new double[300000];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = i;
+        }
+        connection.assign("big", new REXPDouble(big));
+        connection.setParallelThreshold(0);
+        connection.setOffHeapThreshold(1024);
+
+        // when
+        final REXP r = connection.eval("l");
+        final REXP small = connection.eval("s");
+        final REXPDouble d = (REXPDouble) connection.eval("big");
+
+        // then
+        assertArrayEquals(binary(list), binary(r));
+        assertEquals("a", small.asList().at("s").asString());
+        assertTrue(d.asDoubleBuffer().isDirect()); // vectors other than lists are still streamed
+        assertArrayEquals(big, d.asDoubles(), 0.0);
+    }
+
+    @Test(expected = REXPMismatchException.class)
+    public void parallelDecodeCorruptTest() throws Exception {
+        // given
+        final byte[] b = binary(new REXPGenericVector(new RList(new REXP[] {new REXPDouble(1), new REXPDouble(2)})));
+        b[5] = b[6] = b[7] = (byte) 255; // the first element claims to be longer than the vector
+        final REXPFactory f = new REXPFactory();
+        f.setParallelThreshold(0);
+
+        // when
+        f.parseREXP(b, 0);
+    }
+
+    /** returns the QAP1 binary representation, which covers values and attributes */
+    private static byte[] binary(REXP x) throws REXPMismatchException {
+        final REXPFactory f = new REXPFactory(x);
+        final byte[] b = new byte[f.getBinaryLength()];
+        f.getBinaryRepresentation(b, 0);
+        return b;
+    }
+
+    @Test
+    public void pipelinedEvalTest() throws Exception {
+        // given
+        server.setLatency(5);
+        final List<CompletableFuture<REXP>> results = new ArrayList<CompletableFuture<REXP>>();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            results.add(connection.evalAsync(Integer.toString(i)));
+        }
+
+        // then
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, results.get(i).get().asInteger());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void chainedAsyncEvalTest() throws Exception {
+        // given
+        server.setLatency(1);
+        final List<CompletableFuture<REXP>> results = new ArrayList<CompletableFuture<REXP>>();
+        final Thread chaining = new Thread(() -> {
+            for (int i = 0; i < 50; i++) {
+                final int k = i;
+                // the second request is submitted by a dependent action while the other thread sends synchronous ones
+                results.add(connection.evalAsync(Integer.toString(k)).thenCompose(x -> connection.evalAsync(Integer.toString(k + 1000))));
+            }
+        });
+
+        // when
+        chaining.start();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, connection.eval(Integer.toString(i)).asInteger());
+        }
+        chaining.join();
+
+        // then
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i + 1000, results.get(i).get(10, TimeUnit.SECONDS).asInteger());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentEvalTest() throws Exception {
+        // given
+        final double[] x = new double[1000];
+        final double[] y = new double[1000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = i;
+            y[i] = -i;
+        }
+        connection.assign("x", new REXPDouble(x));
+        connection.assign("y", new REXPDouble(y));
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final Thread other = new Thread(() -> {
+            try {
+                for (int i = 0; i < 300; i++) {
+                    assertArrayEquals(y, connection.eval("y").asDoubles(), 0.0);
+                }
+            } catch (Throwable t) {
+                synchronized (failures) {
+                    failures.add(t);
+                }
+            }
+        });
+
+        // when
+        other.start();
+        for (int i = 0; i < 300; i++) {
+            assertArrayEquals(x, connection.eval("x").asDoubles(), 0.0);
+        }
+        other.join();
+
+        // then
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test(timeout = 60000)
+    public void channelTransportPipelineTest() throws Exception {
+        // given
+        final SocketTransportFactory factory = new SocketTransportFactory();
+        factory.setUseChannel(true);
+        factory.setReadTimeout(5000);
+        factory.setSendBufferSize(4096);
+        final RConnection c = new RConnection(server.getHost(), server.getPort(), factory);
+        server.setLatency(2);
+        final double[] x = new double[20000];
+        Arrays.fill(x, 1.5);
+        final List<CompletableFuture<Void>> assigned = new ArrayList<CompletableFuture<Void>>();
+        final List<CompletableFuture<REXP>> results = new ArrayList<CompletableFuture<REXP>>();
+
+        // when
+        try {
+            for (int i = 0; i < 50; i++) {
+                // the large requests keep the sender waiting for the channel while responses are being read
+                assigned.add(c.assignAsync("x" + i, new REXPDouble(x)));
+                results.add(c.evalAsync(Integer.toString(i)));
+            }
+
+            // then
+            for (int i = 0; i < 50; i++) {
+                assigned.get(i).get();
+                assertEquals(i, results.get(i).get().asInteger());
+            }
+            assertArrayEquals(x, c.eval("x49").asDoubles(), 0.0);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void fileTransferTest() throws IOException, RserveException {
+        // given
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        // when
+        final OutputStream os = connection.createFile("test.bin");
+        os.write(data, 0, 60000);
+        os.write(data, 60000, 40000);
+        os.close();
+        final byte[] read = new byte[data.length];
+        int n = 0;
+        final InputStream is = connection.openFile("test.bin");
+        for (int rd; (rd = is.read(read, n, Math.min(8192, read.length - n))) > 0; ) {
+            n += rd;
+        }
+        is.close();
+
+        // then
+        assertArrayEquals(data, server.getFile("test.bin"));
+        assertEquals(data.length, n);
+        assertArrayEquals(data, read);
+        connection.removeFile("test.bin");
+        assertNull(server.getFile("test.bin"));
+    }
+
+    @Test
+    public void chunkedFileReadTest() throws IOException {
+        // given
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final OutputStream os = connection.createFile("test.bin");
+        os.write(data);
+        os.close();
+        server.setLatency(1);
+
+        // when
+        final RFileInputStream is = connection.openFile("test.bin", 4096, 8);
+        final int first = is.read();
+        final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        final long n = is.transferTo(rest);
+        final int after = is.read();
+        is.close();
+
+        // then
+        assertEquals(data[0] & 255, first);
+        assertEquals(data.length - 1, n);
+        assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), rest.toByteArray());
+        assertEquals(-1, after);
+    }
+
+    @Test
+    public void writeBehindFileTest() throws IOException {
+        // given
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        final File local = File.createTempFile("rserve", ".bin");
+        local.deleteOnExit();
+        Files.write(local.toPath(), data);
+
+        // when
+        final RFileOutputStream os = connection.createFile("test.bin", 4096, 8);
+        for (int i = 0; i < 1000; i++) {
+            os.write(data[i]);
+        }
+        os.write(data, 1000, 9000);
+        os.flush();
+        final long n = os.transferFrom(local.toPath());
+        os.close();
+
+        // then
+        assertEquals(data.length, n);
+        final byte[] written = server.getFile("test.bin");
+        assertArrayEquals(Arrays.copyOf(data, 10000), Arrays.copyOf(written, 10000));
+        assertArrayEquals(data, Arrays.copyOfRange(written, 10000, written.length));
+    }
+
+    @Test
+    public void cachingEngineTest() throws Exception {
+        // given
+        final CachingREngine engine = new CachingREngine(connection, 1024, 0);
+        engine.markPure("ref", "ref");
+        connection.assign("ref", new REXPString(new String[] {"a", "b"}));
+        connection.assign("other", new REXPDouble(1));
+
+        // when
+        final REXP first = engine.eval("ref");
+        final REXP second = engine.eval("ref");
+        engine.assign("other", new REXPDouble(2));
+        final REXP third = engine.eval("ref");
+        engine.assign("ref", new REXPString("c"));
+        final REXP fourth = engine.eval("ref");
+        engine.eval("other");
+
+        // then
+        assertSame(first, second);
+        assertSame(first, third);
+        assertEquals("c", fourth.asString());
+        assertEquals(2, engine.getHitCount());
+        assertEquals(2, engine.getMissCount());
+        assertEquals(1, engine.getCachedCount());
+        assertEquals(1, engine.getInvalidationCount());
+    }
+
+    @Test
+    public void latencyTest() throws RserveException {
+        // given
+        server.setLatency(100);
+
+        // when
+        final long start = System.nanoTime();
+        connection.voidEval("NULL");
+        final long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        // then
+        assertTrue("elapsed " + elapsed + "ms", elapsed >= 100);
+    }
+
+    @Test
+    public void bandwidthTest() throws RserveException, REXPMismatchException {
+        // given
+        server.setResult("x", new REXPDouble(new double[64 * 1024])); // 512kB
+        server.setBandwidth(2 * 1024 * 1024);
+
+        // when
+        final long start = System.nanoTime();
+        final double[] x = connection.eval("x").asDoubles();
+        final long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        // then
+        assertEquals(64 * 1024, x.length);
+        assertTrue("elapsed " + elapsed + "ms", elapsed >= 200);
+    }
+
+    @Test
+    public void faultTest() throws RserveException {
+        // given
+        server.injectFault(StubRserve.Fault.ERROR);
+        server.injectFault(StubRserve.Fault.TRUNCATE);
+
+        // when
+        try {
+            connection.voidEval("NULL");
+            fail("error expected");
+        } catch (RserveException e) {
+            // then
+            assertEquals(0x45, e.getRequestReturnCode());
+        }
+        try {
+            connection.eval("1");
+            fail("broken connection expected");
+        } catch (RserveException e) {
+            // then
+            assertEquals(2, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void poolTest() throws Exception {
+        // given
+        final RConnectionPool pool = new RConnectionPool(server.getHost(), server.getPort(), 1, 2);
+        pool.start();
+
+        // when
+        final RConnection c1 = pool.borrow();
+        final RConnection c2 = pool.borrow();
+        c1.voidEval("NULL");
+        pool.release(c1);
+        final RConnection c3 = pool.borrow();
+
+        // then
+        assertSame(c1, c3);
+        assertEquals(2, pool.getCreatedCount());
+        pool.release(c2);
+        pool.release(c3);
+        pool.close();
+    }
+}
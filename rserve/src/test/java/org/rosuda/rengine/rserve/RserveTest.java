@@ -11,6 +11,10 @@ import java.awt.MediaTracker;
 import java.awt.Toolkit;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -450,6 +454,45 @@ public class RserveTest {
         frame.setVisible(true);
     }
 
+    @Test
+    public void parallelFileTransferTest() throws IOException {
+        final byte[] data = new byte[5000000];
+        new Random(1).nextBytes(data);
+        final Path local = Files.createTempFile("rserve", ".bin");
+        final Path back = Files.createTempFile("rserve", ".bin");
+        Files.write(local, data);
+        final RConnectionPool pool = new RConnectionPool(container.getDockerHost(),
+                Integer.parseInt(container.getExposedContainerPort(RSERVE_PORT)), 0, 4);
+        pool.setCredentials("rserve", "rserve");
+        try {
+            final RFileTransfer transfer = new RFileTransfer(pool, 4);
+            transfer.setRangeSize(1000000);
+            final RFileTransfer.Result up = transfer.upload(local, "/tmp/transfer.bin");
+            final RFileTransfer.Result down = transfer.download("/tmp/transfer.bin", back);
+
+            assertEquals(data.length, up.getBytes());
+            assertEquals(up.getChecksum(), down.getChecksum());
+            assertArrayEquals(data, Files.readAllBytes(back));
+
+            final byte[] text = new byte[data.length];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = (byte) ('a' + i % 26);
+            }
+            Files.write(local, text);
+            transfer.setCompressionThreshold(0);
+            final RFileTransfer.Result zup = transfer.upload(local, "/tmp/transfer.txt");
+            final RFileTransfer.Result zdown = transfer.download("/tmp/transfer.txt", back);
+
+            assertTrue(zup.getWireBytes() < text.length / 10);
+            assertTrue(zdown.getSavedBytes() > 0);
+            assertArrayEquals(text, Files.readAllBytes(back));
+        } finally {
+            pool.close();
+            Files.delete(local);
+            Files.delete(back);
+        }
+    }
+
     private void plotDemo(Canvas canvas, Image img) throws InterruptedException {
         MediaTracker mediaTracker = new MediaTracker(canvas);
         mediaTracker.addImage(img, 0);
@@ -0,0 +1,501 @@
+package org.rosuda.rengine.rserve;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rosuda.rengine.REXP;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPLogical;
+import org.rosuda.rengine.REXPMismatchException;
+import org.rosuda.rengine.REXPNull;
+import org.rosuda.rengine.REXPString;
+import org.rosuda.rengine.rserve.protocol.REXPFactory;
+import org.rosuda.rengine.rserve.protocol.RTalk;
+
+/**
+ * In-process QAP1 server which stands in for Rserve in tests, so that the client, pooling and pipelining can be
+ * tested and measured without R. Every connection is served by its own thread and requests are answered in order,
+ * just like Rserve does.
+ * <p>
+ * Supported commands are <code>CMD_eval</code>, <code>CMD_voidEval</code>, <code>CMD_setSEXP</code>,
+ * <code>CMD_assignSEXP</code>, the file commands and the session setup commands (login, encoding, buffer size,
+ * shutdown). String evaluations are answered by {@link #setResult scripted results}, values assigned on the same
+ * server (so assign and eval round-trip an expression through {@link REXPFactory} in both directions) and a few
+ * literals (<code>NULL</code>, <code>TRUE</code>, <code>FALSE</code>, numbers and quoted strings). Anything else fails
+ * like an R error. Evaluations of an expression (<code>CMD_eval</code> with a <code>DT_SEXP</code> parameter) echo it.
+ * <p>
+ * Network conditions are simulated by {@link #setLatency latency}, a {@link #setBandwidth bandwidth limit} for the
+ * responses and {@link #injectFault faults}.
+ */
+public class StubRserve implements Closeable {
+    /** faults which can be injected into the answer of a request, see {@link StubRserve#injectFault} */
+    public enum Fault {
+        /** the connection is closed without answering */
+        DISCONNECT,
+        /** half of the response is sent, then the connection is closed */
+        TRUNCATE,
+        /** the request fails with <code>ERR_Rerror</code> */
+        ERROR,
+        /** the request is never answered, the connection stays open until the server is closed */
+        STALL
+    }
+
+    private static final int RESP_OK = 0x10001;
+    private static final int RESP_ERR = 0x10002;
+    /** status returned by Rserve when an evaluation fails */
+    private static final int EVAL_ERROR = 127;
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final Map<String, REXP> results = new ConcurrentHashMap<String, REXP>();
+    private final Map<String, REXP> variables = new ConcurrentHashMap<String, REXP>();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+    private final Queue<Fault> faults = new ConcurrentLinkedQueue<Fault>();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile long latency;
+    private volatile long bandwidth;
+    private volatile boolean closed;
+
+    /** starts a server listening on an ephemeral port of the loopback interface */
+    public StubRserve() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "StubRserve-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** @return host name to connect to */
+    public String getHost() {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    /** @return port to connect to */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /** opens a connection to this server */
+    public RConnection connect() throws RserveException {
+        return new RConnection(getHost(), getPort());
+    }
+
+    /** sets the result of evaluating an expression
+     @param expr expression as sent by the client
+     @param result result, <code>null</code> removes the expression */
+    public void setResult(String expr, REXP result) {
+        if (result == null) {
+            results.remove(expr);
+        } else {
+            results.put(expr, result);
+        }
+    }
+
+    /** @return value assigned to a symbol or <code>null</code> */
+    public REXP getVariable(String sym) {
+        return variables.get(sym);
+    }
+
+    /** @return content of a file created by a client or <code>null</code> */
+    public byte[] getFile(String fn) {
+        return files.get(fn);
+    }
+
+    /** stores a file which clients can open */
+    public void putFile(String fn, byte[] content) {
+        files.put(fn, content);
+    }
+
+    /** @param latency delay in milliseconds before each response is sent */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /** @param bandwidth limit for sending responses in bytes per second on each connection, 0 means unlimited */
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /** injects a fault into the answer of the next request (on any connection). Faults are queued, so calling this
+     repeatedly affects consecutive requests. */
+    public void injectFault(Fault fault) {
+        faults.add(fault);
+    }
+
+    /** @return number of connections accepted so far */
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    /** @return number of requests received so far */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /** stops the server and closes all connections */
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (Socket s : clients) {
+            s.close();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            clients.add(s);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(s);
+                    } catch (IOException e) {
+                        // the client went away or a fault was injected
+                    } finally {
+                        clients.remove(s);
+                        try {
+                            s.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }, "StubRserve-" + s.getPort());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve(Socket s) throws IOException {
+        s.setTcpNoDelay(true);
+        InputStream in = s.getInputStream();
+        Session session = new Session(new ThrottledOutputStream(s.getOutputStream()));
+        session.out.write("Rsrv0103QAP1\r\n\r\n--------------\r\n".getBytes(StandardCharsets.US_ASCII));
+        session.out.flush();
+        byte[] hdr = new byte[16];
+        while (!closed) {
+            if (!readFully(in, hdr, 16)) {
+                return;
+            }
+            int cmd = RTalk.getInt(hdr, 0);
+            long len = (RTalk.getInt(hdr, 4) & 0xffffffffL) | ((long) RTalk.getInt(hdr, 12) << 32);
+            if (len > Integer.MAX_VALUE - 8) {
+                throw new IOException("request too large for the stub server: " + len);
+            }
+            byte[] cont = new byte[(int) len];
+            if (!readFully(in, cont, cont.length)) {
+                return;
+            }
+            requests.incrementAndGet();
+            Fault fault = faults.poll();
+            if (fault == Fault.DISCONNECT) {
+                return;
+            }
+            if (fault == Fault.STALL) {
+                stall();
+                return;
+            }
+            byte[] resp = (fault == Fault.ERROR) ? error(RTalk.ERR_Rerror) : session.handle(cmd, cont);
+            if (latency > 0) {
+                sleep(latency);
+            }
+            if (fault == Fault.TRUNCATE) {
+                session.out.write(resp, 0, resp.length / 2);
+                session.out.flush();
+                return;
+            }
+            session.out.write(resp);
+            session.out.flush();
+            if (cmd == RTalk.CMD_shutdown) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void stall() {
+        while (!closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** state of one connection */
+    private class Session {
+        final OutputStream out;
+        /** name of the open file */
+        String file;
+        /** content of a file open for writing, <code>null</code> if it is open for reading */
+        ByteArrayOutputStream writing;
+        /** read position in a file open for reading */
+        int readPos;
+
+        Session(OutputStream out) {
+            this.out = out;
+        }
+
+        byte[] handle(int cmd, byte[] cont) throws IOException {
+            try {
+                switch (cmd) {
+                    case RTalk.CMD_eval:
+                        return eval(cont);
+                    case RTalk.CMD_voidEval:
+                        return ok(null);
+                    case RTalk.CMD_setSEXP:
+                    case RTalk.CMD_assignSEXP:
+                        int o = parameterEnd(cont, 0);
+                        variables.put(stringParameter(cont, 0), sexpParameter(cont, o));
+                        return ok(null);
+                    case RTalk.CMD_login:
+                    case RTalk.CMD_setEncoding:
+                    case RTalk.CMD_setBufferSize:
+                    case RTalk.CMD_shutdown:
+                        return ok(null);
+                    case RTalk.CMD_openFile:
+                    case RTalk.CMD_createFile:
+                    case RTalk.CMD_readFile:
+                    case RTalk.CMD_writeFile:
+                    case RTalk.CMD_closeFile:
+                    case RTalk.CMD_removeFile:
+                        return file(cmd, cont);
+                    default:
+                        return error(RTalk.ERR_unsupported_cmd);
+                }
+            } catch (REXPMismatchException e) {
+                return error(RTalk.ERR_inv_par);
+            }
+        }
+
+        private byte[] eval(byte[] cont) throws REXPMismatchException {
+            if ((cont[0] & 63) == RTalk.DT_SEXP) {
+                return ok(sexpParameter(cont, 0));
+            }
+            String expr = stringParameter(cont, 0).trim();
+            REXP r = results.get(expr);
+            if (r == null) {
+                r = variables.get(expr);
+            }
+            if (r == null) {
+                r = literal(expr);
+            }
+            return (r == null) ? error(EVAL_ERROR) : ok(r);
+        }
+
+        private byte[] file(int cmd, byte[] cont) {
+            if (cmd == RTalk.CMD_openFile) {
+                String fn = stringParameter(cont, 0);
+                if (!files.containsKey(fn)) {
+                    return error(RTalk.ERR_IOerror);
+                }
+                file = fn;
+                writing = null;
+                readPos = 0;
+                return ok(null);
+            }
+            if (cmd == RTalk.CMD_createFile) {
+                file = stringParameter(cont, 0);
+                writing = new ByteArrayOutputStream();
+                files.put(file, new byte[0]);
+                return ok(null);
+            }
+            if (cmd == RTalk.CMD_removeFile) {
+                return (files.remove(stringParameter(cont, 0)) == null) ? error(RTalk.ERR_IOerror) : ok(null);
+            }
+            if (file == null) {
+                return error(RTalk.ERR_not_open);
+            }
+            if (cmd == RTalk.CMD_readFile) {
+                byte[] f = files.get(file);
+                int n = Math.min(RTalk.getInt(cont, 4), f.length - readPos);
+                byte[] r = frame(RESP_OK, n);
+                System.arraycopy(f, readPos, r, 16, n);
+                readPos += n;
+                return r;
+            }
+            if (cmd == RTalk.CMD_writeFile) {
+                if (writing == null) {
+                    return error(RTalk.ERR_access_denied);
+                }
+                int o = parameterOffset(cont, 0);
+                writing.write(cont, o, parameterEnd(cont, 0) - o);
+                return ok(null);
+            }
+            if (writing != null) { // CMD_closeFile
+                files.put(file, writing.toByteArray());
+            }
+            file = null;
+            writing = null;
+            return ok(null);
+        }
+    }
+
+    /** evaluates literals; returns <code>null</code> if the expression is none */
+    private static REXP literal(String expr) {
+        if ("NULL".equals(expr)) {
+            return new REXPNull();
+        }
+        if ("TRUE".equals(expr) || "FALSE".equals(expr)) {
+            return new REXPLogical("TRUE".equals(expr));
+        }
+        if (expr.length() > 1 && expr.charAt(0) == '"' && expr.charAt(expr.length() - 1) == '"') {
+            return new REXPString(expr.substring(1, expr.length() - 1));
+        }
+        try {
+            return new REXPDouble(Double.parseDouble(expr));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** returns the offset of the payload of the parameter at <code>o</code> */
+    private static int parameterOffset(byte[] cont, int o) {
+        return o + (((cont[o] & RTalk.DT_LARGE) != 0) ? 8 : 4);
+    }
+
+    /** returns the offset behind the parameter at <code>o</code> */
+    private static int parameterEnd(byte[] cont, int o) {
+        return parameterOffset(cont, o) + (int) RTalk.getLongLen(cont, o);
+    }
+
+    private static String stringParameter(byte[] cont, int o) {
+        int s = parameterOffset(cont, o);
+        int e = s;
+        int end = parameterEnd(cont, o);
+        while (e < end && cont[e] != 0) {
+            e++;
+        }
+        return new String(cont, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    private static REXP sexpParameter(byte[] cont, int o) throws REXPMismatchException {
+        REXPFactory f = new REXPFactory();
+        f.parseREXP(cont, parameterOffset(cont, o));
+        return f.getREXP();
+    }
+
+    /** builds an OK response carrying an expression as DT_SEXP parameter, or no content */
+    private static byte[] ok(REXP r) {
+        if (r == null) {
+            return frame(RESP_OK, 0);
+        }
+        try {
+            REXPFactory f = new REXPFactory(r);
+            int bl = f.getBinaryLength();
+            int hl = (bl > 0xfffff0) ? 8 : 4;
+            byte[] b = frame(RESP_OK, hl + bl);
+            RTalk.setHdr(RTalk.DT_SEXP, bl, b, 16);
+            f.getBinaryRepresentation(b, 16 + hl);
+            return b;
+        } catch (REXPMismatchException e) {
+            return error(RTalk.ERR_object_too_big);
+        }
+    }
+
+    private static byte[] error(int stat) {
+        return frame(RESP_ERR | (stat << 24), 0);
+    }
+
+    /** allocates a message of <code>len</code> bytes of content and fills in the header */
+    private static byte[] frame(int cmd, int len) {
+        byte[] b = new byte[16 + len];
+        RTalk.setInt(cmd, b, 0);
+        RTalk.setInt(len, b, 4);
+        return b;
+    }
+
+    private static boolean readFully(InputStream in, byte[] b, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int rd;
+            try {
+                rd = in.read(b, n, len - n);
+            } catch (SocketException e) {
+                return false;
+            }
+            if (rd < 0) {
+                if (n == 0) {
+                    return false;
+                }
+                throw new EOFException("connection closed within a message");
+            }
+            n += rd;
+        }
+        return true;
+    }
+
+    private static void sleep(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /** sends at most {@link StubRserve#bandwidth} bytes per second */
+    private class ThrottledOutputStream extends FilterOutputStream {
+        /** bytes are sent in slices of this size so that the rate is smooth */
+        private static final int SLICE = 8 * 1024;
+        private long start;
+        private long sent;
+
+        ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, SLICE);
+                long bw = bandwidth;
+                if (bw > 0) {
+                    long now = System.nanoTime();
+                    if (sent == 0 || now - start > 1000000000L) { // restart the measurement after idle periods
+                        start = now;
+                        sent = 0;
+                    }
+                    long due = start + (sent + n) * 1000000000L / bw;
+                    if (due > now) {
+                        sleep((due - now) / 1000000L);
+                    }
+                    sent += n;
+                }
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.rosuda.rengine.rserve.protocol;
+
+import static org.junit.Assert.*;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+import org.junit.Test;
+import org.rosuda.rengine.REXPDouble;
+import org.rosuda.rengine.REXPInteger;
+import org.rosuda.rengine.REXPRaw;
+
+/**
+ * Tests of {@link RBinaryOutput} writing into arrays and buffers which are too short, directly and through
+ * {@link REXPFactory}.
+ */
+public class RBinaryOutputTest {
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayIntsTest() throws Exception {
+        new RBinaryOutput(new byte[10], 0).putInts(new int[] {1, 2, 3, 4});
+    }
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayDoublesTest() throws Exception {
+        new RBinaryOutput(new byte[10], 2).putDoubles(new double[] {1, 2, 3, 4});
+    }
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayIntBufferTest() throws Exception {
+        new RBinaryOutput(new byte[10], 0).putInts(IntBuffer.wrap(new int[] {1, 2, 3, 4}));
+    }
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayDoubleBufferTest() throws Exception {
+        new RBinaryOutput(new byte[10], 0).putDoubles(DoubleBuffer.wrap(new double[] {1, 2, 3, 4}));
+    }
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayBytesTest() throws Exception {
+        final RBinaryOutput o = new RBinaryOutput(new byte[4], 0);
+        o.putInt(1);
+        o.put(ByteBuffer.allocateDirect(2));
+    }
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayRawVectorTest() throws Exception {
+        new REXPFactory(new REXPRaw(ByteBuffer.allocateDirect(100), null)).getBinaryRepresentation(new byte[50], 0);
+    }
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayVectorTest() throws Exception {
+        new REXPFactory(new REXPDouble(new double[] {1, 2, 3, 4})).getBinaryRepresentation(new byte[10], 0);
+    }
+
+    @Test(timeout = 10000, expected = BufferOverflowException.class)
+    public void shortArrayOffHeapVectorTest() throws Exception {
+        final IntBuffer b = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder()).asIntBuffer();
+        b.put(new int[] {1, 2, 3, 4}).flip();
+        new REXPFactory(new REXPInteger(b, null)).getBinaryRepresentation(new byte[10], 0);
+    }
+
+    @Test(timeout = 10000)
+    public void shortBufferVectorTest() throws Exception {
+        final REXPFactory f = new REXPFactory(new REXPDouble(new double[] {1, 2, 3, 4}));
+        for (ByteBuffer b : new ByteBuffer[] {ByteBuffer.allocate(10), ByteBuffer.allocateDirect(10)}) {
+            try {
+                f.writeBinaryRepresentation(b);
+                fail("no BufferOverflowException");
+            } catch (BufferOverflowException e) {
+                assertEquals(0, b.position());
+            }
+        }
+    }
+}